@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepository;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Builds a commit straight into the object store, without a worktree or index: collect path changes, then
+ * {@link #commit()}. Content is inserted as each change is added, so streams are consumed immediately and never
+ * buffered whole. Only the trees along changed paths are rewritten. The branch is moved with a compare-and-swap against
+ * the value it had when {@link #commit()} started, so a commit racing with another writer fails instead of discarding
+ * its work.
+ * <p>
+ * Obtain one from {@link BareGitRepository#newCommit(String)}. Not thread-safe, and good for a single commit.
+ */
+public final class BareCommitBuilder
+{
+
+    private static final Logger LOGGER = Logger.getLogger( BareCommitBuilder.class );
+
+    private final BareGitRepository owner;
+
+    private final FileRepository repository;
+
+    private final String refName;
+
+    private final TreeEditor tree = new TreeEditor();
+
+    private String parent;
+
+    private String message = "";
+
+    private PersonIdent author;
+
+    private boolean committed;
+
+    BareCommitBuilder( final BareGitRepository owner, final String branch )
+        throws GitWrapException
+    {
+        this.owner = owner;
+        this.repository = owner.requireRepository();
+        this.refName = branch.startsWith( Constants.R_REFS ) ? branch : Constants.R_HEADS + branch;
+    }
+
+    /**
+     * Revision to commit on top of (tags are peeled to their commit). Defaults to the branch's current tip, or no
+     * parent if the branch doesn't exist. Setting a parent on a branch that doesn't exist yet creates the branch from
+     * it; on an existing branch the new commit must be a fast-forward of the branch's tip.
+     */
+    public BareCommitBuilder setParent( final String revision )
+    {
+        this.parent = revision;
+        return this;
+    }
+
+    public BareCommitBuilder setMessage( final String message )
+    {
+        this.message = message;
+        return this;
+    }
+
+    /**
+     * Defaults to the repository's configured user. The committer is always the configured user.
+     */
+    public BareCommitBuilder setAuthor( final PersonIdent author )
+    {
+        this.author = author;
+        return this;
+    }
+
+    public BareCommitBuilder add( final String path, final byte[] content )
+        throws GitWrapException
+    {
+        return add( path, content, false );
+    }
+
+    public BareCommitBuilder add( final String path, final byte[] content, final boolean executable )
+        throws GitWrapException
+    {
+        checkOpen();
+        TreeEditor.checkPath( path );
+        try
+        {
+            tree.put( path, mode( executable ), insertBlob( content ) );
+        }
+        catch ( final IOException e )
+        {
+            throw new GitWrapException( "Cannot store content for: %s. Reason: %s", e, path, e.getMessage() );
+        }
+
+        return this;
+    }
+
+    /**
+     * Add (or replace) a file, reading exactly <code>length</code> bytes from the stream. The stream is read before
+     * this returns, but not closed.
+     */
+    public BareCommitBuilder add( final String path, final InputStream content, final long length )
+        throws GitWrapException
+    {
+        return add( path, content, length, false );
+    }
+
+    public BareCommitBuilder add( final String path, final InputStream content, final long length,
+                                  final boolean executable )
+        throws GitWrapException
+    {
+        checkOpen();
+        TreeEditor.checkPath( path );
+        try
+        {
+            tree.put( path, mode( executable ), insertBlob( content, length ) );
+        }
+        catch ( final IOException e )
+        {
+            throw new GitWrapException( "Cannot store content for: %s. Reason: %s", e, path, e.getMessage() );
+        }
+
+        return this;
+    }
+
+    public BareCommitBuilder delete( final String path )
+        throws GitWrapException
+    {
+        checkOpen();
+        tree.delete( path );
+        return this;
+    }
+
+    /**
+     * Write the trees and commit, and move the branch to it.
+     *
+     * @return the new commit, or the parent unchanged if the changes left its tree as it was.
+     */
+    public ObjectId commit()
+        throws GitWrapException
+    {
+        checkOpen();
+        committed = true;
+
+        final ObjectReader reader = repository.newObjectReader();
+        final ObjectInserter inserter = repository.newObjectInserter();
+        try
+        {
+            // the branch's value now is what the ref update must find; the parent only shapes the commit.
+            final ObjectId tip = owner.resolve( refName );
+            final ObjectId parentId = parent == null ? tip : owner.resolve( parent );
+            if ( parent != null && parentId == null )
+            {
+                throw new GitWrapException( "Cannot resolve parent revision: %s", parent );
+            }
+
+            ObjectId parentCommit = null;
+            ObjectId baseTree = null;
+            if ( parentId != null )
+            {
+                final RevWalk walk = new RevWalk( reader );
+                try
+                {
+                    final RevCommit commit = walk.parseCommit( parentId );
+                    parentCommit = commit.copy();
+                    baseTree = commit.getTree().copy();
+                }
+                finally
+                {
+                    walk.release();
+                }
+            }
+
+            final ObjectId newTree = tree.write( reader, inserter, baseTree );
+            if ( newTree.equals( baseTree ) )
+            {
+                LOGGER.info( "Nothing changed; not committing to: " + refName );
+                return parentCommit;
+            }
+
+            final PersonIdent who = author == null ? new PersonIdent( repository ) : author;
+            return owner.commitTree( inserter, refName, tip, parentCommit, newTree, message, who );
+        }
+        catch ( final IOException e )
+        {
+            throw new GitWrapException( "Failed to commit to: %s. Reason: %s", e, refName, e.getMessage() );
+        }
+        finally
+        {
+            reader.release();
+            inserter.release();
+        }
+    }
+
+    // a short-lived inserter per blob, so a builder that is never committed holds nothing open.
+    private ObjectId insertBlob( final byte[] content )
+        throws IOException
+    {
+        final ObjectInserter inserter = repository.newObjectInserter();
+        try
+        {
+            final ObjectId id = inserter.insert( Constants.OBJ_BLOB, content );
+            inserter.flush();
+            return id;
+        }
+        finally
+        {
+            inserter.release();
+        }
+    }
+
+    private ObjectId insertBlob( final InputStream content, final long length )
+        throws IOException
+    {
+        final ObjectInserter inserter = repository.newObjectInserter();
+        try
+        {
+            final ObjectId id = inserter.insert( Constants.OBJ_BLOB, length, content );
+            inserter.flush();
+            return id;
+        }
+        finally
+        {
+            inserter.release();
+        }
+    }
+
+    private void checkOpen()
+    {
+        if ( committed )
+        {
+            throw new IllegalStateException( "This commit has already been made." );
+        }
+    }
+
+    private static FileMode mode( final boolean executable )
+    {
+        return executable ? FileMode.EXECUTABLE_FILE : FileMode.REGULAR_FILE;
+    }
+
+}
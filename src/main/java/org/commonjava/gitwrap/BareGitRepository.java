@@ -22,11 +22,14 @@ import org.apache.log4j.Logger;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.errors.NotSupportedException;
 import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.CommitBuilder;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectInserter;
 import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.ProgressMonitor;
 import org.eclipse.jgit.lib.Ref;
@@ -36,42 +39,70 @@ import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.StoredConfig;
 import org.eclipse.jgit.lib.TagBuilder;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.storage.file.FileBasedConfig;
 import org.eclipse.jgit.storage.file.FileRepository;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.FetchConnection;
 import org.eclipse.jgit.transport.FetchResult;
 import org.eclipse.jgit.transport.PushResult;
 import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.RemoteConfig;
 import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.TrackingRefUpdate;
 import org.eclipse.jgit.transport.Transport;
 import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class BareGitRepository
+    implements Closeable
 {
 
     private static final Logger LOGGER = Logger.getLogger( BareGitRepository.class );
 
+    private static final String REFERENCE_TMP_REFS = "refs/reference-tmp/";
+
+    private static final int DEFAULT_AUTO_PACK_REFS_THRESHOLD = 1000;
+
     private static ProgressMonitor MONITOR = NullProgressMonitor.INSTANCE;
 
+    private static volatile int autoPackRefsThreshold = DEFAULT_AUTO_PACK_REFS_THRESHOLD;
+
     private final File gitDir;
 
     private final File workDir;
 
-    private final FileRepository repository;
+    private final boolean create;
+
+    private final Object openLock = new Object();
 
-    private final Git git;
+    private volatile FileRepository repository;
+
+    private Git git;
+
+    private final RepositoryHandleCache.Entry cacheEntry;
+
+    private final AtomicBoolean closed = new AtomicBoolean( false );
 
     private FetchResult latestFetch;
 
@@ -89,10 +120,45 @@ public class BareGitRepository
 
     protected BareGitRepository( final File gitDir, final boolean create, final File workDir )
         throws IOException
+    {
+        this( gitDir, workDir, create );
+
+        final FileRepository repo = openRepository( gitDir, create, workDir );
+        git = new Git( repo );
+        repository = repo;
+    }
+
+    /**
+     * Lazy constructor: only records the location. The repository is opened (and created, if necessary) on first
+     * use.
+     */
+    protected BareGitRepository( final File gitDir, final File workDir, final boolean create )
+    {
+        this.gitDir = gitDir;
+        this.workDir = workDir;
+        this.create = create;
+        cacheEntry = null;
+    }
+
+    BareGitRepository( final File gitDir, final File workDir, final RepositoryHandleCache.Entry cacheEntry )
     {
         this.gitDir = gitDir;
         this.workDir = workDir;
+        this.cacheEntry = cacheEntry;
+        create = false;
 
+        git = new Git( cacheEntry.getRepository() );
+        repository = cacheEntry.getRepository();
+    }
+
+    public static BareGitRepository lazy( final File gitDir, final boolean create )
+    {
+        return new BareGitRepository( gitDir, null, create );
+    }
+
+    static FileRepository openRepository( final File gitDir, final boolean create, final File workDir )
+        throws IOException
+    {
         final FileRepositoryBuilder builder = new FileRepositoryBuilder();
         builder.setGitDir( gitDir );
         if ( workDir != null )
@@ -102,7 +168,7 @@ public class BareGitRepository
 
         builder.setup();
 
-        repository = new FileRepository( builder );
+        final FileRepository repository = new FileRepository( builder );
 
         if ( create && !gitDir.exists() )
         {
@@ -124,7 +190,39 @@ public class BareGitRepository
             config.save();
         }
 
-        git = new Git( repository );
+        return repository;
+    }
+
+    public static BareGitRepository openShared( final File gitDir )
+        throws IOException
+    {
+        return RepositoryHandleCache.getInstance().openBare( gitDir, true );
+    }
+
+    public void close()
+    {
+        if ( closed.compareAndSet( false, true ) )
+        {
+            if ( cacheEntry != null )
+            {
+                cacheEntry.release();
+            }
+            else
+            {
+                synchronized ( openLock )
+                {
+                    if ( repository != null )
+                    {
+                        repository.close();
+                    }
+                }
+            }
+        }
+    }
+
+    public final boolean isOpened()
+    {
+        return repository != null;
     }
 
     public static void setProgressMonitor( final ProgressMonitor monitor )
@@ -132,6 +230,15 @@ public class BareGitRepository
         MONITOR = monitor;
     }
 
+    /**
+     * Number of loose refs at which {@link #packRefs()} runs automatically after a ref-writing operation. Zero or
+     * less disables the automatic trigger.
+     */
+    public static void setAutoPackRefsThreshold( final int threshold )
+    {
+        autoPackRefsThreshold = threshold;
+    }
+
     public static BareGitRepository cloneBare( final String remoteUrl, final String remoteName, final File gitDir )
         throws GitWrapException
     {
@@ -141,6 +248,13 @@ public class BareGitRepository
     public static BareGitRepository cloneBare( final String remoteUrl, final String remoteName, final String branch,
                                                final File gitDir )
         throws GitWrapException
+    {
+        return cloneBare( remoteUrl, remoteName, gitDir, new CloneOptions().setBranch( branch ) );
+    }
+
+    public static BareGitRepository cloneBare( final String remoteUrl, final String remoteName, final File gitDir,
+                                               final CloneOptions options )
+        throws GitWrapException
     {
         BareGitRepository gitRepository;
         try
@@ -154,7 +268,7 @@ public class BareGitRepository
                                         e.getMessage() );
         }
 
-        gitRepository.doClone( remoteUrl, remoteName, branch );
+        gitRepository.doClone( remoteUrl, remoteName, options );
 
         return gitRepository;
     }
@@ -162,8 +276,15 @@ public class BareGitRepository
     protected final void doClone( final String remoteUrl, final String remoteName, final String branch )
         throws GitWrapException
     {
-        final FileRepository repository = getRepository();
+        doClone( remoteUrl, remoteName, new CloneOptions().setBranch( branch ) );
+    }
+
+    protected final void doClone( final String remoteUrl, final String remoteName, final CloneOptions options )
+        throws GitWrapException
+    {
+        final FileRepository repository = requireRepository();
 
+        final String branch = options.getBranch();
         final String branchRef = Constants.R_HEADS + ( branch == null ? Constants.MASTER : branch );
 
         try
@@ -175,13 +296,9 @@ public class BareGitRepository
             final RemoteConfig remoteConfig = new RemoteConfig( repository.getConfig(), remoteName );
             remoteConfig.addURI( new URIish( remoteUrl ) );
 
-            final String remoteRef = Constants.R_REMOTES + remoteName;
-
-            RefSpec spec = new RefSpec();
-            spec = spec.setForceUpdate( true );
-            spec = spec.setSourceDestination( Constants.R_HEADS + "*", remoteRef + "/*" );
-
-            remoteConfig.addFetchRefSpec( spec );
+            final FetchRefFilter filter = options.getRefFilter();
+            remoteConfig.setFetchRefSpecs( filter.toRefSpecs( remoteName ) );
+            remoteConfig.setTagOpt( filter.toTagOpt() );
 
             remoteConfig.update( repository.getConfig() );
 
@@ -190,7 +307,35 @@ public class BareGitRepository
 
             repository.getConfig().save();
 
-            fetch( remoteName );
+            if ( options.getReference() != null )
+            {
+                final List<String> tmpRefs = borrowObjects( options.getReference() );
+                try
+                {
+                    fetch( remoteName );
+                }
+                finally
+                {
+                    deleteRefs( tmpRefs );
+                }
+            }
+            else
+            {
+                final File localObjects =
+                    options.isLocal() ? ObjectStoreCopier.findLocalObjectsDir( remoteUrl ) : null;
+                if ( localObjects != null )
+                {
+                    // with every object already present, the fetch below only has to update refs.
+                    final ObjectStoreCopier copier = new ObjectStoreCopier();
+                    copier.copyObjects( localObjects, repository.getObjectsDirectory() );
+
+                    LOGGER.info( "Local clone from: " + remoteUrl + " linked " + copier.getLinkedCount()
+                        + " and copied " + copier.getCopiedCount() + " object files." );
+                }
+
+                fetch( remoteName );
+            }
+
             postClone( remoteUrl, branchRef );
         }
         catch ( final IOException e )
@@ -203,9 +348,136 @@ public class BareGitRepository
         }
     }
 
+    /**
+     * Point this repository's alternates at the reference repository, and mirror the reference's branch and tag
+     * tips as temporary refs so the fetch negotiation advertises them as haves. Returns the temporary ref names.
+     */
+    private List<String> borrowObjects( final File reference )
+        throws GitWrapException, IOException
+    {
+        final FileRepository repository = requireRepository();
+
+        final File referenceObjects = ObjectStoreCopier.findLocalObjectsDir( reference.getPath() );
+        if ( referenceObjects == null )
+        {
+            throw new GitWrapException( "Reference repository: %s is not a local Git repository.", reference );
+        }
+
+        ObjectStoreCopier.writeAlternates( repository.getObjectsDirectory(), referenceObjects );
+        repository.getObjectDatabase().close();
+
+        final List<String> tmpRefs = new ArrayList<String>();
+        final FileRepository referenceRepo = openRepository( referenceObjects.getParentFile(), false, null );
+        try
+        {
+            int i = 0;
+            for ( final Ref ref : referenceRepo.getAllRefs().values() )
+            {
+                final String refName = ref.getName();
+                if ( ref.getObjectId() == null
+                    || !( refName.startsWith( Constants.R_HEADS ) || refName.startsWith( Constants.R_TAGS ) ) )
+                {
+                    continue;
+                }
+
+                final String name = REFERENCE_TMP_REFS + ( i++ );
+                final RefUpdate update = repository.updateRef( name );
+                update.disableRefLog();
+                update.setNewObjectId( ref.getObjectId() );
+                update.forceUpdate();
+
+                tmpRefs.add( name );
+            }
+        }
+        finally
+        {
+            referenceRepo.close();
+        }
+
+        return tmpRefs;
+    }
+
+    private void deleteRefs( final List<String> refNames )
+        throws GitWrapException, IOException
+    {
+        final FileRepository repository = requireRepository();
+        for ( final String name : refNames )
+        {
+            final RefUpdate update = repository.updateRef( name );
+            update.disableRefLog();
+            update.setForceUpdate( true );
+            update.delete();
+        }
+    }
+
+    /**
+     * Copy (or hardlink) everything this repository borrows through <code>objects/info/alternates</code> into its own
+     * object store, then stop borrowing. If any ref tip is unreadable afterwards, the alternates are restored.
+     */
+    public BareGitRepository dissociate()
+        throws GitWrapException
+    {
+        final FileRepository repository = requireRepository();
+        final File objects = repository.getObjectsDirectory();
+
+        try
+        {
+            final File[] alternates = ObjectStoreCopier.readAlternates( objects );
+            if ( alternates.length == 0 )
+            {
+                return this;
+            }
+
+            final Set<File> seen = new HashSet<File>();
+            final LinkedList<File> toCopy = new LinkedList<File>( Arrays.asList( alternates ) );
+            final ObjectStoreCopier copier = new ObjectStoreCopier();
+            while ( !toCopy.isEmpty() )
+            {
+                final File alternate = toCopy.removeFirst();
+                if ( seen.add( alternate ) )
+                {
+                    copier.copyObjects( alternate, objects, false );
+                    toCopy.addAll( Arrays.asList( ObjectStoreCopier.readAlternates( alternate ) ) );
+                }
+            }
+
+            if ( !ObjectStoreCopier.deleteAlternates( objects ) )
+            {
+                throw new GitWrapException( "Cannot remove alternates from: %s", objects );
+            }
+
+            repository.getObjectDatabase().close();
+
+            for ( final Ref ref : repository.getAllRefs().values() )
+            {
+                if ( ref.getObjectId() != null && !repository.hasObject( ref.getObjectId() ) )
+                {
+                    ObjectStoreCopier.writeAlternates( objects, alternates );
+                    repository.getObjectDatabase().close();
+
+                    throw new GitWrapException( "Dissociation failed: %s (%s) is missing after copying from: %s",
+                                                ref.getName(), ref.getObjectId().name(),
+                                                Arrays.toString( alternates ) );
+                }
+            }
+
+            LOGGER.info( "Dissociated: " + getGitDir() + " (" + copier.getLinkedCount() + " linked, "
+                + copier.getCopiedCount() + " copied)" );
+        }
+        catch ( final IOException e )
+        {
+            throw new GitWrapException( "Failed to dissociate: %s from its alternates. Reason: %s", e, getGitDir(),
+                                        e.getMessage() );
+        }
+
+        return this;
+    }
+
     protected void postClone( final String remoteUrl, final String branchRef )
         throws GitWrapException
     {
+        final FileRepository repository = requireRepository();
+
         try
         {
             final FetchResult fetchResult = getLatestFetchResult();
@@ -249,10 +521,22 @@ public class BareGitRepository
     public Set<String> getRefs( final String refPrefix )
         throws GitWrapException
     {
-        Map<String, Ref> refs;
+        final FileRepository repository = requireRepository();
+
+        final Set<String> names;
         try
         {
-            refs = repository.getRefDatabase().getRefs( refPrefix );
+            names = new HashSet<String>( getRefSnapshot().getRefs( refPrefix ).keySet() );
+
+            // the snapshot only holds refs/; like RefDatabase.ALL, everything includes HEAD if it resolves.
+            if ( refPrefix == null || refPrefix.length() == 0 )
+            {
+                final Ref head = repository.getRefDatabase().getRef( Constants.HEAD );
+                if ( head != null && head.getObjectId() != null )
+                {
+                    names.add( Constants.HEAD );
+                }
+            }
         }
         catch ( final IOException e )
         {
@@ -260,12 +544,72 @@ public class BareGitRepository
                                         e.getMessage() );
         }
 
-        return new HashSet<String>( refs.keySet() );
+        return names;
+    }
+
+    /**
+     * Stream refs starting with <code>refPrefix</code>, in name order, optionally filtered by a glob matched against
+     * the rest of the name (e.g. prefix <code>refs/tags/</code>, glob <code>release/**</code>). Return false from the
+     * visitor to stop early.
+     */
+    public BareGitRepository visitRefs( final String refPrefix, final String glob, final RefVisitor visitor )
+        throws GitWrapException
+    {
+        try
+        {
+            getRefSnapshot().visit( refPrefix == null ? "" : refPrefix, glob == null ? null : new RefGlob( glob ),
+                                    visitor );
+        }
+        catch ( final IOException e )
+        {
+            throw new GitWrapException( "Failed to read refs from: %s. Reason: %s", e, getGitDir(), e.getMessage() );
+        }
+
+        return this;
+    }
+
+    /**
+     * Full names of all refs starting with <code>refPrefix</code>, in a compact trie that supports prefix queries such
+     * as <code>names.getNames( "refs/tags/release/" )</code>.
+     */
+    public RefNameTrie getRefNameSet( final String refPrefix )
+        throws GitWrapException
+    {
+        final RefNameTrie names = new RefNameTrie();
+        try
+        {
+            getRefSnapshot().visit( refPrefix == null ? "" : refPrefix, null, new RefVisitor()
+            {
+                public boolean visit( final Ref ref )
+                {
+                    names.add( ref.getName() );
+                    return true;
+                }
+            } );
+        }
+        catch ( final IOException e )
+        {
+            throw new GitWrapException( "Failed to read refs from: %s. Reason: %s", e, getGitDir(), e.getMessage() );
+        }
+
+        return names;
     }
 
     public BareGitRepository fetch( final String remoteName )
         throws GitWrapException
     {
+        return fetch( remoteName, null );
+    }
+
+    /**
+     * Fetch only the branches (and tags, if enabled) selected by the given filter, instead of the remote's
+     * configured ref-specs. Use {@link #restrictRemote(String, FetchRefFilter)} to make the restriction permanent.
+     */
+    public BareGitRepository fetch( final String remoteName, final FetchRefFilter filter )
+        throws GitWrapException
+    {
+        final FileRepository repository = requireRepository();
+
         Transport transport = null;
         try
         {
@@ -275,13 +619,32 @@ public class BareGitRepository
                 throw new GitWrapException( "Remote: %s has no associated URLs.", remoteName );
             }
 
-            if ( remoteConfig.getFetchRefSpecs() == null || remoteConfig.getFetchRefSpecs().isEmpty() )
+            if ( filter == null
+                && ( remoteConfig.getFetchRefSpecs() == null || remoteConfig.getFetchRefSpecs().isEmpty() ) )
             {
                 throw new GitWrapException( "Remote: %s has no associated fetch ref-specs.", remoteName );
             }
 
             transport = Transport.open( repository, remoteConfig );
-            latestFetch = transport.fetch( MONITOR, null );
+            final RefCache.Stamps refStamps = beforeRefUpdate();
+            if ( filter == null )
+            {
+                latestFetch = transport.fetch( MONITOR, null );
+            }
+            else
+            {
+                transport.setTagOpt( filter.toTagOpt() );
+                latestFetch = transport.fetch( MONITOR, filter.toRefSpecs( remoteName ) );
+            }
+
+            final Set<String> updated = new HashSet<String>();
+            for ( final TrackingRefUpdate update : latestFetch.getTrackingRefUpdates() )
+            {
+                updated.add( update.getLocalName() );
+            }
+
+            refsUpdated( refStamps, updated );
+            fetchedCommits( latestFetch.getTrackingRefUpdates() );
         }
         catch ( final URISyntaxException e )
         {
@@ -309,106 +672,275 @@ public class BareGitRepository
         return this;
     }
 
-    public FetchResult getLatestFetchResult()
-    {
-        return latestFetch;
-    }
-
-    public BareGitRepository push( final String name )
+    /**
+     * Replace the remote's fetch ref-specs and tag option with those of the given filter, so subsequent calls to
+     * {@link #fetch(String)} only transfer the selected refs.
+     */
+    public BareGitRepository restrictRemote( final String remoteName, final FetchRefFilter filter )
         throws GitWrapException
     {
+        final FileRepository repository = requireRepository();
+
         try
         {
-            final StoredConfig config = repository.getConfig();
-            final RemoteConfig remote = new RemoteConfig( config, name );
-
-            final List<URIish> pushURIs = remote.getPushURIs();
-            final List<RefSpec> pushRefSpecs = remote.getPushRefSpecs();
-
-            final Collection<RemoteRefUpdate> remoteRefUpdates =
-                Transport.findRemoteRefUpdatesFor( repository, pushRefSpecs, null );
-
-            for ( final URIish uri : pushURIs )
-            {
-                final Collection<RemoteRefUpdate> updates = new ArrayList<RemoteRefUpdate>();
-                for ( final RemoteRefUpdate rru : remoteRefUpdates )
-                {
-                    updates.add( new RemoteRefUpdate( rru, null ) );
-                }
-
-                Transport transport = null;
-                try
-                {
-                    transport = Transport.open( repository, uri );
-                    transport.applyConfig( remote );
-                    final PushResult result = transport.push( MONITOR, updates );
+            final RemoteConfig remoteConfig = new RemoteConfig( repository.getConfig(), remoteName );
+            remoteConfig.setFetchRefSpecs( filter.toRefSpecs( remoteName ) );
+            remoteConfig.setTagOpt( filter.toTagOpt() );
 
-                    if ( result.getMessages().length() > 0 && LOGGER.isDebugEnabled() )
-                    {
-                        LOGGER.debug( result.getMessages() );
-                    }
-                }
-                finally
-                {
-                    if ( transport != null )
-                    {
-                        transport.close();
-                    }
-                }
-            }
-        }
-        catch ( final NotSupportedException e )
-        {
-            throw new GitWrapException( "Cannot push to repository: %s. Transport is not supported.\nNested error: %s",
-                                        e, name, e.getMessage() );
-        }
-        catch ( final TransportException e )
-        {
-            throw new GitWrapException( "Transport failed for repository push: %s.\nNested error: %s", e, name,
-                                        e.getMessage() );
+            remoteConfig.update( repository.getConfig() );
+            repository.getConfig().save();
         }
         catch ( final URISyntaxException e )
         {
-            throw new GitWrapException( "Invalid URI for repository push: %s.\nNested error: %s", e, name,
+            throw new GitWrapException( "Cannot read configuration for remote: %s. Reason: %s", e, remoteName,
                                         e.getMessage() );
         }
         catch ( final IOException e )
         {
-            throw new GitWrapException( "Transport failed for repository push: %s.\nNested error: %s", e, name,
-                                        e.getMessage() );
+            throw new GitWrapException( "Failed to write Git config: %s", e, e.getMessage() );
         }
 
         return this;
     }
 
-    public BareGitRepository setPushTarget( final String name, final String uri, final boolean heads, final boolean tags )
+    /**
+     * Equivalent of <code>git ls-remote</code>: the refs advertised by the remote, keyed by name. No objects are
+     * transferred.
+     */
+    public Map<String, Ref> listRemoteRefs( final String remoteName )
         throws GitWrapException
     {
+        final FileRepository repository = requireRepository();
+
+        Transport transport = null;
+        FetchConnection connection = null;
         try
         {
-            final RemoteConfig remote = new RemoteConfig( repository.getConfig(), name );
-
-            final URIish uriish = new URIish( uri );
-
-            final List<URIish> uris = remote.getURIs();
-            if ( uris == null || !uris.contains( uriish ) )
+            final RemoteConfig remoteConfig = new RemoteConfig( repository.getConfig(), remoteName );
+            if ( remoteConfig.getURIs() == null || remoteConfig.getURIs().isEmpty() )
             {
-                remote.addURI( uriish );
+                throw new GitWrapException( "Remote: %s has no associated URLs.", remoteName );
             }
 
-            final List<URIish> pushURIs = remote.getPushURIs();
-            if ( pushURIs == null || !pushURIs.contains( uriish ) )
-            {
-                remote.addPushURI( uriish );
-            }
+            transport = Transport.open( repository, remoteConfig );
+            connection = transport.openFetch();
 
-            final List<RefSpec> pushRefSpecs = remote.getPushRefSpecs();
-            if ( heads )
-            {
-                final RefSpec headSpec = new RefSpec( "+" + Constants.R_HEADS + "*:" + Constants.R_HEADS + "*" );
-                if ( pushRefSpecs == null || !pushRefSpecs.contains( headSpec ) )
-                {
-                    remote.addPushRefSpec( headSpec );
+            return new TreeMap<String, Ref>( connection.getRefsMap() );
+        }
+        catch ( final URISyntaxException e )
+        {
+            throw new GitWrapException( "Cannot read configuration for remote: %s. Reason: %s", e, remoteName,
+                                        e.getMessage() );
+        }
+        catch ( final NotSupportedException e )
+        {
+            throw new GitWrapException( "Transport not supported for remote: %s. Error was: %s", e, remoteName,
+                                        e.getMessage() );
+        }
+        catch ( final TransportException e )
+        {
+            throw new GitWrapException( "Transport error while listing remote: %s. Error was: %s", e, remoteName,
+                                        e.getMessage() );
+        }
+        finally
+        {
+            if ( connection != null )
+            {
+                connection.close();
+            }
+
+            if ( transport != null )
+            {
+                transport.close();
+            }
+        }
+    }
+
+    /**
+     * Fetch from the remote only if its ref advertisement differs from the last one fetched, or from the local
+     * tracking refs. Returns true if a fetch was performed.
+     */
+    public boolean fetchIfChanged( final String remoteName )
+        throws GitWrapException
+    {
+        final FileRepository repository = requireRepository();
+        final Map<String, Ref> advertised = listRemoteRefs( remoteName );
+
+        try
+        {
+            final RemoteConfig remoteConfig = new RemoteConfig( repository.getConfig(), remoteName );
+
+            final String fingerprint = RemoteFingerprint.of( advertised.values() );
+            if ( fingerprint.equals( RemoteFingerprint.cached( repository, remoteName ) )
+                || RemoteFingerprint.isTracked( repository, remoteConfig, advertised ) )
+            {
+                if ( LOGGER.isDebugEnabled() )
+                {
+                    LOGGER.debug( "Remote: " + remoteName + " is unchanged. Skipping fetch." );
+                }
+
+                return false;
+            }
+
+            fetch( remoteName );
+
+            final String fetched = RemoteFingerprint.of( getLatestFetchResult().getAdvertisedRefs() );
+            repository.getConfig().setString( "remote", remoteName, RemoteFingerprint.CONFIG_KEY, fetched );
+            repository.getConfig().save();
+        }
+        catch ( final URISyntaxException e )
+        {
+            throw new GitWrapException( "Cannot read configuration for remote: %s. Reason: %s", e, remoteName,
+                                        e.getMessage() );
+        }
+        catch ( final IOException e )
+        {
+            throw new GitWrapException( "Failed to compare remote: %s with local refs. Reason: %s", e, remoteName,
+                                        e.getMessage() );
+        }
+
+        return true;
+    }
+
+    public FetchResult getLatestFetchResult()
+    {
+        return latestFetch;
+    }
+
+    public BareGitRepository push( final String name )
+        throws GitWrapException
+    {
+        final FileRepository repository = requireRepository();
+
+        try
+        {
+            final StoredConfig config = repository.getConfig();
+            final RemoteConfig remote = new RemoteConfig( config, name );
+
+            final List<URIish> pushURIs = remote.getPushURIs();
+            final List<RefSpec> pushRefSpecs = remote.getPushRefSpecs();
+
+            final Collection<RemoteRefUpdate> remoteRefUpdates =
+                Transport.findRemoteRefUpdatesFor( repository, pushRefSpecs, null );
+
+            for ( final URIish uri : pushURIs )
+            {
+                pushTo( repository, remote, uri, remoteRefUpdates, MONITOR );
+            }
+        }
+        catch ( final NotSupportedException e )
+        {
+            throw new GitWrapException( "Cannot push to repository: %s. Transport is not supported.\nNested error: %s",
+                                        e, name, e.getMessage() );
+        }
+        catch ( final TransportException e )
+        {
+            throw new GitWrapException( "Transport failed for repository push: %s.\nNested error: %s", e, name,
+                                        e.getMessage() );
+        }
+        catch ( final URISyntaxException e )
+        {
+            throw new GitWrapException( "Invalid URI for repository push: %s.\nNested error: %s", e, name,
+                                        e.getMessage() );
+        }
+        catch ( final IOException e )
+        {
+            throw new GitWrapException( "Transport failed for repository push: %s.\nNested error: %s", e, name,
+                                        e.getMessage() );
+        }
+
+        return this;
+    }
+
+    public MirrorPushResult pushParallel( final String name, final int maxThreads, final PushPolicy policy )
+        throws GitWrapException
+    {
+        final FileRepository repository = requireRepository();
+
+        try
+        {
+            final RemoteConfig remote = new RemoteConfig( repository.getConfig(), name );
+
+            final Collection<RemoteRefUpdate> remoteRefUpdates =
+                Transport.findRemoteRefUpdatesFor( repository, remote.getPushRefSpecs(), null );
+
+            return new MirrorPusher( repository, remote, remoteRefUpdates ).push( maxThreads, policy );
+        }
+        catch ( final URISyntaxException e )
+        {
+            throw new GitWrapException( "Invalid URI for repository push: %s.\nNested error: %s", e, name,
+                                        e.getMessage() );
+        }
+        catch ( final IOException e )
+        {
+            throw new GitWrapException( "Failed to prepare repository push: %s.\nNested error: %s", e, name,
+                                        e.getMessage() );
+        }
+    }
+
+    static PushResult pushTo( final Repository repository, final RemoteConfig remote, final URIish uri,
+                              final Collection<RemoteRefUpdate> remoteRefUpdates, final ProgressMonitor monitor )
+        throws IOException
+    {
+        final Collection<RemoteRefUpdate> updates = new ArrayList<RemoteRefUpdate>();
+        for ( final RemoteRefUpdate rru : remoteRefUpdates )
+        {
+            updates.add( new RemoteRefUpdate( rru, null ) );
+        }
+
+        Transport transport = null;
+        try
+        {
+            transport = Transport.open( repository, uri );
+            transport.applyConfig( remote );
+            final PushResult result = transport.push( monitor, updates );
+
+            if ( result.getMessages().length() > 0 && LOGGER.isDebugEnabled() )
+            {
+                LOGGER.debug( result.getMessages() );
+            }
+
+            return result;
+        }
+        finally
+        {
+            if ( transport != null )
+            {
+                transport.close();
+            }
+        }
+    }
+
+    public BareGitRepository setPushTarget( final String name, final String uri, final boolean heads, final boolean tags )
+        throws GitWrapException
+    {
+        final FileRepository repository = requireRepository();
+
+        try
+        {
+            final RemoteConfig remote = new RemoteConfig( repository.getConfig(), name );
+
+            final URIish uriish = new URIish( uri );
+
+            final List<URIish> uris = remote.getURIs();
+            if ( uris == null || !uris.contains( uriish ) )
+            {
+                remote.addURI( uriish );
+            }
+
+            final List<URIish> pushURIs = remote.getPushURIs();
+            if ( pushURIs == null || !pushURIs.contains( uriish ) )
+            {
+                remote.addPushURI( uriish );
+            }
+
+            final List<RefSpec> pushRefSpecs = remote.getPushRefSpecs();
+            if ( heads )
+            {
+                final RefSpec headSpec = new RefSpec( "+" + Constants.R_HEADS + "*:" + Constants.R_HEADS + "*" );
+                if ( pushRefSpecs == null || !pushRefSpecs.contains( headSpec ) )
+                {
+                    remote.addPushRefSpec( headSpec );
                 }
             }
 
@@ -452,6 +984,8 @@ public class BareGitRepository
                                         final boolean force )
         throws GitWrapException
     {
+        final FileRepository repository = requireRepository();
+
         try
         {
             final ObjectId src = repository.resolve( tagSource );
@@ -482,8 +1016,16 @@ public class BareGitRepository
             tag.setObjectId( src, sourceLoader.getType() );
             tag.setMessage( message );
 
-            final ObjectId tagId = inserter.insert( tag );
-            tag.setTagId( tagId );
+            try
+            {
+                final ObjectId tagId = inserter.insert( tag );
+                inserter.flush();
+                tag.setTagId( tagId );
+            }
+            finally
+            {
+                inserter.release();
+            }
 
             final String refName = Constants.R_TAGS + tag.getTag();
 
@@ -492,7 +1034,9 @@ public class BareGitRepository
             tagRef.setForceUpdate( force );
             tagRef.setRefLogMessage( "Tagging source: " + src.name() + " as " + tagName, false );
 
+            final RefCache.Stamps refStamps = beforeRefUpdate();
             final Result updateResult = tagRef.update();
+            refsUpdated( refStamps, Collections.singleton( refName ) );
 
             switch ( updateResult )
             {
@@ -520,108 +1064,938 @@ public class BareGitRepository
         return this;
     }
 
-    public String getHeadRevision()
+    /**
+     * Create annotated tags for many (tag name -&gt; tag source) pairs at once, sharing one tagger identity and one
+     * new pack for all tag objects. When <code>atomic</code> is true, nothing is written unless every tag validates,
+     * and refs already written are rolled back if a later one fails.
+     */
+    public BatchRefResult createTags( final Map<String, String> tagSources, final String message,
+                                      final boolean force, final boolean atomic )
         throws GitWrapException
     {
+        final FileRepository repository = requireRepository();
+
         try
         {
-            return repository.resolve( Constants.HEAD ).getName();
+            final RefCache.Stamps refStamps = beforeRefUpdate();
+            final BatchRefResult result =
+                new BatchRefCreator( repository, atomic ).createTags( tagSources, message, force );
+            refsUpdated( refStamps, result.getStatuses().keySet() );
+
+            return result;
         }
         catch ( final IOException e )
         {
-            throw new GitWrapException( "Failed to retrieve HEAD revision. Reason: %s", e, e.getMessage() );
+            throw new GitWrapException( "Failed to add tags: %s", e, e.getMessage() );
         }
     }
 
-    public BareGitRepository createBranchFromHead( final String name )
-        throws GitWrapException
-    {
-        return createBranch( Constants.HEAD, name );
-    }
-
-    public BareGitRepository createBranch( final String source, final String name )
+    /**
+     * Open the content of <code>path</code> as of <code>revision</code> (anything {@link Repository#resolve(String)}
+     * accepts: branch, tag, commit id...). Large blobs are inflated incrementally as the stream is read, never held in
+     * memory whole.
+     *
+     * @return the stream, or null if the path doesn't exist (or isn't a file) at that revision.
+     */
+    public InputStream openFile( final String revision, final String path )
         throws GitWrapException
     {
-        final String refName =
-            ( name.startsWith( Constants.R_HEADS ) || name.startsWith( Constants.R_TAGS ) ) ? name : Constants.R_HEADS
-                            + name;
-
+        final FileRepository repository = requireRepository();
+        final ObjectReader reader = repository.newObjectReader();
         try
         {
-            String src;
-            final Ref from = repository.getRef( source );
-
-            if ( LOGGER.isDebugEnabled() )
-            {
-                LOGGER.debug( "Creating branch: " + refName + " from: " + from );
-            }
-
-            final ObjectId startAt = repository.resolve( source + "^0" );
-            if ( from != null )
-            {
-                src = from.getName();
-            }
-            else
+            final ObjectId blob = findBlobs( reader, revision, Collections.singleton( path ) ).get( path );
+            if ( blob == null )
             {
-                src = startAt.name();
+                return null;
             }
-            src = repository.shortenRefName( src );
 
-            if ( !Repository.isValidRefName( refName ) )
+            final BlobCache cache = RepositoryState.of( repository ).getBlobCache();
+            final byte[] cached = cache.getContent( blob );
+            if ( cached != null )
             {
-                throw new GitWrapException( "Invalid branch name: " + refName );
+                return new ByteArrayInputStream( cached );
             }
 
-            if ( repository.resolve( refName ) != null )
+            final ObjectLoader loader = reader.open( blob, Constants.OBJ_BLOB );
+            if ( loader.isLarge() )
             {
-                throw new GitWrapException( "Branch: " + refName + " already exists!" );
+                return loader.openStream();
             }
 
-            final RefUpdate updateRef = repository.updateRef( refName );
-            updateRef.setNewObjectId( startAt );
-            updateRef.setRefLogMessage( "branch: Created from " + source, false );
-            final Result updateResult = updateRef.update();
-
-            if ( updateResult == Result.REJECTED )
-            {
-                throw new GitWrapException( "Branch creation rejected for: %s", refName );
-            }
+            final byte[] content = loader.getCachedBytes();
+            cache.putContent( blob, content );
+            return new ByteArrayInputStream( content );
         }
         catch ( final IOException e )
         {
-            throw new GitWrapException( "Failed to create branch: %s from: %s.\nReason: %s", e, refName, source,
+            throw new GitWrapException( "Failed to read: %s at revision: %s. Reason: %s", e, path, revision,
                                         e.getMessage() );
         }
+        finally
+        {
+            reader.release();
+        }
+    }
 
-        return this;
+    /**
+     * Read the whole content of <code>path</code> as of <code>revision</code>. Use {@link #openFile(String, String)}
+     * for files that may be large.
+     *
+     * @return the content, or null if the path doesn't exist (or isn't a file) at that revision.
+     */
+    public byte[] readFile( final String revision, final String path )
+        throws GitWrapException
+    {
+        return readFiles( revision, Collections.singleton( path ) ).get( path );
     }
 
-    public boolean hasBranch( final String name )
+    /**
+     * Read several files from the same revision, finding all of them in a single walk of its tree.
+     *
+     * @return content by path; paths that don't exist (or aren't files) at that revision are left out.
+     */
+    public Map<String, byte[]> readFiles( final String revision, final Collection<String> paths )
         throws GitWrapException
     {
-        final String refName =
-            ( name.startsWith( Constants.R_HEADS ) || name.startsWith( Constants.R_TAGS ) ) ? name : Constants.R_HEADS
-                            + name;
+        final FileRepository repository = requireRepository();
+        final BlobCache cache = RepositoryState.of( repository ).getBlobCache();
+        final Map<String, byte[]> contents = new TreeMap<String, byte[]>();
 
+        final ObjectReader reader = repository.newObjectReader();
         try
         {
-            return repository.resolve( refName ) != null;
+            for ( final Map.Entry<String, ObjectId> blob : findBlobs( reader, revision, paths ).entrySet() )
+            {
+                byte[] content = cache.getContent( blob.getValue() );
+                if ( content == null )
+                {
+                    final ObjectLoader loader = reader.open( blob.getValue(), Constants.OBJ_BLOB );
+                    content = loader.isLarge() ? readFully( loader ) : loader.getBytes();
+                    cache.putContent( blob.getValue(), content );
+                }
+
+                contents.put( blob.getKey(), content );
+            }
         }
         catch ( final IOException e )
         {
-            throw new GitWrapException( "Failed to resolve branch: %s.\nReason: %s", e, refName, e.getMessage() );
+            throw new GitWrapException( "Failed to read: %s at revision: %s. Reason: %s", e, paths, revision,
+                                        e.getMessage() );
+        }
+        finally
+        {
+            reader.release();
         }
 
+        return contents;
     }
 
-    protected final Git getGit()
+    private Map<String, ObjectId> findBlobs( final ObjectReader reader, final String revision,
+                                             final Collection<String> paths )
+        throws GitWrapException, IOException
     {
-        return git;
-    }
+        final Map<String, ObjectId> blobs = new TreeMap<String, ObjectId>();
+        if ( paths.isEmpty() )
+        {
+            return blobs;
+        }
 
-    protected final FileRepository getRepository()
-    {
-        return repository;
+        final ObjectId id = resolve( revision );
+        if ( id == null )
+        {
+            throw new GitWrapException( "Cannot resolve revision: %s", revision );
+        }
+
+        // objects are immutable, so (commit, path) answers never go stale; only walk for what we haven't seen.
+        final BlobCache cache = RepositoryState.of( requireRepository() ).getBlobCache();
+        final Set<String> wanted = new HashSet<String>();
+        for ( final String path : paths )
+        {
+            final ObjectId blob = cache.getBlobId( id, path );
+            if ( blob == null )
+            {
+                wanted.add( path );
+            }
+            else if ( !ObjectId.zeroId().equals( blob ) )
+            {
+                blobs.put( path, blob );
+            }
+        }
+
+        if ( wanted.isEmpty() )
+        {
+            return blobs;
+        }
+
+        final RevWalk revWalk = new RevWalk( reader );
+        final TreeWalk walk = new TreeWalk( reader );
+        try
+        {
+            walk.addTree( revWalk.parseTree( id ) );
+            walk.setRecursive( true );
+            walk.setFilter( PathFilterGroup.createFromStrings( wanted ) );
+
+            // the filter also matches files below a requested path; only keep exact matches.
+            while ( walk.next() )
+            {
+                final String path = walk.getPathString();
+                if ( wanted.contains( path ) && ( walk.getRawMode( 0 ) & FileMode.TYPE_MASK ) == FileMode.TYPE_FILE )
+                {
+                    blobs.put( path, walk.getObjectId( 0 ) );
+                }
+            }
+        }
+        finally
+        {
+            walk.release();
+            revWalk.release();
+        }
+
+        for ( final String path : wanted )
+        {
+            final ObjectId blob = blobs.get( path );
+            cache.putBlobId( id, path, blob == null ? ObjectId.zeroId() : blob );
+        }
+
+        return blobs;
+    }
+
+    /**
+     * Limits for the per-repository cache behind {@link #readFile(String, String)} and friends: how many
+     * (revision, path) resolutions to remember, the total bytes of blob content to keep, and the largest single blob
+     * worth keeping. Defaults are 50,000 resolutions, 16 MiB, and 64 KiB.
+     */
+    public static void setBlobCacheLimits( final int maxResolutions, final long maxContentBytes, final int maxBlobSize )
+    {
+        BlobCache.setLimits( maxResolutions, maxContentBytes, maxBlobSize );
+    }
+
+    public BlobCacheStats getBlobCacheStats()
+        throws GitWrapException
+    {
+        return RepositoryState.of( requireRepository() ).getBlobCache().getStats();
+    }
+
+    private static byte[] readFully( final ObjectLoader loader )
+        throws IOException
+    {
+        if ( loader.getSize() > Integer.MAX_VALUE )
+        {
+            throw new IOException( "Object too large to read into memory: " + loader.getSize() + " bytes" );
+        }
+
+        final byte[] content = new byte[(int) loader.getSize()];
+        final InputStream in = loader.openStream();
+        try
+        {
+            int off = 0;
+            int n;
+            while ( off < content.length && ( n = in.read( content, off, content.length - off ) ) > 0 )
+            {
+                off += n;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return content;
+    }
+
+    public String getHeadRevision()
+        throws GitWrapException
+    {
+        final FileRepository repository = requireRepository();
+
+        try
+        {
+            return repository.resolve( Constants.HEAD ).getName();
+        }
+        catch ( final IOException e )
+        {
+            throw new GitWrapException( "Failed to retrieve HEAD revision. Reason: %s", e, e.getMessage() );
+        }
+    }
+
+    public BareGitRepository createBranchFromHead( final String name )
+        throws GitWrapException
+    {
+        return createBranch( Constants.HEAD, name );
+    }
+
+    public BareGitRepository createBranch( final String source, final String name )
+        throws GitWrapException
+    {
+        final FileRepository repository = requireRepository();
+
+        final String refName =
+            ( name.startsWith( Constants.R_HEADS ) || name.startsWith( Constants.R_TAGS ) ) ? name : Constants.R_HEADS
+                            + name;
+
+        try
+        {
+            String src;
+            final Ref from = repository.getRef( source );
+
+            if ( LOGGER.isDebugEnabled() )
+            {
+                LOGGER.debug( "Creating branch: " + refName + " from: " + from );
+            }
+
+            final ObjectId startAt = repository.resolve( source + "^0" );
+            if ( from != null )
+            {
+                src = from.getName();
+            }
+            else
+            {
+                src = startAt.name();
+            }
+            src = repository.shortenRefName( src );
+
+            if ( !Repository.isValidRefName( refName ) )
+            {
+                throw new GitWrapException( "Invalid branch name: " + refName );
+            }
+
+            if ( resolve( refName ) != null )
+            {
+                throw new GitWrapException( "Branch: " + refName + " already exists!" );
+            }
+
+            final RefUpdate updateRef = repository.updateRef( refName );
+            updateRef.setNewObjectId( startAt );
+            updateRef.setRefLogMessage( "branch: Created from " + source, false );
+            final RefCache.Stamps refStamps = beforeRefUpdate();
+            final Result updateResult = updateRef.update();
+
+            refsUpdated( refStamps, Collections.singleton( refName ) );
+
+            if ( updateResult == Result.REJECTED )
+            {
+                throw new GitWrapException( "Branch creation rejected for: %s", refName );
+            }
+        }
+        catch ( final IOException e )
+        {
+            throw new GitWrapException( "Failed to create branch: %s from: %s.\nReason: %s", e, refName, source,
+                                        e.getMessage() );
+        }
+
+        return this;
+    }
+
+    /**
+     * Create many (branch name -&gt; source) branches at once. See
+     * {@link #createTags(Map, String, boolean, boolean)} for the meaning of <code>atomic</code>. Unlike
+     * {@link GitRepository#createBranch(String, String)}, nothing is checked out.
+     */
+    public BatchRefResult createBranches( final Map<String, String> branchSources, final boolean atomic )
+        throws GitWrapException
+    {
+        final FileRepository repository = requireRepository();
+
+        try
+        {
+            final RefCache.Stamps refStamps = beforeRefUpdate();
+            final BatchRefResult result = new BatchRefCreator( repository, atomic ).createBranches( branchSources );
+            refsUpdated( refStamps, result.getStatuses().keySet() );
+
+            return result;
+        }
+        catch ( final IOException e )
+        {
+            throw new GitWrapException( "Failed to create branches: %s", e, e.getMessage() );
+        }
+    }
+
+    public boolean hasBranch( final String name )
+        throws GitWrapException
+    {
+        final String refName =
+            ( name.startsWith( Constants.R_HEADS ) || name.startsWith( Constants.R_TAGS ) ) ? name : Constants.R_HEADS
+                            + name;
+
+        try
+        {
+            return resolve( refName ) != null;
+        }
+        catch ( final IOException e )
+        {
+            throw new GitWrapException( "Failed to resolve branch: %s.\nReason: %s", e, refName, e.getMessage() );
+        }
+
+    }
+
+    /**
+     * Start a commit onto <code>branch</code> (short name or full ref) built from in-memory or streamed content,
+     * without a worktree. If this repository has a worktree checked out on that branch, it won't be updated.
+     */
+    public BareCommitBuilder newCommit( final String branch )
+        throws GitWrapException
+    {
+        return new BareCommitBuilder( this, branch );
+    }
+
+    /**
+     * Insert a commit of <code>tree</code> on <code>parent</code> (a commit, or null for a root commit) and move
+     * <code>refName</code> (which may be a symbolic ref like HEAD) to it, as a compare-and-swap against
+     * <code>expectedOld</code>: the update fails if the ref no longer points there, or, for a null
+     * <code>expectedOld</code>, if it has come into existence meanwhile. An existing ref is only moved forward.
+     */
+    final ObjectId commitTree( final ObjectInserter inserter, final String refName, final ObjectId expectedOld,
+                               final ObjectId parent, final ObjectId tree, final String message,
+                               final PersonIdent author )
+        throws GitWrapException, IOException
+    {
+        final FileRepository repository = requireRepository();
+
+        final CommitBuilder commit = new CommitBuilder();
+        commit.setTreeId( tree );
+        if ( parent != null )
+        {
+            commit.setParentId( parent );
+        }
+
+        commit.setAuthor( author );
+        commit.setCommitter( new PersonIdent( repository ) );
+        commit.setMessage( message );
+
+        final ObjectId commitId = inserter.insert( commit );
+        inserter.flush();
+
+        final int eol = message.indexOf( '\n' );
+        final RefUpdate update = repository.updateRef( refName );
+        update.setNewObjectId( commitId );
+        update.setExpectedOldObjectId( expectedOld == null ? ObjectId.zeroId() : expectedOld );
+        update.setRefLogMessage( "commit: " + ( eol < 0 ? message : message.substring( 0, eol ) ), false );
+
+        final RefCache.Stamps refStamps = beforeRefUpdate();
+        final Result result = update.update();
+        refsUpdated( refStamps, Collections.singleton( update.getRef().getLeaf().getName() ) );
+
+        switch ( result )
+        {
+            case NEW:
+            case FAST_FORWARD:
+            {
+                break;
+            }
+            case LOCK_FAILURE:
+            {
+                throw new GitWrapException( "Cannot commit to: %s; it was updated concurrently (expected: %s).",
+                                            refName, expectedOld == null ? "<none>" : expectedOld.name() );
+            }
+            case REJECTED:
+            {
+                throw new GitWrapException( "Cannot commit to: %s; new commit: %s is not a fast-forward of: %s.",
+                                            refName, commitId.name(), expectedOld.name() );
+            }
+            default:
+            {
+                throw new GitWrapException( "Cannot update: %s to new commit: %s. Result: %s", refName,
+                                            commitId.name(), result.name() );
+            }
+        }
+
+        if ( ChangedPathIndex.exists( repository.getDirectory() ) )
+        {
+            final ObjectReader reader = repository.newObjectReader();
+            try
+            {
+                RepositoryState.of( repository ).getChangedPathIndex( repository.getDirectory() )
+                               .update( reader, Collections.singleton( commitId ), Collections.<ObjectId> emptySet() );
+            }
+            catch ( final IOException e )
+            {
+                // the commit is made; path queries will index it themselves.
+                LOGGER.warn( "Failed to index changed paths of: " + commitId.name() + ". Reason: " + e.getMessage(),
+                             e );
+            }
+            finally
+            {
+                reader.release();
+            }
+        }
+
+        return commitId;
+    }
+
+    /**
+     * List commits lazily, newest first; see {@link LogQuery} for the options. The returned log should be closed if it
+     * isn't iterated to the end. To page, set a max count and pass {@link CommitLog#getCursor()} to the next query.
+     * <p>
+     * Path-filtered queries use per-commit changed-path Bloom filters kept in the git directory. They are built on the
+     * first such query and then kept current after commits and fetches.
+     */
+    public CommitLog log( final LogQuery query )
+        throws GitWrapException
+    {
+        final FileRepository repository = requireRepository();
+        try
+        {
+            final List<ObjectId> starts;
+            if ( query.getCursor() != null )
+            {
+                starts = CommitLog.parseCursor( query.getCursor() );
+            }
+            else
+            {
+                final String until = query.getUntil() == null ? Constants.HEAD : query.getUntil();
+                starts = Collections.singletonList( requireRevision( until ) );
+            }
+
+            final List<ObjectId> excluded = new ArrayList<ObjectId>();
+            if ( query.getSince() != null )
+            {
+                excluded.add( requireRevision( query.getSince() ) );
+            }
+
+            ChangedPathIndex changedPaths = null;
+            if ( CommitLog.normalizePath( query.getPath() ) != null )
+            {
+                // bring the filters up to date first; only the first query on a large history pays for building them.
+                changedPaths = RepositoryState.of( repository ).getChangedPathIndex( repository.getDirectory() );
+                final ObjectReader reader = repository.newObjectReader();
+                try
+                {
+                    changedPaths.update( reader, starts, excluded );
+                }
+                finally
+                {
+                    reader.release();
+                }
+            }
+
+            return new CommitLog( repository, starts, excluded, query, changedPaths );
+        }
+        catch ( final IOException e )
+        {
+            throw new GitWrapException( "Failed to read history in: %s. Reason: %s", e, gitDir, e.getMessage() );
+        }
+    }
+
+    private ObjectId requireRevision( final String revision )
+        throws GitWrapException, IOException
+    {
+        final ObjectId id = resolve( revision );
+        if ( id == null )
+        {
+            throw new GitWrapException( "Cannot resolve revision: %s", revision );
+        }
+
+        return id;
+    }
+
+    /**
+     * True if <code>ancestor</code> is reachable from <code>descendant</code> by following parents (a commit counts as
+     * its own ancestor). Both revisions are peeled to commits. Backed by the commit-graph index; see
+     * {@link #mergeBase(String, String)}.
+     */
+    public boolean isAncestor( final String ancestor, final String descendant )
+        throws GitWrapException
+    {
+        final FileRepository repository = requireRepository();
+        final ObjectReader reader = repository.newObjectReader();
+        try
+        {
+            return getCommitGraph().isAncestor( reader, resolveCommit( reader, ancestor ),
+                                                resolveCommit( reader, descendant ) );
+        }
+        catch ( final IOException e )
+        {
+            throw new GitWrapException( "Failed to check ancestry of: %s and %s. Reason: %s", e, ancestor, descendant,
+                                        e.getMessage() );
+        }
+        finally
+        {
+            reader.release();
+        }
+    }
+
+    /**
+     * Best common ancestor of two revisions, or null if their histories are unrelated.
+     * <p>
+     * Ancestry queries use a commit-graph index (parent links and generation numbers) kept in the git directory. It is
+     * built on first use, extended with any commit a query hasn't seen yet, and updated after each
+     * {@link #fetch(String)} once it exists.
+     */
+    public String mergeBase( final String a, final String b )
+        throws GitWrapException
+    {
+        final FileRepository repository = requireRepository();
+        final ObjectReader reader = repository.newObjectReader();
+        try
+        {
+            final ObjectId base = getCommitGraph().mergeBase( reader, resolveCommit( reader, a ),
+                                                              resolveCommit( reader, b ) );
+            return base == null ? null : base.name();
+        }
+        catch ( final IOException e )
+        {
+            throw new GitWrapException( "Failed to find merge base of: %s and %s. Reason: %s", e, a, b,
+                                        e.getMessage() );
+        }
+        finally
+        {
+            reader.release();
+        }
+    }
+
+    /**
+     * Names of the tags whose (peeled) commit contains <code>revision</code>, like <code>git tag --contains</code>.
+     * Tags that don't point at commits are skipped.
+     */
+    public Set<String> getTagsContaining( final String revision )
+        throws GitWrapException
+    {
+        return getRefsContaining( Constants.R_TAGS, revision );
+    }
+
+    /**
+     * Names of the local branches that contain <code>revision</code>, like <code>git branch --contains</code>.
+     */
+    public Set<String> getBranchesContaining( final String revision )
+        throws GitWrapException
+    {
+        return getRefsContaining( Constants.R_HEADS, revision );
+    }
+
+    private Set<String> getRefsContaining( final String refPrefix, final String revision )
+        throws GitWrapException
+    {
+        final FileRepository repository = requireRepository();
+        final Set<String> names = new HashSet<String>();
+
+        final ObjectReader reader = repository.newObjectReader();
+        final RevWalk revWalk = new RevWalk( reader );
+        try
+        {
+            final ObjectId commit = resolveCommit( reader, revision );
+
+            final Map<String, ObjectId> tips = new TreeMap<String, ObjectId>();
+            for ( final Map.Entry<String, Ref> ref : getRefSnapshot().getRefs( refPrefix ).entrySet() )
+            {
+                final RevObject tip = revWalk.peel( revWalk.parseAny( ref.getValue().getObjectId() ) );
+                if ( tip instanceof RevCommit )
+                {
+                    tips.put( ref.getKey(), tip.copy() );
+                }
+            }
+
+            // index every tip in one pass, then each check only walks down to the commit's generation.
+            final CommitGraph graph = getCommitGraph();
+            graph.ensure( reader, tips.values() );
+            for ( final Map.Entry<String, ObjectId> tip : tips.entrySet() )
+            {
+                if ( graph.isAncestor( reader, commit, tip.getValue() ) )
+                {
+                    names.add( tip.getKey() );
+                }
+            }
+        }
+        catch ( final IOException e )
+        {
+            throw new GitWrapException( "Failed to find refs containing: %s in: %s. Reason: %s", e, revision, gitDir,
+                                        e.getMessage() );
+        }
+        finally
+        {
+            revWalk.release();
+            reader.release();
+        }
+
+        return names;
+    }
+
+    private ObjectId resolveCommit( final ObjectReader reader, final String revision )
+        throws GitWrapException, IOException
+    {
+        final ObjectId id = requireRevision( revision );
+
+        final RevWalk revWalk = new RevWalk( reader );
+        try
+        {
+            return revWalk.parseCommit( id ).copy();
+        }
+        finally
+        {
+            revWalk.release();
+        }
+    }
+
+    final CommitGraph getCommitGraph()
+        throws GitWrapException
+    {
+        final FileRepository repository = requireRepository();
+        return RepositoryState.of( repository ).getCommitGraph( repository.getDirectory() );
+    }
+
+    // keep existing history indexes current, so the next query doesn't have to walk the new history.
+    private void fetchedCommits( final Collection<TrackingRefUpdate> updates )
+        throws GitWrapException
+    {
+        final FileRepository repository = requireRepository();
+        final File dir = repository.getDirectory();
+        if ( updates.isEmpty() || !( CommitGraph.exists( dir ) || ChangedPathIndex.exists( dir ) ) )
+        {
+            return;
+        }
+
+        final ObjectReader reader = repository.newObjectReader();
+        final RevWalk revWalk = new RevWalk( reader );
+        try
+        {
+            final List<ObjectId> commits = new ArrayList<ObjectId>();
+            for ( final TrackingRefUpdate update : updates )
+            {
+                final ObjectId id = update.getNewObjectId();
+                if ( id != null && !ObjectId.zeroId().equals( id ) )
+                {
+                    final RevObject tip = revWalk.peel( revWalk.parseAny( id ) );
+                    if ( tip instanceof RevCommit )
+                    {
+                        commits.add( tip.copy() );
+                    }
+                }
+            }
+
+            if ( CommitGraph.exists( dir ) )
+            {
+                getCommitGraph().ensure( reader, commits );
+            }
+
+            if ( ChangedPathIndex.exists( dir ) )
+            {
+                RepositoryState.of( repository ).getChangedPathIndex( dir )
+                               .update( reader, commits, Collections.<ObjectId> emptySet() );
+            }
+        }
+        catch ( final IOException e )
+        {
+            // the fetch itself succeeded; queries will index whatever is missing.
+            LOGGER.warn( "Failed to update history indexes in: " + gitDir + ". Reason: " + e.getMessage(), e );
+        }
+        finally
+        {
+            revWalk.release();
+            reader.release();
+        }
+    }
+
+    /**
+     * Resolve a revision. Fully-qualified ref names (<code>refs/...</code>) are served from the shared ref snapshot;
+     * anything else goes through {@link Repository#resolve(String)}.
+     */
+    protected final ObjectId resolve( final String revision )
+        throws GitWrapException, IOException
+    {
+        if ( revision.startsWith( Constants.R_REFS ) && Repository.isValidRefName( revision ) )
+        {
+            final Ref ref = getRefSnapshot().getRef( revision );
+            return ref == null ? null : ref.getObjectId();
+        }
+
+        return requireRepository().resolve( revision );
+    }
+
+    final RefCache.Snapshot getRefSnapshot()
+        throws GitWrapException, IOException
+    {
+        final FileRepository repository = requireRepository();
+        return RepositoryState.of( repository ).getRefCache().get( repository );
+    }
+
+    /**
+     * Fold every loose ref into <code>packed-refs</code> (with peeled values for annotated tags), then delete the loose
+     * files that still match. Runs automatically once the loose-ref count passes
+     * {@link #setAutoPackRefsThreshold(int)}.
+     */
+    public BareGitRepository packRefs()
+        throws GitWrapException
+    {
+        final FileRepository repository = requireRepository();
+        final RepositoryState state = RepositoryState.of( repository );
+
+        synchronized ( state )
+        {
+            try
+            {
+                new RefPacker( repository ).pack();
+            }
+            catch ( final IOException e )
+            {
+                throw new GitWrapException( "Failed to pack refs in: %s. Reason: %s", e, gitDir, e.getMessage() );
+            }
+            finally
+            {
+                state.getRefCache().invalidate();
+                state.refsPacked( new File( repository.getDirectory(), Constants.R_REFS ) );
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * Run {@link #maintain(long, long)} with the default prune grace period (14 days) and reflog expiry (90 days).
+     */
+    public MaintenanceResult maintain()
+        throws GitWrapException
+    {
+        return maintain( RepositoryMaintenance.DEFAULT_PRUNE_GRACE, RepositoryMaintenance.DEFAULT_REFLOG_EXPIRY );
+    }
+
+    /**
+     * Pack refs, expire reflog entries older than <code>reflogExpiry</code>, repack all reachable objects into one
+     * pack, and delete loose objects that are packed or are unreachable and older than <code>pruneGrace</code> (both in
+     * milliseconds). Safe to run while other handles are reading the repository.
+     */
+    public MaintenanceResult maintain( final long pruneGrace, final long reflogExpiry )
+        throws GitWrapException
+    {
+        final FileRepository repository = requireRepository();
+
+        synchronized ( RepositoryState.of( repository ) )
+        {
+            packRefs();
+
+            try
+            {
+                return new RepositoryMaintenance( repository, pruneGrace, reflogExpiry ).run();
+            }
+            catch ( final IOException e )
+            {
+                throw new GitWrapException( "Maintenance failed in: %s. Reason: %s", e, gitDir, e.getMessage() );
+            }
+        }
+    }
+
+    /**
+     * Cheap check, in the spirit of <code>git gc --auto</code>: true if the estimated number of loose objects or the
+     * number of packs has reached the given limit. A limit of zero or less is ignored.
+     */
+    public boolean needsMaintenance( final int looseObjectLimit, final int packLimit )
+        throws GitWrapException
+    {
+        final File objectsDir = requireRepository().getObjectsDirectory();
+
+        return ( looseObjectLimit > 0 && RepositoryMaintenance.estimateLooseObjects( objectsDir ) >= looseObjectLimit )
+            || ( packLimit > 0 && RepositoryMaintenance.countPacks( objectsDir ) >= packLimit );
+    }
+
+    /**
+     * Call right before writing refs, and pass the result to {@link #refsUpdated(RefCache.Stamps, Collection)}.
+     */
+    final RefCache.Stamps beforeRefUpdate()
+        throws GitWrapException
+    {
+        final FileRepository repository = requireRepository();
+        return RepositoryState.of( repository ).getRefCache().beforeUpdate( repository );
+    }
+
+    final void refsUpdated( final RefCache.Stamps before, final Collection<String> refNames )
+        throws GitWrapException
+    {
+        final FileRepository repository = requireRepository();
+        final RepositoryState state = RepositoryState.of( repository );
+        state.getRefCache().updated( repository, before, refNames );
+
+        final int threshold = autoPackRefsThreshold;
+        if ( threshold <= 0 || refNames.isEmpty() )
+        {
+            return;
+        }
+
+        final File refsDir = new File( repository.getDirectory(), Constants.R_REFS );
+        if ( state.looseRefsWritten( refsDir, refNames.size() ) >= threshold )
+        {
+            try
+            {
+                packRefs();
+            }
+            catch ( final GitWrapException e )
+            {
+                // the refs themselves were written; packing is only an optimization.
+                LOGGER.warn( "Automatic pack-refs failed in: " + gitDir + ". Reason: " + e.getMessage(), e );
+            }
+        }
+    }
+
+    /**
+     * The Git facade, opening the repository first if this handle is lazy. A failure to open surfaces as an
+     * {@link IllegalStateException}; use {@link #requireGit()} to get a {@link GitWrapException} instead.
+     */
+    protected final Git getGit()
+    {
+        try
+        {
+            return requireGit();
+        }
+        catch ( final GitWrapException e )
+        {
+            throw new IllegalStateException( e.getMessage(), e );
+        }
+    }
+
+    /**
+     * The jGit repository, opening it first if this handle is lazy. A failure to open surfaces as an
+     * {@link IllegalStateException}; use {@link #requireRepository()} to get a {@link GitWrapException} instead.
+     */
+    protected final FileRepository getRepository()
+    {
+        try
+        {
+            return requireRepository();
+        }
+        catch ( final GitWrapException e )
+        {
+            throw new IllegalStateException( e.getMessage(), e );
+        }
+    }
+
+    protected final Git requireGit()
+        throws GitWrapException
+    {
+        requireRepository();
+        return git;
+    }
+
+    protected final FileRepository requireRepository()
+        throws GitWrapException
+    {
+        FileRepository repo = repository;
+        if ( repo == null )
+        {
+            synchronized ( openLock )
+            {
+                repo = repository;
+                if ( repo == null )
+                {
+                    if ( closed.get() )
+                    {
+                        throw new GitWrapException( "Repository handle is closed: %s", gitDir );
+                    }
+
+                    try
+                    {
+                        repo = openRepository( gitDir, create, workDir );
+                    }
+                    catch ( final IOException e )
+                    {
+                        throw new GitWrapException( "Cannot open Git repository in: %s. Reason: %s", e, gitDir,
+                                                    e.getMessage() );
+                    }
+
+                    git = new Git( repo );
+                    repository = repo;
+                }
+            }
+        }
+
+        return repo;
     }
 
     public final File getGitDir()
@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.RefUpdate.Result;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TagBuilder;
+import org.eclipse.jgit.storage.file.FileRepository;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates many tags or branches in one pass: sources are resolved once each, annotated tag objects go into a single
+ * pack, and all refs are validated before any is written. jGit 0.9 has no batched ref transaction, so refs are then
+ * written one {@link RefUpdate} at a time; in atomic mode, a failure part-way through rolls back the refs already
+ * written.
+ */
+final class BatchRefCreator
+{
+
+    private final FileRepository repository;
+
+    private final boolean atomic;
+
+    private final BatchRefResult result = new BatchRefResult();
+
+    private final Map<String, ObjectId> resolved = new HashMap<String, ObjectId>();
+
+    BatchRefCreator( final FileRepository repository, final boolean atomic )
+    {
+        this.repository = repository;
+        this.atomic = atomic;
+    }
+
+    BatchRefResult createTags( final Map<String, String> tagSources, final String message, final boolean force )
+        throws IOException
+    {
+        final Map<String, Ref> existing = repository.getRefDatabase().getRefs( Constants.R_TAGS );
+
+        // every ref gets a placeholder status up front, so results keep the caller's order whenever they're decided.
+        final Map<String, ObjectId> targets = new LinkedHashMap<String, ObjectId>();
+        final Map<String, String> sourceNames = new HashMap<String, String>();
+        for ( final Map.Entry<String, String> entry : tagSources.entrySet() )
+        {
+            final String tagName = entry.getKey();
+            final String refName = tagName.startsWith( Constants.R_TAGS ) ? tagName : Constants.R_TAGS + tagName;
+            result.set( refName, BatchRefStatus.NOT_ATTEMPTED );
+
+            if ( !Repository.isValidRefName( refName ) )
+            {
+                result.fail( refName, BatchRefStatus.INVALID, "Invalid tag name: " + tagName );
+                continue;
+            }
+
+            final ObjectId src = resolve( entry.getValue() );
+            if ( src == null )
+            {
+                result.fail( refName, BatchRefStatus.INVALID, "Cannot resolve tag-source: " + entry.getValue() );
+            }
+            else if ( !force && existing.containsKey( refName.substring( Constants.R_TAGS.length() ) ) )
+            {
+                result.fail( refName, BatchRefStatus.REJECTED, "Tag already exists: " + tagName );
+            }
+            else
+            {
+                targets.put( refName, src );
+                sourceNames.put( refName, entry.getValue() );
+            }
+        }
+
+        if ( abandonIfFailed( targets ) )
+        {
+            return result;
+        }
+
+        final Map<String, ObjectId> tagIds = new LinkedHashMap<String, ObjectId>();
+        final Map<ObjectId, Integer> types = new HashMap<ObjectId, Integer>();
+        final PersonIdent tagger = new PersonIdent( repository );
+
+        final PackInserter inserter = new PackInserter( repository );
+        try
+        {
+            for ( final Map.Entry<String, ObjectId> entry : targets.entrySet() )
+            {
+                final ObjectId src = entry.getValue();
+
+                Integer type = types.get( src );
+                if ( type == null )
+                {
+                    type = repository.open( src ).getType();
+                    types.put( src, type );
+                }
+
+                final TagBuilder tag = new TagBuilder();
+                tag.setTag( entry.getKey().substring( Constants.R_TAGS.length() ) );
+                tag.setTagger( tagger );
+                tag.setObjectId( src, type );
+                tag.setMessage( message );
+
+                tagIds.put( entry.getKey(), inserter.insert( tag ) );
+            }
+
+            inserter.flush();
+        }
+        finally
+        {
+            inserter.release();
+        }
+
+        final Map<String, String> reflogMessages = new HashMap<String, String>();
+        for ( final Map.Entry<String, ObjectId> entry : targets.entrySet() )
+        {
+            reflogMessages.put( entry.getKey(), "Tagging source: " + entry.getValue().name() + " as "
+                + entry.getKey().substring( Constants.R_TAGS.length() ) );
+        }
+
+        apply( tagIds, force, reflogMessages );
+
+        return result;
+    }
+
+    BatchRefResult createBranches( final Map<String, String> branchSources )
+        throws IOException
+    {
+        final Map<String, Ref> existing = repository.getRefDatabase().getRefs( Constants.R_HEADS );
+
+        final Map<String, ObjectId> targets = new LinkedHashMap<String, ObjectId>();
+        final Map<String, String> reflogMessages = new HashMap<String, String>();
+        for ( final Map.Entry<String, String> entry : branchSources.entrySet() )
+        {
+            final String name = entry.getKey();
+            final String refName =
+                ( name.startsWith( Constants.R_HEADS ) || name.startsWith( Constants.R_TAGS ) ) ? name
+                                : Constants.R_HEADS + name;
+            result.set( refName, BatchRefStatus.NOT_ATTEMPTED );
+
+            if ( !Repository.isValidRefName( refName ) )
+            {
+                result.fail( refName, BatchRefStatus.INVALID, "Invalid branch name: " + refName );
+                continue;
+            }
+
+            final boolean exists;
+            if ( refName.startsWith( Constants.R_HEADS ) )
+            {
+                exists = existing.containsKey( refName.substring( Constants.R_HEADS.length() ) );
+            }
+            else
+            {
+                exists = repository.resolve( refName ) != null;
+            }
+
+            final ObjectId startAt = resolve( entry.getValue() + "^0" );
+            if ( startAt == null )
+            {
+                result.fail( refName, BatchRefStatus.INVALID, "Cannot resolve branch source: " + entry.getValue() );
+            }
+            else if ( exists )
+            {
+                result.fail( refName, BatchRefStatus.REJECTED, "Branch: " + refName + " already exists!" );
+            }
+            else
+            {
+                targets.put( refName, startAt );
+                reflogMessages.put( refName, "branch: Created from " + entry.getValue() );
+            }
+        }
+
+        if ( !abandonIfFailed( targets ) )
+        {
+            apply( targets, false, reflogMessages );
+        }
+
+        return result;
+    }
+
+    private ObjectId resolve( final String revision )
+        throws IOException
+    {
+        if ( resolved.containsKey( revision ) )
+        {
+            return resolved.get( revision );
+        }
+
+        final ObjectId id = repository.resolve( revision );
+        resolved.put( revision, id );
+
+        return id;
+    }
+
+    private boolean abandonIfFailed( final Map<String, ObjectId> targets )
+    {
+        if ( atomic && !result.isSuccessful() )
+        {
+            for ( final String refName : targets.keySet() )
+            {
+                result.set( refName, BatchRefStatus.NOT_ATTEMPTED );
+            }
+
+            return true;
+        }
+
+        return false;
+    }
+
+    private void apply( final Map<String, ObjectId> updates, final boolean force,
+                        final Map<String, String> reflogMessages )
+        throws IOException
+    {
+        final List<String> applied = new ArrayList<String>();
+        final Map<String, ObjectId> oldIds = new HashMap<String, ObjectId>();
+
+        for ( final Map.Entry<String, ObjectId> entry : updates.entrySet() )
+        {
+            final String refName = entry.getKey();
+            if ( atomic && !result.isSuccessful() )
+            {
+                result.set( refName, BatchRefStatus.NOT_ATTEMPTED );
+                continue;
+            }
+
+            final RefUpdate update = repository.updateRef( refName );
+            update.setNewObjectId( entry.getValue() );
+            update.setForceUpdate( force );
+            update.setRefLogMessage( reflogMessages.get( refName ), false );
+
+            final Result updateResult = update.update();
+            switch ( updateResult )
+            {
+                case NEW:
+                {
+                    result.set( refName, BatchRefStatus.CREATED );
+                    break;
+                }
+                case FORCED:
+                case FAST_FORWARD:
+                {
+                    result.set( refName, BatchRefStatus.UPDATED );
+                    break;
+                }
+                case NO_CHANGE:
+                {
+                    result.set( refName, BatchRefStatus.NO_CHANGE );
+                    break;
+                }
+                case REJECTED:
+                {
+                    result.fail( refName, BatchRefStatus.REJECTED, "Ref already exists: " + refName );
+                    break;
+                }
+                default:
+                {
+                    result.fail( refName, BatchRefStatus.LOCK_FAILURE, "Cannot lock ref: " + refName + " (result: "
+                        + updateResult + ")" );
+                }
+            }
+
+            if ( result.getStatus( refName ).isSuccessful() )
+            {
+                applied.add( refName );
+                oldIds.put( refName, update.getOldObjectId() );
+            }
+        }
+
+        if ( atomic && !result.isSuccessful() )
+        {
+            rollback( applied, oldIds );
+        }
+    }
+
+    private void rollback( final List<String> applied, final Map<String, ObjectId> oldIds )
+        throws IOException
+    {
+        for ( final String refName : applied )
+        {
+            final RefUpdate update = repository.updateRef( refName );
+            update.setForceUpdate( true );
+            update.setRefLogMessage( "Rolling back failed batch update", false );
+
+            final ObjectId old = oldIds.get( refName );
+            final Result undo;
+            if ( old == null || ObjectId.zeroId().equals( old ) )
+            {
+                undo = update.delete();
+            }
+            else
+            {
+                update.setNewObjectId( old );
+                undo = update.forceUpdate();
+            }
+
+            if ( undo == Result.FORCED || undo == Result.NO_CHANGE || undo == Result.NEW )
+            {
+                result.set( refName, BatchRefStatus.ROLLED_BACK );
+            }
+            else
+            {
+                result.fail( refName, BatchRefStatus.LOCK_FAILURE, "Rollback failed for: " + refName + " (result: "
+                    + undo + ")" );
+            }
+        }
+    }
+
+}
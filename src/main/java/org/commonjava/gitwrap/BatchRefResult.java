@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public final class BatchRefResult
+{
+
+    private final Map<String, BatchRefStatus> statuses = new LinkedHashMap<String, BatchRefStatus>();
+
+    private final Map<String, String> messages = new LinkedHashMap<String, String>();
+
+    BatchRefResult()
+    {
+    }
+
+    /**
+     * Status for each ref in the batch, keyed by full ref name, in the order they were given.
+     */
+    public Map<String, BatchRefStatus> getStatuses()
+    {
+        return Collections.unmodifiableMap( statuses );
+    }
+
+    public BatchRefStatus getStatus( final String refName )
+    {
+        return statuses.get( refName );
+    }
+
+    /**
+     * Failure reasons, keyed by full ref name, for refs whose status is not successful.
+     */
+    public Map<String, String> getFailures()
+    {
+        return Collections.unmodifiableMap( messages );
+    }
+
+    public boolean isSuccessful()
+    {
+        return messages.isEmpty();
+    }
+
+    void set( final String refName, final BatchRefStatus status )
+    {
+        statuses.put( refName, status );
+    }
+
+    void fail( final String refName, final BatchRefStatus status, final String message )
+    {
+        statuses.put( refName, status );
+        messages.put( refName, message );
+    }
+
+    @Override
+    public String toString()
+    {
+        return "BatchRefResult [statuses=" + statuses + ", failures=" + messages + "]";
+    }
+
+}
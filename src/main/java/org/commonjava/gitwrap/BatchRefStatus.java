@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+public enum BatchRefStatus
+{
+
+    CREATED( true ),
+    UPDATED( true ),
+    NO_CHANGE( true ),
+    INVALID( false ),
+    REJECTED( false ),
+    LOCK_FAILURE( false ),
+    NOT_ATTEMPTED( false ),
+    ROLLED_BACK( false );
+
+    private final boolean successful;
+
+    private BatchRefStatus( final boolean successful )
+    {
+        this.successful = successful;
+    }
+
+    public boolean isSuccessful()
+    {
+        return successful;
+    }
+
+}
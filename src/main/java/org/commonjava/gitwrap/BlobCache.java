@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Per-repository memo of (commit, path) to blob id, plus the content of small blobs. Everything cached is keyed by
+ * object id and so never goes stale; entries only leave through LRU eviction, by count for path resolutions and by
+ * total size for contents. A path known to be absent at a commit is cached too, as the zero id.
+ * <p>
+ * Content arrays are copied in and out, so callers can't corrupt the cache.
+ */
+final class BlobCache
+{
+
+    private static volatile int maxResolutions = 50000;
+
+    private static volatile long maxContentBytes = 16 * 1024 * 1024;
+
+    private static volatile int maxBlobSize = 64 * 1024;
+
+    private final LinkedHashMap<PathKey, ObjectId> resolutions =
+        new LinkedHashMap<PathKey, ObjectId>( 16, 0.75f, true );
+
+    private final LinkedHashMap<ObjectId, byte[]> contents = new LinkedHashMap<ObjectId, byte[]>( 16, 0.75f, true );
+
+    private long contentBytes;
+
+    private long resolutionHits;
+
+    private long resolutionMisses;
+
+    private long contentHits;
+
+    private long contentMisses;
+
+    private long evictions;
+
+    static void setLimits( final int maxResolutions, final long maxContentBytes, final int maxBlobSize )
+    {
+        BlobCache.maxResolutions = maxResolutions;
+        BlobCache.maxContentBytes = maxContentBytes;
+        BlobCache.maxBlobSize = maxBlobSize;
+    }
+
+    /**
+     * @return the blob id, {@link ObjectId#zeroId()} if the path is known to be absent, or null if not cached.
+     */
+    synchronized ObjectId getBlobId( final AnyObjectId commit, final String path )
+    {
+        final ObjectId blob = resolutions.get( new PathKey( commit, path ) );
+        if ( blob == null )
+        {
+            resolutionMisses++;
+        }
+        else
+        {
+            resolutionHits++;
+        }
+
+        return blob;
+    }
+
+    synchronized void putBlobId( final AnyObjectId commit, final String path, final ObjectId blob )
+    {
+        resolutions.put( new PathKey( commit, path ), blob );
+
+        final Iterator<PathKey> it = resolutions.keySet().iterator();
+        while ( resolutions.size() > maxResolutions && it.hasNext() )
+        {
+            it.next();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    synchronized byte[] getContent( final AnyObjectId blob )
+    {
+        final byte[] content = contents.get( blob );
+        if ( content == null )
+        {
+            contentMisses++;
+            return null;
+        }
+
+        contentHits++;
+        return content.clone();
+    }
+
+    synchronized void putContent( final AnyObjectId blob, final byte[] content )
+    {
+        if ( content.length > maxBlobSize )
+        {
+            return;
+        }
+
+        final byte[] old = contents.put( blob.copy(), content.clone() );
+        contentBytes += content.length - ( old == null ? 0 : old.length );
+
+        final Iterator<byte[]> it = contents.values().iterator();
+        while ( contentBytes > maxContentBytes && it.hasNext() )
+        {
+            contentBytes -= it.next().length;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    synchronized BlobCacheStats getStats()
+    {
+        return new BlobCacheStats( resolutionHits, resolutionMisses, contentHits, contentMisses, evictions,
+                                   resolutions.size(), contents.size(), contentBytes );
+    }
+
+    private static final class PathKey
+    {
+        private final ObjectId commit;
+
+        private final String path;
+
+        PathKey( final AnyObjectId commit, final String path )
+        {
+            this.commit = commit.copy();
+            this.path = path;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * commit.hashCode() + path.hashCode();
+        }
+
+        @Override
+        public boolean equals( final Object obj )
+        {
+            if ( this == obj )
+            {
+                return true;
+            }
+
+            if ( !( obj instanceof PathKey ) )
+            {
+                return false;
+            }
+
+            final PathKey other = (PathKey) obj;
+            return commit.equals( other.commit ) && path.equals( other.path );
+        }
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+/**
+ * Point-in-time counters for a repository's (commit, path) and small-blob cache. Path resolutions and content lookups
+ * are counted separately; {@link #getHits()} and {@link #getMisses()} are their sums.
+ */
+public final class BlobCacheStats
+{
+
+    private final long resolutionHits;
+
+    private final long resolutionMisses;
+
+    private final long contentHits;
+
+    private final long contentMisses;
+
+    private final long evictions;
+
+    private final int resolutionCount;
+
+    private final int contentCount;
+
+    private final long contentBytes;
+
+    BlobCacheStats( final long resolutionHits, final long resolutionMisses, final long contentHits,
+                    final long contentMisses, final long evictions, final int resolutionCount, final int contentCount,
+                    final long contentBytes )
+    {
+        this.resolutionHits = resolutionHits;
+        this.resolutionMisses = resolutionMisses;
+        this.contentHits = contentHits;
+        this.contentMisses = contentMisses;
+        this.evictions = evictions;
+        this.resolutionCount = resolutionCount;
+        this.contentCount = contentCount;
+        this.contentBytes = contentBytes;
+    }
+
+    public long getHits()
+    {
+        return resolutionHits + contentHits;
+    }
+
+    public long getMisses()
+    {
+        return resolutionMisses + contentMisses;
+    }
+
+    public long getResolutionHits()
+    {
+        return resolutionHits;
+    }
+
+    public long getResolutionMisses()
+    {
+        return resolutionMisses;
+    }
+
+    public long getContentHits()
+    {
+        return contentHits;
+    }
+
+    public long getContentMisses()
+    {
+        return contentMisses;
+    }
+
+    public long getEvictions()
+    {
+        return evictions;
+    }
+
+    public int getResolutionCount()
+    {
+        return resolutionCount;
+    }
+
+    public int getContentCount()
+    {
+        return contentCount;
+    }
+
+    public long getContentBytes()
+    {
+        return contentBytes;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "BlobCacheStats [resolutions=" + resolutionCount + " (hits=" + resolutionHits + ", misses="
+                        + resolutionMisses + "), contents=" + contentCount + " (" + contentBytes + " bytes, hits="
+                        + contentHits + ", misses=" + contentMisses + "), evictions=" + evictions + "]";
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.storage.file.FileRepository;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashes and deflates worktree files into loose blobs on a pool of workers, each with its own
+ * {@link ObjectInserter}. Files are streamed through a fixed-size buffer, so memory use doesn't depend on file size.
+ */
+final class BlobIngester
+{
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final int MIN_FILES_PER_WORKER = 16;
+
+    private final FileRepository repository;
+
+    private final int threads;
+
+    BlobIngester( final FileRepository repository, final int threads )
+    {
+        this.repository = repository;
+        this.threads = threads;
+    }
+
+    /**
+     * @return blob ids, in the same order as the files.
+     */
+    ObjectId[] ingest( final List<File> files )
+        throws IOException, GitWrapException
+    {
+        final ObjectId[] ids = new ObjectId[files.size()];
+        final AtomicInteger next = new AtomicInteger( 0 );
+
+        final int workers = WorkerPool.workersFor( threads, files.size(), MIN_FILES_PER_WORKER );
+        if ( workers <= 1 )
+        {
+            new Worker( files, ids, next ).call();
+            return ids;
+        }
+
+        final WorkerPool<Void> pool = WorkerPool.fixed( workers, "gitwrap-ingest-" );
+        try
+        {
+            for ( int i = 0; i < workers; i++ )
+            {
+                pool.submit( new Worker( files, ids, next ) );
+            }
+
+            for ( int i = 0; i < workers; i++ )
+            {
+                try
+                {
+                    pool.take();
+                }
+                catch ( final ExecutionException e )
+                {
+                    next.set( files.size() );
+
+                    if ( e.getCause() instanceof IOException )
+                    {
+                        throw (IOException) e.getCause();
+                    }
+
+                    throw new GitWrapException( "Failed to store file contents. Reason: %s", e.getCause(),
+                                                e.getCause().getMessage() );
+                }
+            }
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new GitWrapException( "Interrupted while storing file contents in: %s", e,
+                                        repository.getDirectory() );
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+
+        return ids;
+    }
+
+    private final class Worker
+        implements Callable<Void>
+    {
+        private final List<File> files;
+
+        private final ObjectId[] ids;
+
+        private final AtomicInteger next;
+
+        Worker( final List<File> files, final ObjectId[] ids, final AtomicInteger next )
+        {
+            this.files = files;
+            this.ids = ids;
+            this.next = next;
+        }
+
+        public Void call()
+            throws IOException
+        {
+            final ObjectInserter inserter = repository.newObjectInserter();
+            try
+            {
+                int i;
+                while ( ( i = next.getAndIncrement() ) < files.size() )
+                {
+                    final File file = files.get( i );
+                    final InputStream in = new BufferedInputStream( new FileInputStream( file ), CHUNK_SIZE );
+                    try
+                    {
+                        ids[i] = inserter.insert( Constants.OBJ_BLOB, file.length(), in );
+                    }
+                    finally
+                    {
+                        in.close();
+                    }
+                }
+
+                inserter.flush();
+            }
+            finally
+            {
+                inserter.release();
+            }
+
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,585 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdSubclassMap;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.LockFile;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Per-commit Bloom filters over the paths each commit changed relative to its first parent (or to nothing, for a
+ * root commit), including every leading directory of a changed file. A filter answers "definitely not changed" or
+ * "maybe changed", so path history only has to diff the trees of commits that might have touched the path. Commits
+ * that changed more than {@value #MAX_CHANGED_PATHS} paths get no filter and are always diffed.
+ * <p>
+ * Filters never change once computed, so new ones are appended to <code>gitwrap/changed-paths</code> in the git
+ * directory, under a lock file shared with other processes; a torn record at the end of the file (from an interrupted
+ * write) is cut off when the file is read.
+ * <p>
+ * Every indexed commit's parents are indexed too, or recorded as pending: an update limited by uninteresting commits
+ * stops at them, and the next update without limits picks them up.
+ */
+final class ChangedPathIndex
+{
+
+    private static final Logger LOGGER = Logger.getLogger( ChangedPathIndex.class );
+
+    static final String INDEX_FILE = "gitwrap/changed-paths";
+
+    static final int MAX_CHANGED_PATHS = 512;
+
+    private static final int MAGIC = 0x47574250; // "GWBP"
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_LENGTH = 8;
+
+    private static final int BITS_PER_PATH = 10;
+
+    private static final int HASHES = 7;
+
+    private static final int TOO_LARGE = -1;
+
+    private static final int PENDING = -2;
+
+    private static final int SEED1 = 0x293ae76f;
+
+    private static final int SEED2 = 0x7e646e2c;
+
+    private final File file;
+
+    private final ObjectIdSubclassMap<Filter> filters = new ObjectIdSubclassMap<Filter>();
+
+    // unindexed parents of indexed commits.
+    private final Set<ObjectId> pending = new HashSet<ObjectId>();
+
+    private boolean loaded;
+
+    ChangedPathIndex( final File gitDir )
+    {
+        this.file = new File( gitDir, INDEX_FILE );
+    }
+
+    static boolean exists( final File gitDir )
+    {
+        return new File( gitDir, INDEX_FILE ).isFile();
+    }
+
+    /**
+     * Compute filters for the given commits and any of their ancestors that don't have one yet, and append them to
+     * the index file. Ancestors of <code>uninteresting</code> commits are left alone.
+     */
+    synchronized void update( final ObjectReader reader, final Collection<? extends AnyObjectId> commits,
+                              final Collection<? extends AnyObjectId> uninteresting )
+        throws IOException
+    {
+        load();
+
+        final List<Filter> added = new ArrayList<Filter>();
+        final List<ObjectId> cut = new ArrayList<ObjectId>();
+        final RevWalk walk = new RevWalk( reader );
+        walk.setRetainBody( false );
+        try
+        {
+            if ( uninteresting.isEmpty() )
+            {
+                indexAncestors( reader, walk, commits, added );
+            }
+            else
+            {
+                indexRange( reader, walk, commits, uninteresting, added, cut );
+            }
+        }
+        finally
+        {
+            walk.release();
+        }
+
+        if ( !added.isEmpty() || !cut.isEmpty() )
+        {
+            append( added, cut );
+        }
+    }
+
+    private void indexAncestors( final ObjectReader reader, final RevWalk walk,
+                                 final Collection<? extends AnyObjectId> commits, final List<Filter> added )
+        throws IOException
+    {
+        final Deque<RevCommit> stack = new ArrayDeque<RevCommit>();
+        for ( final AnyObjectId commit : commits )
+        {
+            if ( filters.get( commit ) == null )
+            {
+                stack.push( walk.parseCommit( commit ) );
+            }
+        }
+
+        for ( final ObjectId commit : pending )
+        {
+            stack.push( walk.parseCommit( commit ) );
+        }
+
+        // filters don't depend on each other, so any order will do; we can stop at indexed commits.
+        while ( !stack.isEmpty() )
+        {
+            final RevCommit commit = stack.pop();
+            if ( filters.get( commit ) != null )
+            {
+                continue;
+            }
+
+            walk.parseHeaders( commit );
+            index( reader, walk, commit, added );
+
+            for ( final RevCommit parent : commit.getParents() )
+            {
+                if ( filters.get( parent ) == null )
+                {
+                    stack.push( parent );
+                }
+            }
+        }
+    }
+
+    private void indexRange( final ObjectReader reader, final RevWalk walk,
+                             final Collection<? extends AnyObjectId> commits,
+                             final Collection<? extends AnyObjectId> uninteresting, final List<Filter> added,
+                             final List<ObjectId> cut )
+        throws IOException
+    {
+        for ( final AnyObjectId commit : commits )
+        {
+            walk.markStart( walk.parseCommit( commit ) );
+        }
+
+        for ( final AnyObjectId commit : uninteresting )
+        {
+            walk.markUninteresting( walk.parseCommit( commit ) );
+        }
+
+        final List<RevCommit> indexed = new ArrayList<RevCommit>();
+        RevCommit commit;
+        while ( ( commit = walk.next() ) != null )
+        {
+            if ( filters.get( commit ) == null )
+            {
+                index( reader, walk, commit, added );
+                indexed.add( commit );
+            }
+        }
+
+        // the walk reached every interesting ancestor, so any parent still unindexed is uninteresting.
+        for ( final RevCommit child : indexed )
+        {
+            for ( final RevCommit parent : child.getParents() )
+            {
+                if ( filters.get( parent ) == null && pending.add( parent.copy() ) )
+                {
+                    cut.add( parent.copy() );
+                }
+            }
+        }
+    }
+
+    private void index( final ObjectReader reader, final RevWalk walk, final RevCommit commit,
+                        final List<Filter> added )
+        throws IOException
+    {
+        final Filter filter = new Filter( commit, bloom( changedPaths( reader, walk, commit ) ) );
+        filters.add( filter );
+        added.add( filter );
+        pending.remove( commit );
+    }
+
+    /**
+     * @return false if <code>commit</code> definitely didn't change <code>path</code> (or anything below it) relative
+     *         to its first parent; true if it might have, or if the commit isn't indexed.
+     */
+    synchronized boolean mightChange( final AnyObjectId commit, final String path )
+    {
+        final Filter filter = filters.get( commit );
+        if ( filter == null || filter.bits == null )
+        {
+            return true;
+        }
+
+        final byte[] bits = filter.bits;
+        if ( bits.length == 0 )
+        {
+            return false;
+        }
+
+        final byte[] key = Constants.encode( path );
+        final long h1 = murmur3( key, SEED1 ) & 0xffffffffL;
+        final long h2 = murmur3( key, SEED2 ) & 0xffffffffL;
+        final long size = bits.length * 8L;
+        for ( int i = 0; i < HASHES; i++ )
+        {
+            final int bit = (int) ( ( h1 + i * h2 ) % size );
+            if ( ( bits[bit >>> 3] & ( 1 << ( bit & 7 ) ) ) == 0 )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // paths (directories included) changed against the first parent; null if there are too many to be worth a filter.
+    private static List<String> changedPaths( final ObjectReader reader, final RevWalk walk, final RevCommit commit )
+        throws IOException
+    {
+        final TreeWalk treeWalk = new TreeWalk( reader );
+        try
+        {
+            if ( commit.getParentCount() > 0 )
+            {
+                treeWalk.addTree( walk.parseCommit( commit.getParent( 0 ) ).getTree() );
+            }
+            else
+            {
+                treeWalk.addTree( new EmptyTreeIterator() );
+            }
+
+            treeWalk.addTree( commit.getTree() );
+            treeWalk.setFilter( TreeFilter.ANY_DIFF );
+
+            final List<String> paths = new ArrayList<String>();
+            while ( treeWalk.next() )
+            {
+                if ( paths.size() == MAX_CHANGED_PATHS )
+                {
+                    return null;
+                }
+
+                paths.add( treeWalk.getPathString() );
+                if ( treeWalk.isSubtree() )
+                {
+                    treeWalk.enterSubtree();
+                }
+            }
+
+            return paths;
+        }
+        finally
+        {
+            treeWalk.release();
+        }
+    }
+
+    static byte[] bloom( final List<String> paths )
+    {
+        if ( paths == null )
+        {
+            return null;
+        }
+
+        final byte[] bits = new byte[( paths.size() * BITS_PER_PATH + 7 ) / 8];
+        final long size = bits.length * 8L;
+        for ( final String path : paths )
+        {
+            final byte[] key = Constants.encode( path );
+            final long h1 = murmur3( key, SEED1 ) & 0xffffffffL;
+            final long h2 = murmur3( key, SEED2 ) & 0xffffffffL;
+            for ( int i = 0; i < HASHES; i++ )
+            {
+                final int bit = (int) ( ( h1 + i * h2 ) % size );
+                bits[bit >>> 3] |= 1 << ( bit & 7 );
+            }
+        }
+
+        return bits;
+    }
+
+    static int murmur3( final byte[] data, final int seed )
+    {
+        final int c1 = 0xcc9e2d51;
+        final int c2 = 0x1b873593;
+
+        int h = seed;
+        final int blocks = data.length / 4;
+        for ( int i = 0; i < blocks; i++ )
+        {
+            int k = ( data[i * 4] & 0xff ) | ( data[i * 4 + 1] & 0xff ) << 8 | ( data[i * 4 + 2] & 0xff ) << 16
+                | ( data[i * 4 + 3] & 0xff ) << 24;
+
+            k *= c1;
+            k = Integer.rotateLeft( k, 15 );
+            k *= c2;
+
+            h ^= k;
+            h = Integer.rotateLeft( h, 13 );
+            h = h * 5 + 0xe6546b64;
+        }
+
+        int k = 0;
+        final int tail = blocks * 4;
+        switch ( data.length & 3 )
+        {
+            case 3:
+                k ^= ( data[tail + 2] & 0xff ) << 16;
+            case 2:
+                k ^= ( data[tail + 1] & 0xff ) << 8;
+            case 1:
+                k ^= data[tail] & 0xff;
+                k *= c1;
+                k = Integer.rotateLeft( k, 15 );
+                k *= c2;
+                h ^= k;
+            default:
+        }
+
+        h ^= data.length;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private void load()
+    {
+        if ( loaded )
+        {
+            return;
+        }
+
+        loaded = true;
+        if ( !file.isFile() )
+        {
+            return;
+        }
+
+        // only cut off a torn tail while holding the lock; otherwise it may be another process's append in progress.
+        final LockFile lock = new LockFile( file );
+        boolean locked = false;
+        long valid = 0;
+        try
+        {
+            locked = lock.lock();
+
+            final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+            try
+            {
+                if ( in.readInt() != MAGIC || in.readInt() != VERSION )
+                {
+                    throw new IOException( "Unrecognized changed-path index format." );
+                }
+
+                valid = HEADER_LENGTH;
+                final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+                while ( true )
+                {
+                    try
+                    {
+                        in.readFully( raw );
+                    }
+                    catch ( final EOFException e )
+                    {
+                        break;
+                    }
+
+                    final int length = in.readInt();
+                    final byte[] bits = length < 0 ? null : new byte[length];
+                    if ( bits != null )
+                    {
+                        in.readFully( bits );
+                    }
+
+                    final ObjectId id = ObjectId.fromRaw( raw );
+                    if ( length == PENDING )
+                    {
+                        if ( filters.get( id ) == null )
+                        {
+                            pending.add( id );
+                        }
+                    }
+                    else if ( filters.get( id ) == null )
+                    {
+                        filters.add( new Filter( id, bits ) );
+                        pending.remove( id );
+                    }
+
+                    valid += raw.length + 4 + ( bits == null ? 0 : bits.length );
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch ( final EOFException e )
+        {
+            LOGGER.warn( "Dropping torn record at the end of: " + file );
+        }
+        catch ( final IOException e )
+        {
+            LOGGER.warn( "Ignoring unreadable changed-path index: " + file + ". Reason: " + e.getMessage() );
+            valid = 0;
+        }
+
+        try
+        {
+            if ( locked && valid < file.length() )
+            {
+                truncate( valid );
+            }
+        }
+        finally
+        {
+            if ( locked )
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void truncate( final long length )
+    {
+        try
+        {
+            final RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+            try
+            {
+                raf.setLength( length < HEADER_LENGTH ? 0 : length );
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+        catch ( final IOException e )
+        {
+            LOGGER.warn( "Failed to truncate: " + file + ". Reason: " + e.getMessage(), e );
+        }
+    }
+
+    private void append( final List<Filter> added, final List<ObjectId> cut )
+    {
+        final LockFile lock = new LockFile( file );
+        try
+        {
+            file.getParentFile().mkdirs();
+            if ( !lock.lock() )
+            {
+                LOGGER.warn( "Changed-path index is locked: " + file + "; keeping new filters in memory only." );
+                return;
+            }
+        }
+        catch ( final IOException e )
+        {
+            LOGGER.warn( "Failed to lock changed-path index: " + file + ". Reason: " + e.getMessage(), e );
+            return;
+        }
+
+        try
+        {
+            final boolean fresh = file.length() == 0;
+
+            final DataOutputStream out =
+                new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file, true ) ) );
+            try
+            {
+                if ( fresh )
+                {
+                    out.writeInt( MAGIC );
+                    out.writeInt( VERSION );
+                }
+
+                final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+                for ( final Filter filter : added )
+                {
+                    filter.copyRawTo( raw, 0 );
+                    out.write( raw );
+                    if ( filter.bits == null )
+                    {
+                        out.writeInt( TOO_LARGE );
+                    }
+                    else
+                    {
+                        out.writeInt( filter.bits.length );
+                        out.write( filter.bits );
+                    }
+                }
+
+                for ( final ObjectId commit : cut )
+                {
+                    commit.copyRawTo( raw, 0 );
+                    out.write( raw );
+                    out.writeInt( PENDING );
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch ( final IOException e )
+        {
+            // the filters are still used from memory; the commits get indexed again by the next process.
+            LOGGER.warn( "Failed to save changed-path index: " + file + ". Reason: " + e.getMessage(), e );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private static final class Filter
+        extends ObjectId
+    {
+        // null: too many changes to filter; empty: nothing changed.
+        private final byte[] bits;
+
+        Filter( final AnyObjectId id, final byte[] bits )
+        {
+            super( id );
+            this.bits = bits;
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.eclipse.jgit.lib.Constants;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public final class CloneOptions
+{
+
+    private String branch;
+
+    private FetchRefFilter refFilter;
+
+    private boolean local = true;
+
+    private File reference;
+
+    private List<String> sparsePatterns = Collections.emptyList();
+
+    /**
+     * Clone only <code>branch</code>, or only <code>master</code> if it's null.
+     */
+    public static CloneOptions singleBranch( final String branch )
+    {
+        final String name = branch == null ? Constants.MASTER : branch;
+        return new CloneOptions().setBranch( name ).setRefFilter( FetchRefFilter.singleBranch( name ) );
+    }
+
+    public String getBranch()
+    {
+        return branch;
+    }
+
+    public CloneOptions setBranch( final String branch )
+    {
+        this.branch = branch;
+        return this;
+    }
+
+    /**
+     * Ref-specs and tag option to install for the remote. Defaults to all branches, with tags auto-followed. The
+     * filter is saved in the remote's config, so later fetches stay just as narrow.
+     */
+    public FetchRefFilter getRefFilter()
+    {
+        return refFilter == null ? FetchRefFilter.allBranches() : refFilter;
+    }
+
+    public CloneOptions setRefFilter( final FetchRefFilter refFilter )
+    {
+        this.refFilter = refFilter;
+        return this;
+    }
+
+    /**
+     * When the remote is a local directory or <code>file://</code> URL, hardlink (or copy) its object store instead
+     * of generating and transferring a pack, like <code>git clone --local</code>. Enabled by default.
+     */
+    public boolean isLocal()
+    {
+        return local;
+    }
+
+    public CloneOptions setLocal( final boolean local )
+    {
+        this.local = local;
+        return this;
+    }
+
+    /**
+     * Repository (git directory or working directory) whose object store the clone should borrow from through
+     * <code>objects/info/alternates</code>, like <code>git clone --reference</code>. Only objects missing from the
+     * reference are fetched. See {@link BareGitRepository#dissociate()} to stop borrowing later.
+     */
+    public File getReference()
+    {
+        return reference;
+    }
+
+    public CloneOptions setReference( final File reference )
+    {
+        this.reference = reference;
+        return this;
+    }
+
+    /**
+     * Sparse-checkout patterns (gitignore-style, e.g. <code>/module-a/</code>) limiting which paths are written to the
+     * worktree. They are saved to <code>info/sparse-checkout</code>, so later branch switches honor them too. Only
+     * applies to clones with a worktree.
+     */
+    public List<String> getSparsePatterns()
+    {
+        return sparsePatterns;
+    }
+
+    public CloneOptions setSparsePatterns( final String... patterns )
+    {
+        this.sparsePatterns = new ArrayList<String>( Arrays.asList( patterns ) );
+        return this;
+    }
+
+}
@@ -0,0 +1,822 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.storage.file.LockFile;
+import org.eclipse.jgit.util.NB;
+import org.eclipse.jgit.util.RawParseUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Commit ancestry index, in the spirit of git's commit-graph: every known commit gets a position, and its id, parent
+ * positions, generation number and commit time live in flat primitive arrays. Positions are assigned parents-first,
+ * and generation is one more than the highest parent generation, so an ancestor always has a lower generation than its
+ * descendants; queries use that to stop walking early.
+ * <p>
+ * Commits are added on demand (any query for an unindexed commit indexes it and its missing ancestors) and after
+ * fetch. New commits are appended to <code>gitwrap/commit-graph</code> in the git directory as records of id, commit
+ * time and parent ids, under a lock file shared with other processes; generations are recomputed when the file is
+ * read back on first use. The file is only rewritten (to a lock file, then renamed over it) to compact away records
+ * that were unreadable, duplicated by a concurrent process, or written in an older format.
+ */
+final class CommitGraph
+{
+
+    private static final Logger LOGGER = Logger.getLogger( CommitGraph.class );
+
+    static final String GRAPH_FILE = "gitwrap/commit-graph";
+
+    private static final int MAGIC = 0x47574347; // "GWCG"
+
+    private static final int VERSION = 2;
+
+    private static final int HEADER_LENGTH = 8;
+
+    private static final int NONE = -1;
+
+    private static final int ID_LENGTH = Constants.OBJECT_ID_LENGTH;
+
+    private static final byte PARENT1 = 1;
+
+    private static final byte PARENT2 = 2;
+
+    private static final byte STALE = 4;
+
+    private static final byte RESULT = 8;
+
+    private static final byte QUEUED = 16;
+
+    private final File file;
+
+    private boolean loaded;
+
+    // rewrite the whole file on the next save, rather than appending to it.
+    private boolean compact;
+
+    private int count;
+
+    // positions below this are in the file.
+    private int saved;
+
+    private byte[] ids = new byte[1024 * ID_LENGTH];
+
+    private int[] parent1 = new int[1024];
+
+    // NONE, a position, or for octopus merges -(2 + offset) into extraParents: [count, positions...]
+    private int[] parent2 = new int[1024];
+
+    private int[] generation = new int[1024];
+
+    private int[] commitTime = new int[1024];
+
+    private int[] extraParents = new int[16];
+
+    private int extraCount;
+
+    // open addressing, by the first four id bytes; holds position + 1, 0 for empty.
+    private int[] table = new int[2048];
+
+    CommitGraph( final File gitDir )
+    {
+        this.file = new File( gitDir, GRAPH_FILE );
+    }
+
+    static boolean exists( final File gitDir )
+    {
+        return new File( gitDir, GRAPH_FILE ).isFile();
+    }
+
+    /**
+     * Index the given commits and any of their ancestors that aren't indexed yet, appending whatever was added (and
+     * anything an earlier save couldn't write) to the file.
+     */
+    synchronized void ensure( final ObjectReader reader, final Collection<? extends AnyObjectId> commits )
+        throws IOException
+    {
+        load();
+
+        for ( final AnyObjectId commit : commits )
+        {
+            add( reader, commit );
+        }
+
+        if ( count > saved )
+        {
+            save();
+        }
+    }
+
+    synchronized boolean isAncestor( final ObjectReader reader, final AnyObjectId ancestor,
+                                     final AnyObjectId descendant )
+        throws IOException
+    {
+        ensure( reader, Arrays.asList( ancestor, descendant ) );
+        return isAncestor( lookup( ancestor ), lookup( descendant ), new BitSet() );
+    }
+
+    /**
+     * @return the best common ancestor (the one with the highest generation, if there are several), or null.
+     */
+    synchronized ObjectId mergeBase( final ObjectReader reader, final AnyObjectId a, final AnyObjectId b )
+        throws IOException
+    {
+        ensure( reader, Arrays.asList( a, b ) );
+
+        final int pa = lookup( a );
+        final int pb = lookup( b );
+        if ( pa == pb )
+        {
+            return a.copy();
+        }
+
+        // paint down from both sides in generation order; a commit reached from both is a merge base, and
+        // everything below it is stale. Stop once only stale commits are queued.
+        final byte[] flags = new byte[count];
+        final IntHeap queue = new IntHeap();
+        final List<Integer> results = new ArrayList<Integer>();
+
+        flags[pa] = PARENT1 | QUEUED;
+        flags[pb] = PARENT2 | QUEUED;
+        queue.push( pa );
+        queue.push( pb );
+        int nonStale = 2;
+
+        while ( nonStale > 0 )
+        {
+            final int c = queue.pop();
+            flags[c] &= ~QUEUED;
+
+            int f = flags[c] & ( PARENT1 | PARENT2 | STALE );
+            if ( ( f & STALE ) == 0 )
+            {
+                nonStale--;
+            }
+
+            if ( f == ( PARENT1 | PARENT2 ) )
+            {
+                if ( ( flags[c] & RESULT ) == 0 )
+                {
+                    flags[c] |= RESULT;
+                    results.add( c );
+                }
+
+                f |= STALE;
+            }
+
+            final int parents = parentCount( c );
+            for ( int i = 0; i < parents; i++ )
+            {
+                final int p = parent( c, i );
+                if ( ( flags[p] & f ) == f )
+                {
+                    continue;
+                }
+
+                final boolean wasStale = ( flags[p] & STALE ) != 0;
+                flags[p] |= f;
+
+                if ( ( flags[p] & QUEUED ) == 0 )
+                {
+                    flags[p] |= QUEUED;
+                    queue.push( p );
+                    if ( ( flags[p] & STALE ) == 0 )
+                    {
+                        nonStale++;
+                    }
+                }
+                else if ( !wasStale && ( flags[p] & STALE ) != 0 )
+                {
+                    nonStale--;
+                }
+            }
+        }
+
+        // drop any result that is an ancestor of another; what's left are the best bases.
+        int best = NONE;
+        final BitSet seen = new BitSet();
+        for ( final int r : results )
+        {
+            boolean redundant = false;
+            for ( final int other : results )
+            {
+                seen.clear();
+                if ( other != r && isAncestor( r, other, seen ) )
+                {
+                    redundant = true;
+                    break;
+                }
+            }
+
+            if ( !redundant && ( best == NONE || generation[r] > generation[best] ) )
+            {
+                best = r;
+            }
+        }
+
+        return best == NONE ? null : ObjectId.fromRaw( ids, best * ID_LENGTH );
+    }
+
+    private boolean isAncestor( final int ancestor, final int descendant, final BitSet seen )
+    {
+        if ( ancestor == descendant )
+        {
+            return true;
+        }
+
+        final int floor = generation[ancestor];
+        if ( generation[descendant] <= floor )
+        {
+            return false;
+        }
+
+        final Deque<Integer> stack = new ArrayDeque<Integer>();
+        stack.push( descendant );
+        while ( !stack.isEmpty() )
+        {
+            final int c = stack.pop();
+            final int parents = parentCount( c );
+            for ( int i = 0; i < parents; i++ )
+            {
+                final int p = parent( c, i );
+                if ( p == ancestor )
+                {
+                    return true;
+                }
+
+                // nothing at or below the ancestor's generation can lead to it.
+                if ( generation[p] > floor && !seen.get( p ) )
+                {
+                    seen.set( p );
+                    stack.push( p );
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private int parentCount( final int pos )
+    {
+        if ( parent1[pos] == NONE )
+        {
+            return 0;
+        }
+
+        final int second = parent2[pos];
+        if ( second == NONE )
+        {
+            return 1;
+        }
+
+        return second >= 0 ? 2 : 1 + extraParents[-( second + 2 )];
+    }
+
+    private int parent( final int pos, final int i )
+    {
+        if ( i == 0 )
+        {
+            return parent1[pos];
+        }
+
+        final int second = parent2[pos];
+        return second >= 0 ? second : extraParents[-( second + 2 ) + i];
+    }
+
+    int lookup( final AnyObjectId id )
+    {
+        final byte[] raw = new byte[ID_LENGTH];
+        id.copyRawTo( raw, 0 );
+
+        final int mask = table.length - 1;
+        for ( int slot = NB.decodeInt32( raw, 0 ) & mask;; slot = ( slot + 1 ) & mask )
+        {
+            final int entry = table[slot];
+            if ( entry == 0 )
+            {
+                return NONE;
+            }
+
+            if ( sameId( raw, entry - 1 ) )
+            {
+                return entry - 1;
+            }
+        }
+    }
+
+    private boolean sameId( final byte[] raw, final int pos )
+    {
+        final int off = pos * ID_LENGTH;
+        for ( int i = 0; i < ID_LENGTH; i++ )
+        {
+            if ( ids[off + i] != raw[i] )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // parents-first, without recursion: a commit is only added once all its parents are.
+    private void add( final ObjectReader reader, final AnyObjectId tip )
+        throws IOException
+    {
+        final Deque<ObjectId> stack = new ArrayDeque<ObjectId>();
+        final Map<ObjectId, ParsedCommit> pending = new HashMap<ObjectId, ParsedCommit>();
+        stack.push( tip.copy() );
+
+        while ( !stack.isEmpty() )
+        {
+            final ObjectId id = stack.peek();
+            if ( lookup( id ) != NONE )
+            {
+                stack.pop();
+                continue;
+            }
+
+            ParsedCommit commit = pending.get( id );
+            if ( commit == null )
+            {
+                commit = ParsedCommit.parse( reader, id );
+                pending.put( id, commit );
+            }
+
+            boolean ready = true;
+            for ( final ObjectId parent : commit.parents )
+            {
+                if ( lookup( parent ) == NONE )
+                {
+                    stack.push( parent );
+                    ready = false;
+                }
+            }
+
+            if ( ready )
+            {
+                stack.pop();
+                pending.remove( id );
+
+                final int[] parents = new int[commit.parents.size()];
+                for ( int i = 0; i < parents.length; i++ )
+                {
+                    parents[i] = lookup( commit.parents.get( i ) );
+                }
+
+                append( id, commit.time, parents );
+            }
+        }
+    }
+
+    private void append( final AnyObjectId id, final int time, final int[] parents )
+    {
+        grow( count + 1 );
+
+        final int pos = count;
+        id.copyRawTo( ids, pos * ID_LENGTH );
+        commitTime[pos] = time;
+
+        int gen = 0;
+        for ( final int parent : parents )
+        {
+            gen = Math.max( gen, generation[parent] );
+        }
+
+        generation[pos] = gen + 1;
+        parent1[pos] = parents.length > 0 ? parents[0] : NONE;
+        if ( parents.length <= 1 )
+        {
+            parent2[pos] = NONE;
+        }
+        else if ( parents.length == 2 )
+        {
+            parent2[pos] = parents[1];
+        }
+        else
+        {
+            if ( extraCount + parents.length > extraParents.length )
+            {
+                final int size = Math.max( extraParents.length * 2, extraCount + parents.length );
+                extraParents = Arrays.copyOf( extraParents, size );
+            }
+
+            parent2[pos] = -( 2 + extraCount );
+            extraParents[extraCount++] = parents.length - 1;
+            for ( int i = 1; i < parents.length; i++ )
+            {
+                extraParents[extraCount++] = parents[i];
+            }
+        }
+
+        count++;
+        index( pos );
+    }
+
+    private void index( final int pos )
+    {
+        if ( count * 2 > table.length )
+        {
+            table = new int[table.length * 2];
+            for ( int i = 0; i < count; i++ )
+            {
+                insert( i );
+            }
+        }
+        else
+        {
+            insert( pos );
+        }
+    }
+
+    private void insert( final int pos )
+    {
+        final int mask = table.length - 1;
+        int slot = NB.decodeInt32( ids, pos * ID_LENGTH ) & mask;
+        while ( table[slot] != 0 )
+        {
+            slot = ( slot + 1 ) & mask;
+        }
+
+        table[slot] = pos + 1;
+    }
+
+    private void grow( final int needed )
+    {
+        if ( needed <= parent1.length )
+        {
+            return;
+        }
+
+        final int size = Math.max( needed, parent1.length * 2 );
+        ids = Arrays.copyOf( ids, size * ID_LENGTH );
+        parent1 = Arrays.copyOf( parent1, size );
+        parent2 = Arrays.copyOf( parent2, size );
+        generation = Arrays.copyOf( generation, size );
+        commitTime = Arrays.copyOf( commitTime, size );
+    }
+
+    private void load()
+    {
+        if ( loaded )
+        {
+            return;
+        }
+
+        loaded = true;
+        if ( !file.isFile() )
+        {
+            return;
+        }
+
+        // only cut off a torn tail while holding the lock; otherwise it may be another process's append in progress.
+        final LockFile lock = new LockFile( file );
+        boolean locked = false;
+        long valid = 0;
+        try
+        {
+            locked = lock.lock();
+
+            final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+            try
+            {
+                if ( in.readInt() != MAGIC || in.readInt() != VERSION )
+                {
+                    throw new IOException( "Unrecognized commit-graph format." );
+                }
+
+                valid = HEADER_LENGTH;
+                final byte[] raw = new byte[ID_LENGTH];
+                while ( true )
+                {
+                    try
+                    {
+                        in.readFully( raw );
+                    }
+                    catch ( final EOFException e )
+                    {
+                        break;
+                    }
+
+                    final int time = in.readInt();
+                    final int parents = in.readInt();
+                    if ( parents < 0 || parents > 0xffff )
+                    {
+                        throw new IOException( "Corrupt commit-graph record." );
+                    }
+
+                    final byte[][] parentIds = new byte[parents][ID_LENGTH];
+                    for ( final byte[] parentId : parentIds )
+                    {
+                        in.readFully( parentId );
+                    }
+
+                    valid += ID_LENGTH + 8 + parentIds.length * ID_LENGTH;
+                    read( ObjectId.fromRaw( raw ), time, parentIds );
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch ( final EOFException e )
+        {
+            LOGGER.warn( "Dropping torn record at the end of: " + file );
+        }
+        catch ( final IOException e )
+        {
+            // it's only an index; start over, rebuild it on demand and replace the file on the next save.
+            LOGGER.warn( "Ignoring unreadable commit-graph: " + file + ". Reason: " + e.getMessage() );
+            count = 0;
+            extraCount = 0;
+            table = new int[2048];
+            compact = true;
+            valid = file.length();
+        }
+
+        try
+        {
+            if ( locked && valid < file.length() )
+            {
+                truncate( valid );
+            }
+        }
+        finally
+        {
+            if ( locked )
+            {
+                lock.unlock();
+            }
+        }
+
+        saved = count;
+    }
+
+    private void read( final ObjectId id, final int time, final byte[][] parentIds )
+    {
+        // a concurrent process may have appended the same commit; keep the first and compact the rest away.
+        if ( lookup( id ) != NONE )
+        {
+            compact = true;
+            return;
+        }
+
+        final int[] parents = new int[parentIds.length];
+        for ( int i = 0; i < parents.length; i++ )
+        {
+            parents[i] = lookup( ObjectId.fromRaw( parentIds[i] ) );
+            if ( parents[i] == NONE )
+            {
+                // records are written parents-first, so this one is damaged; it gets indexed again on demand.
+                compact = true;
+                return;
+            }
+        }
+
+        append( id, time, parents );
+    }
+
+    private void truncate( final long length )
+    {
+        try
+        {
+            final RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+            try
+            {
+                raf.setLength( length < HEADER_LENGTH ? 0 : length );
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+        catch ( final IOException e )
+        {
+            LOGGER.warn( "Failed to truncate: " + file + ". Reason: " + e.getMessage(), e );
+        }
+    }
+
+    private void save()
+    {
+        final LockFile lock = new LockFile( file );
+        try
+        {
+            file.getParentFile().mkdirs();
+            if ( !lock.lock() )
+            {
+                LOGGER.warn( "Commit-graph is locked: " + file + "; will try again after the next addition." );
+                return;
+            }
+        }
+        catch ( final IOException e )
+        {
+            LOGGER.warn( "Failed to lock commit-graph: " + file + ". Reason: " + e.getMessage(), e );
+            return;
+        }
+
+        try
+        {
+            if ( compact )
+            {
+                final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                final DataOutputStream out = new DataOutputStream( buffer );
+                out.writeInt( MAGIC );
+                out.writeInt( VERSION );
+                writeRecords( out, 0 );
+                out.close();
+
+                lock.write( buffer.toByteArray() );
+                if ( !lock.commit() )
+                {
+                    throw new IOException( "Cannot commit: " + file );
+                }
+
+                compact = false;
+            }
+            else
+            {
+                final boolean fresh = file.length() == 0;
+
+                final DataOutputStream out =
+                    new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file, true ) ) );
+                try
+                {
+                    if ( fresh )
+                    {
+                        out.writeInt( MAGIC );
+                        out.writeInt( VERSION );
+                    }
+
+                    writeRecords( out, saved );
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
+
+            saved = count;
+        }
+        catch ( final IOException e )
+        {
+            // the in-memory index is still good; rewrite the file after the next addition, in case this left a torn
+            // record behind.
+            LOGGER.warn( "Failed to save commit-graph: " + file + ". Reason: " + e.getMessage(), e );
+            compact = true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void writeRecords( final DataOutputStream out, final int from )
+        throws IOException
+    {
+        for ( int pos = from; pos < count; pos++ )
+        {
+            out.write( ids, pos * ID_LENGTH, ID_LENGTH );
+            out.writeInt( commitTime[pos] );
+
+            final int parents = parentCount( pos );
+            out.writeInt( parents );
+            for ( int i = 0; i < parents; i++ )
+            {
+                out.write( ids, parent( pos, i ) * ID_LENGTH, ID_LENGTH );
+            }
+        }
+    }
+
+    private static final class ParsedCommit
+    {
+        private final List<ObjectId> parents = new ArrayList<ObjectId>( 2 );
+
+        private int time;
+
+        // reads just the parent lines and committer time out of the raw commit, without a RevWalk object pool.
+        static ParsedCommit parse( final ObjectReader reader, final ObjectId id )
+            throws IOException
+        {
+            final byte[] raw = reader.open( id, Constants.OBJ_COMMIT ).getCachedBytes();
+            final ParsedCommit commit = new ParsedCommit();
+
+            // skip "tree <id>\n"
+            int ptr = 46;
+            while ( RawParseUtils.match( raw, ptr, PARENT_HEADER ) >= 0 )
+            {
+                commit.parents.add( ObjectId.fromString( raw, ptr + PARENT_HEADER.length ) );
+                ptr += PARENT_HEADER.length + Constants.OBJECT_ID_STRING_LENGTH + 1;
+            }
+
+            final int committer = RawParseUtils.committer( raw, ptr );
+            if ( committer >= 0 )
+            {
+                // "<name> <<email>> <time> <tz>"
+                int gt = RawParseUtils.nextLF( raw, committer ) - 1;
+                while ( gt > committer && raw[gt] != '>' )
+                {
+                    gt--;
+                }
+
+                commit.time = RawParseUtils.parseBase10( raw, gt + 2, null );
+            }
+
+            return commit;
+        }
+
+        private static final byte[] PARENT_HEADER = Constants.encodeASCII( "parent " );
+    }
+
+    // max-heap of positions by generation.
+    private final class IntHeap
+    {
+        private int[] heap = new int[64];
+
+        private int size;
+
+        void push( final int pos )
+        {
+            if ( size == heap.length )
+            {
+                heap = Arrays.copyOf( heap, size * 2 );
+            }
+
+            int i = size++;
+            while ( i > 0 && generation[heap[( i - 1 ) / 2]] < generation[pos] )
+            {
+                heap[i] = heap[( i - 1 ) / 2];
+                i = ( i - 1 ) / 2;
+            }
+
+            heap[i] = pos;
+        }
+
+        int pop()
+        {
+            final int top = heap[0];
+            final int last = heap[--size];
+
+            int i = 0;
+            while ( 2 * i + 1 < size )
+            {
+                int child = 2 * i + 1;
+                if ( child + 1 < size && generation[heap[child + 1]] > generation[heap[child]] )
+                {
+                    child++;
+                }
+
+                if ( generation[heap[child]] <= generation[last] )
+                {
+                    break;
+                }
+
+                heap[i] = heap[child];
+                i = child;
+            }
+
+            heap[i] = last;
+            return top;
+        }
+    }
+
+}
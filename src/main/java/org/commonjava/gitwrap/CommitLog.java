@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.eclipse.jgit.util.RawParseUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Lazily walks the history selected by a {@link LogQuery}, newest commits first. Each call to {@link #next()} walks
+ * only as far as the next listed commit. The walk doesn't keep commit bodies: entries are read from the object store
+ * as they are listed, so memory per walked commit stays at the walk's small fixed overhead.
+ * <p>
+ * With a path filter, each commit's changed-path Bloom filter is checked first, and only commits that may have touched
+ * the path have their trees diffed against the first parent.
+ * <p>
+ * Errors while walking are thrown from {@link #hasNext()} as an {@link IllegalStateException} wrapping a
+ * {@link GitWrapException}. The walk is released once it runs out or reaches the query's max count; close it to
+ * release it earlier.
+ */
+public final class CommitLog
+    implements Iterator<LogEntry>, Closeable
+{
+
+    private static final String CURSOR_SEPARATOR = ",";
+
+    private final ObjectReader reader;
+
+    private final RevWalk walk;
+
+    private final RevFlag listed;
+
+    private final String author;
+
+    private final String path;
+
+    private final ChangedPathIndex changedPaths;
+
+    private final int maxCount;
+
+    // commits reached but not yet walked past; starting a walk from these picks up exactly where this one stopped.
+    private final Set<RevCommit> frontier = new LinkedHashSet<RevCommit>();
+
+    private RevCommit nextCommit;
+
+    private LogEntry nextEntry;
+
+    private int count;
+
+    private boolean closed;
+
+    CommitLog( final Repository repository, final Collection<ObjectId> starts, final Collection<ObjectId> excluded,
+               final LogQuery query, final ChangedPathIndex changedPaths )
+        throws IOException
+    {
+        this.reader = repository.newObjectReader();
+        this.walk = new RevWalk( reader );
+        this.author = query.getAuthor() == null ? null : query.getAuthor().toLowerCase( Locale.ENGLISH );
+        this.path = normalizePath( query.getPath() );
+        this.changedPaths = changedPaths;
+        this.maxCount = query.getMaxCount();
+
+        walk.setRetainBody( false );
+        listed = walk.newFlag( "listed" );
+
+        try
+        {
+            for ( final ObjectId id : starts )
+            {
+                final RevCommit start = walk.parseCommit( id );
+                walk.markStart( start );
+                frontier.add( start );
+            }
+
+            for ( final ObjectId id : excluded )
+            {
+                walk.markUninteresting( walk.parseCommit( id ) );
+            }
+        }
+        catch ( final IOException e )
+        {
+            close();
+            throw e;
+        }
+    }
+
+    static String normalizePath( final String path )
+    {
+        if ( path == null )
+        {
+            return null;
+        }
+
+        int start = 0;
+        int end = path.length();
+        while ( start < end && path.charAt( start ) == '/' )
+        {
+            start++;
+        }
+
+        while ( end > start && path.charAt( end - 1 ) == '/' )
+        {
+            end--;
+        }
+
+        return start == end ? null : path.substring( start, end );
+    }
+
+    static List<ObjectId> parseCursor( final String cursor )
+        throws GitWrapException
+    {
+        final List<ObjectId> ids = new ArrayList<ObjectId>();
+        for ( final String id : cursor.split( CURSOR_SEPARATOR ) )
+        {
+            if ( !ObjectId.isId( id ) )
+            {
+                throw new GitWrapException( "Invalid log cursor: %s", cursor );
+            }
+
+            ids.add( ObjectId.fromString( id ) );
+        }
+
+        return ids;
+    }
+
+    public boolean hasNext()
+    {
+        if ( nextEntry != null )
+        {
+            return true;
+        }
+
+        if ( closed )
+        {
+            return false;
+        }
+
+        try
+        {
+            RevCommit commit;
+            while ( ( commit = walk.next() ) != null )
+            {
+                if ( path != null && !changesPath( commit ) )
+                {
+                    walkedPast( commit );
+                    continue;
+                }
+
+                final LogEntry entry = toEntry( commit );
+                if ( matches( entry ) )
+                {
+                    nextCommit = commit;
+                    nextEntry = entry;
+                    return true;
+                }
+
+                walkedPast( commit );
+            }
+        }
+        catch ( final IOException e )
+        {
+            close();
+            throw new IllegalStateException( new GitWrapException( "Failed to walk history. Reason: %s", e,
+                                                                   e.getMessage() ) );
+        }
+
+        frontier.clear();
+        close();
+        return false;
+    }
+
+    public LogEntry next()
+    {
+        if ( !hasNext() )
+        {
+            throw new NoSuchElementException();
+        }
+
+        final LogEntry entry = nextEntry;
+        walkedPast( nextCommit );
+        nextCommit = null;
+        nextEntry = null;
+
+        if ( maxCount > 0 && ++count >= maxCount )
+        {
+            close();
+        }
+
+        return entry;
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Cursor for resuming after the last entry returned by {@link #next()}; pass it to
+     * {@link LogQuery#setCursor(String)} along with the same since and author options. Null once the history has
+     * been listed completely.
+     */
+    public String getCursor()
+    {
+        final StringBuilder sb = new StringBuilder();
+        for ( final RevCommit commit : frontier )
+        {
+            if ( !commit.has( RevFlag.UNINTERESTING ) )
+            {
+                if ( sb.length() > 0 )
+                {
+                    sb.append( CURSOR_SEPARATOR );
+                }
+
+                sb.append( commit.name() );
+            }
+        }
+
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    public void close()
+    {
+        if ( !closed )
+        {
+            closed = true;
+            walk.release();
+            reader.release();
+        }
+    }
+
+    private void walkedPast( final RevCommit commit )
+    {
+        commit.add( listed );
+        frontier.remove( commit );
+
+        for ( final RevCommit parent : commit.getParents() )
+        {
+            if ( !parent.has( listed ) && !parent.has( RevFlag.UNINTERESTING ) )
+            {
+                frontier.add( parent );
+            }
+        }
+    }
+
+    private boolean changesPath( final RevCommit commit )
+        throws IOException
+    {
+        if ( changedPaths != null && !changedPaths.mightChange( commit, path ) )
+        {
+            return false;
+        }
+
+        final TreeWalk treeWalk = new TreeWalk( reader );
+        try
+        {
+            if ( commit.getParentCount() > 0 )
+            {
+                treeWalk.addTree( walk.parseCommit( commit.getParent( 0 ) ).getTree() );
+            }
+            else
+            {
+                treeWalk.addTree( new EmptyTreeIterator() );
+            }
+
+            treeWalk.addTree( commit.getTree() );
+            treeWalk.setRecursive( true );
+            treeWalk.setFilter( AndTreeFilter.create( PathFilter.create( path ), TreeFilter.ANY_DIFF ) );
+
+            return treeWalk.next();
+        }
+        finally
+        {
+            treeWalk.release();
+        }
+    }
+
+    private boolean matches( final LogEntry entry )
+    {
+        if ( author == null )
+        {
+            return true;
+        }
+
+        final PersonIdent who = entry.getAuthor();
+        return who != null
+            && ( contains( who.getName(), author ) || contains( who.getEmailAddress(), author ) );
+    }
+
+    private static boolean contains( final String value, final String lowerCaseText )
+    {
+        return value != null && value.toLowerCase( Locale.ENGLISH ).contains( lowerCaseText );
+    }
+
+    private LogEntry toEntry( final RevCommit commit )
+        throws IOException
+    {
+        final byte[] raw = reader.open( commit, Constants.OBJ_COMMIT ).getCachedBytes();
+
+        final int authorOffset = RawParseUtils.author( raw, 0 );
+        final int committerOffset = RawParseUtils.committer( raw, 0 );
+        final int messageOffset = RawParseUtils.commitMessage( raw, 0 );
+
+        final List<ObjectId> parents = new ArrayList<ObjectId>( commit.getParentCount() );
+        for ( final RevCommit parent : commit.getParents() )
+        {
+            parents.add( parent.copy() );
+        }
+
+        return new LogEntry( commit.copy(), Collections.unmodifiableList( parents ),
+                             authorOffset < 0 ? null : RawParseUtils.parsePersonIdent( raw, authorOffset ),
+                             committerOffset < 0 ? null : RawParseUtils.parsePersonIdent( raw, committerOffset ),
+                             messageOffset < 0 ? "" : RawParseUtils.decode( RawParseUtils.parseEncoding( raw ), raw,
+                                                                               messageOffset, raw.length ) );
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.eclipse.jgit.transport.FetchResult;
+
+public final class FetchOutcome
+{
+
+    private final BareGitRepository repository;
+
+    private final String remoteName;
+
+    private String host;
+
+    private FetchResult fetchResult;
+
+    private Throwable error;
+
+    private long duration;
+
+    FetchOutcome( final BareGitRepository repository, final String remoteName )
+    {
+        this.repository = repository;
+        this.remoteName = remoteName;
+    }
+
+    public BareGitRepository getRepository()
+    {
+        return repository;
+    }
+
+    public String getRemoteName()
+    {
+        return remoteName;
+    }
+
+    /**
+     * Host of the remote's first fetch URI, used to enforce per-host fairness. Local remotes report "localhost".
+     */
+    public String getHost()
+    {
+        return host;
+    }
+
+    public FetchResult getFetchResult()
+    {
+        return fetchResult;
+    }
+
+    public int getUpdatedRefCount()
+    {
+        return fetchResult == null ? 0 : fetchResult.getTrackingRefUpdates().size();
+    }
+
+    public Throwable getError()
+    {
+        return error;
+    }
+
+    public boolean isSuccessful()
+    {
+        return error == null;
+    }
+
+    /**
+     * Time spent fetching, in milliseconds. Does not include time spent waiting in the queue.
+     */
+    public long getDuration()
+    {
+        return duration;
+    }
+
+    void setHost( final String host )
+    {
+        this.host = host;
+    }
+
+    void setFetchResult( final FetchResult fetchResult )
+    {
+        this.fetchResult = fetchResult;
+    }
+
+    void setError( final Throwable error )
+    {
+        this.error = error;
+    }
+
+    void setDuration( final long duration )
+    {
+        this.duration = duration;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "FetchOutcome [" + repository.getGitDir() + " <- " + remoteName + " (" + host + "), successful="
+                        + isSuccessful() + ", duration=" + duration + "ms"
+                        + ( error == null ? "" : ", error=" + error.getMessage() ) + "]";
+    }
+
+}
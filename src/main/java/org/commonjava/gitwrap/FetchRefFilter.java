@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.TagOpt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Restricts which branches (and whether tags) a clone or fetch transfers. Branch patterns are relative to
+ * <code>refs/heads/</code>. jGit only matches a wildcard as a whole trailing path component, so a pattern is either a
+ * plain branch name, <code>*</code>, or a prefix ending in <code>/*</code>, e.g. <code>release/*</code>.
+ */
+public final class FetchRefFilter
+{
+
+    private final List<String> branchPatterns;
+
+    private boolean tags = true;
+
+    private FetchRefFilter( final List<String> branchPatterns )
+    {
+        this.branchPatterns = branchPatterns;
+    }
+
+    public static FetchRefFilter allBranches()
+    {
+        return new FetchRefFilter( Collections.singletonList( "*" ) );
+    }
+
+    /**
+     * @param branch the branch to transfer; null means <code>master</code>, as it does for a clone.
+     */
+    public static FetchRefFilter singleBranch( final String branch )
+    {
+        final String name = branch == null ? Constants.MASTER : branch;
+        return new FetchRefFilter( Collections.singletonList( stripHeads( name ) ) );
+    }
+
+    public static FetchRefFilter branches( final String... patterns )
+    {
+        final List<String> stripped = new ArrayList<String>( patterns.length );
+        for ( final String pattern : patterns )
+        {
+            stripped.add( stripHeads( pattern ) );
+        }
+
+        return new FetchRefFilter( stripped );
+    }
+
+    public FetchRefFilter withTags( final boolean tags )
+    {
+        this.tags = tags;
+        return this;
+    }
+
+    public boolean isTags()
+    {
+        return tags;
+    }
+
+    public List<String> getBranchPatterns()
+    {
+        return Collections.unmodifiableList( branchPatterns );
+    }
+
+    public List<RefSpec> toRefSpecs( final String remoteName )
+        throws GitWrapException
+    {
+        final List<RefSpec> specs = new ArrayList<RefSpec>( branchPatterns.size() );
+        for ( final String pattern : branchPatterns )
+        {
+            final int wildcard = pattern.indexOf( '*' );
+            final boolean trailing = pattern.equals( "*" ) || pattern.endsWith( "/*" );
+            if ( wildcard > -1 && ( !trailing || wildcard != pattern.length() - 1 ) )
+            {
+                throw new GitWrapException( "Branch pattern: %s may only use '*' as its whole last path component.",
+                                            pattern );
+            }
+
+            final String src = Constants.R_HEADS + pattern;
+            final String dest = Constants.R_REMOTES + remoteName + "/" + pattern;
+            if ( !Repository.isValidRefName( src.replace( '*', 'x' ) ) )
+            {
+                throw new GitWrapException( "Invalid branch pattern: %s", pattern );
+            }
+
+            specs.add( new RefSpec().setForceUpdate( true ).setSourceDestination( src, dest ) );
+        }
+
+        return specs;
+    }
+
+    public TagOpt toTagOpt()
+    {
+        return tags ? TagOpt.AUTO_FOLLOW : TagOpt.NO_TAGS;
+    }
+
+    private static String stripHeads( final String branch )
+    {
+        if ( branch == null )
+        {
+            throw new IllegalArgumentException( "Branch pattern cannot be null." );
+        }
+
+        return branch.startsWith( Constants.R_HEADS ) ? branch.substring( Constants.R_HEADS.length() ) : branch;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "FetchRefFilter [branches=" + Arrays.toString( branchPatterns.toArray() ) + ", tags=" + tags + "]";
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public final class FleetFetchReport
+{
+
+    private final List<FetchOutcome> outcomes;
+
+    private final long elapsed;
+
+    FleetFetchReport( final List<FetchOutcome> outcomes, final long elapsed )
+    {
+        this.outcomes = Collections.unmodifiableList( outcomes );
+        this.elapsed = elapsed;
+    }
+
+    /**
+     * Per-repository outcomes, in the order the fetches were scheduled.
+     */
+    public List<FetchOutcome> getOutcomes()
+    {
+        return outcomes;
+    }
+
+    public List<FetchOutcome> getFailures()
+    {
+        final List<FetchOutcome> failures = new ArrayList<FetchOutcome>();
+        for ( final FetchOutcome outcome : outcomes )
+        {
+            if ( !outcome.isSuccessful() )
+            {
+                failures.add( outcome );
+            }
+        }
+
+        return failures;
+    }
+
+    public int getSucceededCount()
+    {
+        return outcomes.size() - getFailures().size();
+    }
+
+    /**
+     * Total wall-clock time for the run, in milliseconds.
+     */
+    public long getElapsed()
+    {
+        return elapsed;
+    }
+
+    /**
+     * Completed fetches per second of wall-clock time.
+     */
+    public double getThroughput()
+    {
+        return elapsed < 1 ? outcomes.size() * 1000.0 : outcomes.size() * 1000.0 / elapsed;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "FleetFetchReport [fetches=" + outcomes.size() + ", failed=" + getFailures().size() + ", elapsed="
+                        + elapsed + "ms, throughput=" + String.format( "%.2f", getThroughput() ) + "/s]";
+    }
+
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.URIish;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs {@link BareGitRepository#fetch(String)} for many (repository, remote) pairs, with a cap on total concurrent
+ * fetches and a separate cap per remote host. Queued fetches are dispatched in the order they were scheduled,
+ * skipping over entries whose host is saturated, so one slow upstream can't hold up everyone else. Fetches for the
+ * same repository never run concurrently.
+ */
+public final class FleetFetchScheduler
+{
+
+    private static final Logger LOGGER = Logger.getLogger( FleetFetchScheduler.class );
+
+    private static final String LOCAL_HOST = "localhost";
+
+    private final int maxConcurrent;
+
+    private final int maxPerHost;
+
+    private final List<FetchOutcome> scheduled = new ArrayList<FetchOutcome>();
+
+    public FleetFetchScheduler( final int maxConcurrent, final int maxPerHost )
+    {
+        if ( maxConcurrent < 1 || maxPerHost < 1 )
+        {
+            throw new IllegalArgumentException( "Concurrency limits must be at least 1." );
+        }
+
+        this.maxConcurrent = maxConcurrent;
+        this.maxPerHost = maxPerHost;
+    }
+
+    public synchronized FleetFetchScheduler schedule( final BareGitRepository repository, final String remoteName )
+    {
+        scheduled.add( new FetchOutcome( repository, remoteName ) );
+        return this;
+    }
+
+    /**
+     * Fetch everything scheduled so far, blocking until all fetches finish. Failures are recorded in the report
+     * rather than thrown.
+     */
+    public FleetFetchReport run()
+        throws GitWrapException
+    {
+        final List<FetchOutcome> outcomes;
+        synchronized ( this )
+        {
+            outcomes = new ArrayList<FetchOutcome>( scheduled );
+            scheduled.clear();
+        }
+
+        final long start = System.currentTimeMillis();
+
+        final LinkedList<FetchJob> queue = new LinkedList<FetchJob>();
+        for ( final FetchOutcome outcome : outcomes )
+        {
+            final FetchJob job = new FetchJob( outcome );
+            try
+            {
+                job.resolve();
+                queue.add( job );
+            }
+            catch ( final GitWrapException e )
+            {
+                outcome.setError( e );
+            }
+        }
+
+        final Map<String, Integer> runningPerHost = new HashMap<String, Integer>();
+        final Set<String> runningRepositories = new HashSet<String>();
+
+        final WorkerPool<FetchJob> pool = WorkerPool.unbounded( newThreadFactory() );
+
+        int active = 0;
+        try
+        {
+            while ( !queue.isEmpty() || active > 0 )
+            {
+                for ( final Iterator<FetchJob> it = queue.iterator(); it.hasNext() && active < maxConcurrent; )
+                {
+                    final FetchJob job = it.next();
+                    final Integer hostCount = runningPerHost.get( job.outcome.getHost() );
+                    if ( ( hostCount != null && hostCount >= maxPerHost )
+                        || runningRepositories.contains( job.repositoryKey ) )
+                    {
+                        continue;
+                    }
+
+                    it.remove();
+                    runningPerHost.put( job.outcome.getHost(), hostCount == null ? 1 : hostCount + 1 );
+                    runningRepositories.add( job.repositoryKey );
+
+                    pool.submit( job );
+                    active++;
+                }
+
+                final FetchJob done = pool.take();
+                active--;
+
+                runningPerHost.put( done.outcome.getHost(), runningPerHost.get( done.outcome.getHost() ) - 1 );
+                runningRepositories.remove( done.repositoryKey );
+
+                if ( LOGGER.isDebugEnabled() )
+                {
+                    LOGGER.debug( done.outcome );
+                }
+            }
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new GitWrapException( "Interrupted while waiting for fleet fetch to complete.", e );
+        }
+        catch ( final ExecutionException e )
+        {
+            throw new GitWrapException( "Fleet fetch failed. Reason: %s", e.getCause(), e.getCause().getMessage() );
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+
+        final FleetFetchReport report = new FleetFetchReport( outcomes, System.currentTimeMillis() - start );
+        LOGGER.info( report );
+
+        return report;
+    }
+
+    /**
+     * Uses virtual threads when the runtime supports them (fetches spend most of their time blocked on the network),
+     * and falls back to daemon platform threads otherwise. Concurrency is bounded by the scheduler either way.
+     */
+    static ThreadFactory newThreadFactory()
+    {
+        try
+        {
+            final Object builder = Thread.class.getMethod( "ofVirtual" ).invoke( null );
+            final Class<?> builderType = Class.forName( "java.lang.Thread$Builder" );
+            final Object named =
+                builderType.getMethod( "name", String.class, long.class ).invoke( builder, "gitwrap-fetch-", 1L );
+
+            return (ThreadFactory) builderType.getMethod( "factory" ).invoke( named );
+        }
+        catch ( final Exception e )
+        {
+            return WorkerPool.daemonThreads( "gitwrap-fetch-" );
+        }
+    }
+
+    private static final class FetchJob
+        implements Callable<FetchJob>
+    {
+        private final FetchOutcome outcome;
+
+        private String repositoryKey;
+
+        FetchJob( final FetchOutcome outcome )
+        {
+            this.outcome = outcome;
+        }
+
+        void resolve()
+            throws GitWrapException
+        {
+            final BareGitRepository repository = outcome.getRepository();
+            try
+            {
+                repositoryKey = repository.getGitDir().getCanonicalPath();
+
+                final RemoteConfig remote =
+                    new RemoteConfig( repository.requireRepository().getConfig(), outcome.getRemoteName() );
+
+                String host = null;
+                if ( !remote.getURIs().isEmpty() )
+                {
+                    final URIish uri = remote.getURIs().get( 0 );
+                    host = uri.getHost();
+                    if ( host != null && uri.getPort() > 0 )
+                    {
+                        host += ":" + uri.getPort();
+                    }
+                }
+
+                outcome.setHost( host == null ? LOCAL_HOST : host );
+            }
+            catch ( final IOException e )
+            {
+                throw new GitWrapException( "Cannot resolve repository: %s. Reason: %s", e, repository.getGitDir(),
+                                            e.getMessage() );
+            }
+            catch ( final URISyntaxException e )
+            {
+                throw new GitWrapException( "Cannot read configuration for remote: %s. Reason: %s", e,
+                                            outcome.getRemoteName(), e.getMessage() );
+            }
+        }
+
+        public FetchJob call()
+        {
+            final long start = System.currentTimeMillis();
+            try
+            {
+                outcome.setFetchResult( outcome.getRepository()
+                                               .fetch( outcome.getRemoteName() )
+                                               .getLatestFetchResult() );
+            }
+            catch ( final Exception e )
+            {
+                outcome.setError( e );
+            }
+            finally
+            {
+                outcome.setDuration( System.currentTimeMillis() - start );
+            }
+
+            return this;
+        }
+    }
+
+}
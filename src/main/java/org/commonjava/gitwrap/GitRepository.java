@@ -19,39 +19,57 @@
 package org.commonjava.gitwrap;
 
 import org.apache.log4j.Logger;
-import org.eclipse.jgit.api.AddCommand;
 import org.eclipse.jgit.api.errors.ConcurrentRefUpdateException;
 import org.eclipse.jgit.api.errors.JGitInternalException;
-import org.eclipse.jgit.api.errors.NoFilepatternException;
 import org.eclipse.jgit.api.errors.NoHeadException;
 import org.eclipse.jgit.api.errors.NoMessageException;
 import org.eclipse.jgit.api.errors.WrongRepositoryStateException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.dircache.DirCacheIterator;
 import org.eclipse.jgit.errors.UnmergedPathException;
 import org.eclipse.jgit.lib.Constants;
-import org.eclipse.jgit.lib.GitIndex;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.RefUpdate.Result;
-import org.eclipse.jgit.lib.Tree;
-import org.eclipse.jgit.lib.WorkDirCheckout;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.storage.file.FileRepository;
 import org.eclipse.jgit.transport.FetchResult;
 import org.eclipse.jgit.treewalk.FileTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.WorkingTreeIterator;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
-@SuppressWarnings( "deprecation" )
 public class GitRepository
     extends BareGitRepository
 {
 
     private static final Logger LOGGER = Logger.getLogger( GitRepository.class );
 
+    private static volatile int checkoutThreads = Runtime.getRuntime().availableProcessors();
+
+    private static volatile int commitThreads = Runtime.getRuntime().availableProcessors();
+
+    private volatile WorkTreeWatcher watcher;
+
     public GitRepository( final File workDir )
         throws IOException
     {
@@ -64,6 +82,46 @@ public class GitRepository
         super( new File( workDir, Constants.DOT_GIT ), create, workDir );
     }
 
+    // lazy; see BareGitRepository.lazy(..)
+    private GitRepository( final boolean create, final File workDir )
+    {
+        super( new File( workDir, Constants.DOT_GIT ), workDir, create );
+    }
+
+    GitRepository( final File workDir, final RepositoryHandleCache.Entry cacheEntry )
+    {
+        super( new File( workDir, Constants.DOT_GIT ), workDir, cacheEntry );
+    }
+
+    /**
+     * Number of worker threads used to write files during checkout and clone. Defaults to the number of available
+     * processors; 1 writes everything on the calling thread.
+     */
+    public static void setCheckoutThreads( final int threads )
+    {
+        checkoutThreads = Math.max( 1, threads );
+    }
+
+    /**
+     * Number of worker threads used to hash and compress files being committed. Defaults to the number of available
+     * processors.
+     */
+    public static void setCommitThreads( final int threads )
+    {
+        commitThreads = Math.max( 1, threads );
+    }
+
+    public static GitRepository lazy( final File workDir, final boolean create )
+    {
+        return new GitRepository( create, workDir );
+    }
+
+    public static GitRepository openShared( final File workDir )
+        throws IOException
+    {
+        return RepositoryHandleCache.getInstance().open( workDir, true );
+    }
+
     public static GitRepository cloneWithWorkdir( final String remoteUrl, final String remoteName,
                                                   final File targetDir, final boolean bare )
         throws GitWrapException
@@ -74,6 +132,13 @@ public class GitRepository
     public static GitRepository cloneWithWorkdir( final String remoteUrl, final String remoteName, final String branch,
                                                   final File targetDir, final boolean bare )
         throws GitWrapException
+    {
+        return cloneWithWorkdir( remoteUrl, remoteName, targetDir, new CloneOptions().setBranch( branch ) );
+    }
+
+    public static GitRepository cloneWithWorkdir( final String remoteUrl, final String remoteName,
+                                                  final File targetDir, final CloneOptions options )
+        throws GitWrapException
     {
         File workDir = targetDir;
         if ( workDir.getName().equals( ".git" ) )
@@ -92,7 +157,20 @@ public class GitRepository
                                         e.getMessage() );
         }
 
-        repo.doClone( remoteUrl, remoteName, branch );
+        if ( !options.getSparsePatterns().isEmpty() )
+        {
+            try
+            {
+                SparseCheckout.save( repo.requireRepository(), options.getSparsePatterns() );
+            }
+            catch ( final IOException e )
+            {
+                throw new GitWrapException( "Cannot write sparse-checkout patterns in: %s. Reason: %s", e, targetDir,
+                                            e.getMessage() );
+            }
+        }
+
+        repo.doClone( remoteUrl, remoteName, options );
 
         return repo;
     }
@@ -100,25 +178,16 @@ public class GitRepository
     public GitRepository commitChanges( final String message, final String... filePatterns )
         throws GitWrapException
     {
-        final AddCommand add = getGit().add();
-        add.setWorkingTreeIterator( new FileTreeIterator( getRepository() ) );
-        for ( final String pattern : filePatterns )
+        if ( filePatterns.length == 0 )
         {
-            add.addFilepattern( pattern );
+            throw new GitWrapException( "Failed to add file patterns: %s", "At least one pattern is expected" );
         }
 
-        try
-        {
-            add.call();
-        }
-        catch ( final NoFilepatternException e )
-        {
-            throw new GitWrapException( "Failed to add file patterns: %s", e, e.getMessage() );
-        }
+        addToIndex( filePatterns );
 
         try
         {
-            getGit().commit().setMessage( message ).setAuthor( new PersonIdent( getRepository() ) ).call();
+            requireGit().commit().setMessage( message ).setAuthor( new PersonIdent( requireRepository() ) ).call();
         }
         catch ( final NoHeadException e )
         {
@@ -148,6 +217,412 @@ public class GitRepository
         return this;
     }
 
+    /**
+     * Commit the worktree content of exactly the given paths (relative to the worktree), like
+     * <code>git commit --only</code>: every other path keeps its content from HEAD. Only these files are read, and
+     * only if their index entry's stat data doesn't already vouch for them; a path missing from the worktree is
+     * deleted. The new tree reuses every untouched subtree of HEAD's tree, and only these paths' index entries are
+     * updated. HEAD moves with a compare-and-swap, so a concurrent commit makes this one fail rather than vanish.
+     */
+    public GitRepository commitPaths( final String message, final String... paths )
+        throws GitWrapException
+    {
+        final FileRepository repository = requireRepository();
+        final File workTree = repository.getWorkTree();
+
+        // the same rule the tree editor applies: nothing may resolve outside the worktree or into .git.
+        final List<String> committed = new ArrayList<String>( paths.length );
+        for ( final String path : paths )
+        {
+            final String normalized = path.replace( File.separatorChar, '/' );
+            TreeEditor.checkPath( normalized );
+            committed.add( normalized );
+        }
+
+        final WorkTreeWatcher tracker = watcher;
+        final WorkTreeWatcher.Snapshot snapshot = tracker == null ? null : tracker.snapshot();
+
+        try
+        {
+            final ObjectId head = repository.resolve( Constants.HEAD );
+            final DirCache index = repository.lockDirCache();
+            final long indexModified = repository.getIndexFile().lastModified();
+            final ObjectInserter inserter = repository.newObjectInserter();
+            final ObjectReader reader = repository.newObjectReader();
+            try
+            {
+                final TreeEditor tree = new TreeEditor();
+                final DirCacheEditor editor = index.editor();
+
+                final List<IndexUpdate> updates = new ArrayList<IndexUpdate>();
+                final List<IndexUpdate> changed = new ArrayList<IndexUpdate>();
+                for ( final String path : committed )
+                {
+                    final File file = new File( workTree, path );
+                    final DirCacheEntry existing = index.getEntry( path );
+
+                    if ( file.isFile() )
+                    {
+                        final FileMode mode = fileMode( repository, file, existing );
+                        final IndexUpdate update = new IndexUpdate( path, mode, file );
+                        if ( existing != null && existing.getLength() == update.length
+                            && existing.getLastModified() == update.lastModified
+                            && !isRacy( update.lastModified, indexModified ) )
+                        {
+                            update.id = existing.getObjectId();
+                        }
+                        else
+                        {
+                            changed.add( update );
+                        }
+
+                        updates.add( update );
+                    }
+                    else if ( file.exists() )
+                    {
+                        throw new GitWrapException( "Cannot commit: %s. It is not a file.", path );
+                    }
+                    else if ( existing == null || !existing.isAssumeValid() )
+                    {
+                        // assume-valid entries are outside a sparse checkout; missing doesn't mean deleted.
+                        tree.delete( path );
+                        editor.add( new DirCacheEditor.DeletePath( path ) );
+                    }
+                }
+
+                ingest( repository, changed );
+                for ( final IndexUpdate update : updates )
+                {
+                    tree.put( update.getPath(), update.mode, update.id );
+                    editor.add( update );
+                }
+
+                final RevWalk walk = new RevWalk( reader );
+                final ObjectId baseTree = head == null ? null : walk.parseCommit( head ).getTree();
+                walk.release();
+
+                // written to the lock file only: if HEAD can't be moved, unlocking abandons the new index.
+                editor.finish();
+                index.write();
+
+                final ObjectId newTree = tree.write( reader, inserter, baseTree );
+                if ( newTree.equals( baseTree ) )
+                {
+                    // no commit, but the refreshed stat data is still worth keeping.
+                    LOGGER.info( "Nothing to commit in: " + Arrays.toString( paths ) );
+                }
+                else
+                {
+                    commitTree( inserter, Constants.HEAD, head, head, newTree, message, new PersonIdent( repository ) );
+                }
+
+                if ( !index.commit() )
+                {
+                    throw new IOException( "Cannot commit index in: " + repository.getDirectory() );
+                }
+
+                if ( snapshot != null )
+                {
+                    tracker.markClean( snapshot.retain( committed ) );
+                }
+            }
+            finally
+            {
+                reader.release();
+                inserter.release();
+                index.unlock();
+            }
+        }
+        catch ( final IOException e )
+        {
+            throw new GitWrapException( "Failed to commit paths: %s. Reason: %s", e, Arrays.toString( paths ),
+                                        e.getMessage() );
+        }
+
+        return this;
+    }
+
+    /**
+     * Stage worktree files matching the patterns, with the same semantics as jGit's AddCommand: "." means everything,
+     * anything else is a path prefix; untracked ignored files are skipped and files missing from the worktree keep
+     * their entries. Files whose index entry stat data still matches are not read at all; the rest are hashed and
+     * compressed in parallel by {@link BlobIngester}.
+     */
+    private void addToIndex( final String... filePatterns )
+        throws GitWrapException
+    {
+        final FileRepository repository = requireRepository();
+
+        final List<String> patterns = Arrays.asList( filePatterns );
+        final List<String> prefixes = patterns.contains( "." ) ? null : patterns;
+        final WorkTreeWatcher tracker = watcher;
+        final WorkTreeWatcher.Snapshot snapshot = tracker == null ? null : tracker.snapshot();
+        final TreeFilter filter = changeFilter( prefixes, snapshot );
+        if ( filter == null )
+        {
+            return;
+        }
+
+        try
+        {
+            final DirCache index = repository.lockDirCache();
+            final long indexModified = repository.getIndexFile().lastModified();
+            try
+            {
+                final List<IndexUpdate> updates = new ArrayList<IndexUpdate>();
+
+                final TreeWalk walk = new TreeWalk( repository );
+                try
+                {
+                    walk.addTree( new DirCacheIterator( index ) );
+                    walk.addTree( new FileTreeIterator( repository ) );
+                    walk.setRecursive( true );
+                    walk.setFilter( filter );
+
+                    while ( walk.next() )
+                    {
+                        final DirCacheIterator cached = walk.getTree( 0, DirCacheIterator.class );
+                        final WorkingTreeIterator file = walk.getTree( 1, WorkingTreeIterator.class );
+                        if ( file == null || file.getEntryFileMode() == FileMode.GITLINK
+                            || ( cached == null && file.isEntryIgnored() ) )
+                        {
+                            continue;
+                        }
+
+                        if ( cached != null && isStatClean( cached.getDirCacheEntry(), file, indexModified ) )
+                        {
+                            continue;
+                        }
+
+                        final String path = walk.getPathString();
+                        updates.add( new IndexUpdate( path, file.getEntryFileMode(),
+                                                      new File( repository.getWorkTree(), path ) ) );
+                    }
+                }
+                finally
+                {
+                    walk.release();
+                }
+
+                if ( !updates.isEmpty() )
+                {
+                    ingest( repository, updates );
+
+                    final DirCacheEditor editor = index.editor();
+                    for ( final IndexUpdate update : updates )
+                    {
+                        editor.add( update );
+                    }
+
+                    if ( !editor.commit() )
+                    {
+                        throw new IOException( "Cannot commit index in: " + repository.getDirectory() );
+                    }
+                }
+
+                if ( snapshot != null )
+                {
+                    tracker.markClean( snapshot.retain( prefixes ) );
+                }
+            }
+            finally
+            {
+                index.unlock();
+            }
+        }
+        catch ( final IOException e )
+        {
+            throw new GitWrapException( "Failed to add file patterns: %s. Reason: %s", e,
+                                        Arrays.toString( filePatterns ), e.getMessage() );
+        }
+    }
+
+    /**
+     * Worktree paths whose content differs from the index: modified, deleted, or untracked and not ignored. With change
+     * tracking on, only the paths touched since the last index write are examined.
+     */
+    public Set<String> getChangedPaths()
+        throws GitWrapException
+    {
+        final FileRepository repository = requireRepository();
+        final WorkTreeWatcher tracker = watcher;
+        final WorkTreeWatcher.Snapshot snapshot = tracker == null ? null : tracker.snapshot();
+        final TreeFilter filter = changeFilter( null, snapshot );
+
+        final Set<String> changed = new TreeSet<String>();
+        if ( filter == null )
+        {
+            return changed;
+        }
+
+        try
+        {
+            final long indexModified = repository.getIndexFile().lastModified();
+            final TreeWalk walk = new TreeWalk( repository );
+            try
+            {
+                walk.addTree( new DirCacheIterator( repository.readDirCache() ) );
+                walk.addTree( new FileTreeIterator( repository ) );
+                walk.setRecursive( true );
+                walk.setFilter( filter );
+
+                while ( walk.next() )
+                {
+                    final DirCacheIterator cached = walk.getTree( 0, DirCacheIterator.class );
+                    final WorkingTreeIterator file = walk.getTree( 1, WorkingTreeIterator.class );
+
+                    final boolean isChanged;
+                    if ( cached == null )
+                    {
+                        isChanged = !file.isEntryIgnored();
+                    }
+                    else if ( file == null )
+                    {
+                        // assume-valid entries are outside a sparse checkout.
+                        isChanged = !cached.getDirCacheEntry().isAssumeValid();
+                    }
+                    else
+                    {
+                        isChanged = isModified( cached.getDirCacheEntry(), file, indexModified );
+                    }
+
+                    if ( isChanged )
+                    {
+                        changed.add( walk.getPathString() );
+                    }
+                }
+            }
+            finally
+            {
+                walk.release();
+            }
+        }
+        catch ( final IOException e )
+        {
+            throw new GitWrapException( "Failed to scan worktree: %s. Reason: %s", e, repository.getWorkTree(),
+                                        e.getMessage() );
+        }
+
+        if ( snapshot != null )
+        {
+            // a full scan knows everything that is dirty, so the watcher's events are enough from here on.
+            tracker.markScanned( snapshot, changed );
+        }
+
+        return changed;
+    }
+
+    /**
+     * Watch the worktree for changes, so {@link #commitChanges(String, String...)} and {@link #getChangedPaths()} only
+     * look at paths touched since the last index write instead of scanning everything. The first operation after
+     * starting (or after the watcher loses events) still does a full scan. Stopped by {@link #close()}.
+     */
+    public synchronized GitRepository startChangeTracking()
+        throws GitWrapException
+    {
+        if ( watcher == null )
+        {
+            final FileRepository repository = requireRepository();
+            final File workTree = repository.getWorkTree();
+            try
+            {
+                watcher = new WorkTreeWatcher( workTree, repository.getDirectory() );
+            }
+            catch ( final IOException e )
+            {
+                throw new GitWrapException( "Cannot watch worktree: %s. Reason: %s", e, workTree, e.getMessage() );
+            }
+        }
+
+        return this;
+    }
+
+    public synchronized GitRepository stopChangeTracking()
+    {
+        if ( watcher != null )
+        {
+            watcher.close();
+            watcher = null;
+        }
+
+        return this;
+    }
+
+    public boolean isTrackingChanges()
+    {
+        return watcher != null;
+    }
+
+    @Override
+    public void close()
+    {
+        stopChangeTracking();
+        super.close();
+    }
+
+    // null patterns means everything. Returns null if nothing can have changed.
+    private static TreeFilter changeFilter( final List<String> patterns, final WorkTreeWatcher.Snapshot snapshot )
+    {
+        final TreeFilter filter = patterns == null ? TreeFilter.ALL : PathFilterGroup.createFromStrings( patterns );
+        if ( snapshot == null || snapshot.isOverflowed() )
+        {
+            return filter;
+        }
+
+        if ( snapshot.getPaths().isEmpty() )
+        {
+            return null;
+        }
+
+        final TreeFilter dirty = PathFilterGroup.createFromStrings( snapshot.getPaths() );
+        return patterns == null ? dirty : AndTreeFilter.create( filter, dirty );
+    }
+
+    private static boolean isModified( final DirCacheEntry entry, final WorkingTreeIterator file,
+                                       final long indexModified )
+    {
+        if ( entry.getFileMode() == FileMode.GITLINK || isStatClean( entry, file, indexModified ) )
+        {
+            return false;
+        }
+
+        return entry.getStage() != DirCacheEntry.STAGE_0 || entry.getFileMode() != file.getEntryFileMode()
+            || !entry.getObjectId().equals( file.getEntryObjectId() );
+    }
+
+    private static boolean isStatClean( final DirCacheEntry entry, final WorkingTreeIterator file,
+                                        final long indexModified )
+    {
+        return entry.getStage() == DirCacheEntry.STAGE_0 && entry.getFileMode() == file.getEntryFileMode()
+            && entry.getLength() == file.getEntryLength() && entry.getLastModified() == file.getEntryLastModified()
+            && !isRacy( entry.getLastModified(), indexModified );
+    }
+
+    /**
+     * Racy git: a file modified no earlier than the index was written may have changed again within the same
+     * timestamp tick after its entry was recorded, so its stat data can't vouch for its content.
+     */
+    static boolean isRacy( final long lastModified, final long indexModified )
+    {
+        return lastModified >= indexModified;
+    }
+
+    private static void ingest( final FileRepository repository, final List<IndexUpdate> updates )
+        throws IOException, GitWrapException
+    {
+        final List<File> files = new ArrayList<File>( updates.size() );
+        for ( final IndexUpdate update : updates )
+        {
+            files.add( update.file );
+        }
+
+        final ObjectId[] ids = new BlobIngester( repository, commitThreads ).ingest( files );
+        for ( int i = 0; i < ids.length; i++ )
+        {
+            updates.get( i ).id = ids[i];
+        }
+    }
+
     @Override
     public GitRepository createBranch( final String source, final String name )
         throws GitWrapException
@@ -183,35 +658,40 @@ public class GitRepository
                 LOGGER.debug( "Checking out: " + refName );
             }
 
-            final FileRepository repository = getRepository();
+            final FileRepository repository = requireRepository();
             final boolean detach = !refName.startsWith( Constants.R_HEADS );
 
             try
             {
                 final RevWalk walk = new RevWalk( repository );
                 final RevCommit newCommit = walk.parseCommit( repository.resolve( refName ) );
-                final RevCommit oldCommit = walk.parseCommit( repository.resolve( Constants.HEAD ) );
-                final GitIndex index = repository.getIndex();
+                final ObjectId head = repository.resolve( Constants.HEAD );
+                final RevTree oldTree = head == null ? null : walk.parseCommit( head ).getTree();
                 final RevTree newTree = newCommit.getTree();
-                final RevTree oldTree = oldCommit.getTree();
 
                 if ( LOGGER.isDebugEnabled() )
                 {
                     LOGGER.debug( "Checking out: " + newCommit + " (resolved from: " + refName + ")" );
                 }
 
-                final WorkDirCheckout checkout =
-                    new WorkDirCheckout( repository, repository.getWorkTree(), repository.mapTree( oldTree ), index,
-                                         repository.mapTree( newTree ) );
-
-                checkout.checkout();
-
-                if ( LOGGER.isDebugEnabled() )
+                if ( newTree.equals( oldTree ) )
                 {
-                    LOGGER.debug( "Writing index..." );
+                    if ( LOGGER.isDebugEnabled() )
+                    {
+                        LOGGER.debug( "Same tree as HEAD; leaving worktree and index alone." );
+                    }
                 }
+                else
+                {
+                    final WorkTreeCheckout checkout =
+                        new WorkTreeCheckout( repository, checkoutThreads, SparseCheckout.load( repository ) );
+                    final int changed = checkout.checkout( oldTree, newTree );
 
-                index.write();
+                    if ( LOGGER.isDebugEnabled() )
+                    {
+                        LOGGER.debug( "Updated " + changed + " paths." );
+                    }
+                }
 
                 final RefUpdate u = repository.updateRef( Constants.HEAD, detach );
                 Result result;
@@ -279,15 +759,14 @@ public class GitRepository
             final Ref remoteHead = fetchResult.getAdvertisedRef( branchRef );
             if ( remoteHead != null && remoteHead.getObjectId() != null )
             {
-                final FileRepository repo = getRepository();
+                final FileRepository repo = requireRepository();
 
                 final RevWalk walk = new RevWalk( repo );
                 final RevCommit commit = walk.parseCommit( remoteHead.getObjectId() );
-                final GitIndex index = new GitIndex( repo );
-                final Tree tree = repo.mapTree( commit.getTree() );
 
-                new WorkDirCheckout( repo, repo.getWorkTree(), index, tree ).checkout();
-                index.write();
+                final WorkTreeCheckout checkout =
+                    new WorkTreeCheckout( repo, checkoutThreads, SparseCheckout.load( repo ) );
+                checkout.checkout( null, commit.getTree() );
             }
         }
         catch ( final IOException e )
@@ -300,4 +779,55 @@ public class GitRepository
         }
     }
 
+    private static FileMode fileMode( final FileRepository repository, final File file, final DirCacheEntry existing )
+    {
+        if ( repository.getFS().supportsExecute() )
+        {
+            return repository.getFS().canExecute( file ) ? FileMode.EXECUTABLE_FILE : FileMode.REGULAR_FILE;
+        }
+
+        // can't tell from the filesystem; keep whatever was recorded.
+        return existing == null ? FileMode.REGULAR_FILE : existing.getFileMode();
+    }
+
+    private static final class IndexUpdate
+        extends DirCacheEditor.PathEdit
+    {
+        private final String path;
+
+        private final FileMode mode;
+
+        private final File file;
+
+        private final long length;
+
+        private final long lastModified;
+
+        private ObjectId id;
+
+        IndexUpdate( final String path, final FileMode mode, final File file )
+        {
+            super( path );
+            this.path = path;
+            this.mode = mode;
+            this.file = file;
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        String getPath()
+        {
+            return path;
+        }
+
+        @Override
+        public void apply( final DirCacheEntry entry )
+        {
+            entry.setFileMode( mode );
+            entry.setObjectId( id );
+            entry.setLength( (int) length );
+            entry.setLastModified( lastModified );
+        }
+    }
+
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+
+import java.util.List;
+
+/**
+ * One commit listed by {@link BareGitRepository#log(LogQuery)}.
+ */
+public final class LogEntry
+{
+
+    private final ObjectId id;
+
+    private final List<ObjectId> parents;
+
+    private final PersonIdent author;
+
+    private final PersonIdent committer;
+
+    private final String message;
+
+    LogEntry( final ObjectId id, final List<ObjectId> parents, final PersonIdent author, final PersonIdent committer,
+              final String message )
+    {
+        this.id = id;
+        this.parents = parents;
+        this.author = author;
+        this.committer = committer;
+        this.message = message;
+    }
+
+    public ObjectId getId()
+    {
+        return id;
+    }
+
+    public List<ObjectId> getParents()
+    {
+        return parents;
+    }
+
+    public PersonIdent getAuthor()
+    {
+        return author;
+    }
+
+    public PersonIdent getCommitter()
+    {
+        return committer;
+    }
+
+    public String getMessage()
+    {
+        return message;
+    }
+
+    /**
+     * First line of the message.
+     */
+    public String getShortMessage()
+    {
+        final int eol = message.indexOf( '\n' );
+        return eol < 0 ? message : message.substring( 0, eol );
+    }
+
+    @Override
+    public String toString()
+    {
+        return id.name() + " " + getShortMessage();
+    }
+
+}
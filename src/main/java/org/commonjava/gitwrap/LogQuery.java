@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+/**
+ * Options for {@link BareGitRepository#log(LogQuery)}: the range <code>since..until</code>, author and path filters, a
+ * page size, and a cursor from a previous page.
+ */
+public final class LogQuery
+{
+
+    private String since;
+
+    private String until;
+
+    private String author;
+
+    private String path;
+
+    private int maxCount;
+
+    private String cursor;
+
+    /**
+     * Revision whose history is excluded, as in <code>git log since..until</code>. Defaults to none.
+     */
+    public String getSince()
+    {
+        return since;
+    }
+
+    public LogQuery setSince( final String since )
+    {
+        this.since = since;
+        return this;
+    }
+
+    /**
+     * Revision to start from. Defaults to HEAD.
+     */
+    public String getUntil()
+    {
+        return until;
+    }
+
+    public LogQuery setUntil( final String until )
+    {
+        this.until = until;
+        return this;
+    }
+
+    /**
+     * Only list commits whose author name or email contains this text (ignoring case).
+     */
+    public String getAuthor()
+    {
+        return author;
+    }
+
+    public LogQuery setAuthor( final String author )
+    {
+        this.author = author;
+        return this;
+    }
+
+    /**
+     * Only list commits that changed this file or directory (or anything below it) relative to their first parent.
+     */
+    public String getPath()
+    {
+        return path;
+    }
+
+    public LogQuery setPath( final String path )
+    {
+        this.path = path;
+        return this;
+    }
+
+    /**
+     * Most entries to list; zero (the default) means no limit. Use with {@link CommitLog#getCursor()} to page.
+     */
+    public int getMaxCount()
+    {
+        return maxCount;
+    }
+
+    public LogQuery setMaxCount( final int maxCount )
+    {
+        this.maxCount = maxCount;
+        return this;
+    }
+
+    /**
+     * Resume where a previous page of the same query left off, instead of starting from <code>until</code>.
+     */
+    public String getCursor()
+    {
+        return cursor;
+    }
+
+    public LogQuery setCursor( final String cursor )
+    {
+        this.cursor = cursor;
+        return this;
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import java.io.File;
+
+public final class MaintenanceResult
+{
+
+    private final File gitDir;
+
+    private long packedObjects;
+
+    private int packsRemoved;
+
+    private int looseObjectsRemoved;
+
+    private int looseObjectsPruned;
+
+    private int reflogEntriesExpired;
+
+    private long duration;
+
+    MaintenanceResult( final File gitDir )
+    {
+        this.gitDir = gitDir;
+    }
+
+    public File getGitDir()
+    {
+        return gitDir;
+    }
+
+    /**
+     * Number of objects written to the new pack, or zero if nothing was repacked.
+     */
+    public long getPackedObjects()
+    {
+        return packedObjects;
+    }
+
+    /**
+     * Old packs deleted because every object they held was copied into the new pack.
+     */
+    public int getPacksRemoved()
+    {
+        return packsRemoved;
+    }
+
+    /**
+     * Loose objects deleted because they are now packed.
+     */
+    public int getLooseObjectsRemoved()
+    {
+        return looseObjectsRemoved;
+    }
+
+    /**
+     * Unreachable loose objects deleted because they were older than the prune grace period.
+     */
+    public int getLooseObjectsPruned()
+    {
+        return looseObjectsPruned;
+    }
+
+    public int getReflogEntriesExpired()
+    {
+        return reflogEntriesExpired;
+    }
+
+    /**
+     * Total run time, in milliseconds.
+     */
+    public long getDuration()
+    {
+        return duration;
+    }
+
+    void setPackedObjects( final long packedObjects )
+    {
+        this.packedObjects = packedObjects;
+    }
+
+    void packRemoved()
+    {
+        packsRemoved++;
+    }
+
+    void looseObjectRemoved()
+    {
+        looseObjectsRemoved++;
+    }
+
+    void looseObjectPruned()
+    {
+        looseObjectsPruned++;
+    }
+
+    void reflogEntriesExpired( final int count )
+    {
+        reflogEntriesExpired += count;
+    }
+
+    void setDuration( final long duration )
+    {
+        this.duration = duration;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MaintenanceResult [" + gitDir + ": packed=" + packedObjects + ", packsRemoved=" + packsRemoved
+                        + ", looseRemoved=" + looseObjectsRemoved + ", loosePruned=" + looseObjectsPruned
+                        + ", reflogExpired=" + reflogEntriesExpired + ", duration=" + duration + "ms]";
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically checks registered repositories with {@link BareGitRepository#needsMaintenance(int, int)} and runs
+ * {@link BareGitRepository#maintain(long, long)} on those that have crossed a threshold. Repositories are maintained
+ * one at a time on a single daemon thread, so background maintenance never competes with itself for disk.
+ */
+public final class MaintenanceScheduler
+    implements Closeable
+{
+
+    private static final Logger LOGGER = Logger.getLogger( MaintenanceScheduler.class );
+
+    private final Set<BareGitRepository> repositories = new CopyOnWriteArraySet<BareGitRepository>();
+
+    private final int looseObjectLimit;
+
+    private final int packLimit;
+
+    private final ScheduledExecutorService executor;
+
+    private volatile long pruneGrace = RepositoryMaintenance.DEFAULT_PRUNE_GRACE;
+
+    private volatile long reflogExpiry = RepositoryMaintenance.DEFAULT_REFLOG_EXPIRY;
+
+    public MaintenanceScheduler( final long interval, final TimeUnit unit, final int looseObjectLimit,
+                                 final int packLimit )
+    {
+        this.looseObjectLimit = looseObjectLimit;
+        this.packLimit = packLimit;
+
+        executor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+        {
+            public Thread newThread( final Runnable r )
+            {
+                final Thread t = new Thread( r, "gitwrap-maintenance" );
+                t.setDaemon( true );
+                t.setPriority( Thread.MIN_PRIORITY );
+                return t;
+            }
+        } );
+
+        executor.scheduleWithFixedDelay( new Runnable()
+        {
+            public void run()
+            {
+                runOnce();
+            }
+        }, interval, interval, unit );
+    }
+
+    public MaintenanceScheduler register( final BareGitRepository repository )
+    {
+        repositories.add( repository );
+        return this;
+    }
+
+    public MaintenanceScheduler unregister( final BareGitRepository repository )
+    {
+        repositories.remove( repository );
+        return this;
+    }
+
+    /**
+     * Grace period, in milliseconds, before an unreachable loose object may be pruned.
+     */
+    public MaintenanceScheduler setPruneGrace( final long pruneGrace )
+    {
+        this.pruneGrace = pruneGrace;
+        return this;
+    }
+
+    /**
+     * Age, in milliseconds, after which reflog entries are expired.
+     */
+    public MaintenanceScheduler setReflogExpiry( final long reflogExpiry )
+    {
+        this.reflogExpiry = reflogExpiry;
+        return this;
+    }
+
+    public void close()
+    {
+        executor.shutdownNow();
+    }
+
+    void runOnce()
+    {
+        for ( final BareGitRepository repository : repositories )
+        {
+            if ( Thread.currentThread().isInterrupted() )
+            {
+                return;
+            }
+
+            try
+            {
+                if ( repository.needsMaintenance( looseObjectLimit, packLimit ) )
+                {
+                    repository.maintain( pruneGrace, reflogExpiry );
+                }
+            }
+            catch ( final GitWrapException e )
+            {
+                // keep going; a closed handle or a busy gc.lock shouldn't stop the rest of the fleet.
+                LOGGER.warn( "Background maintenance failed for: " + repository.getGitDir() + ". Reason: "
+                                + e.getMessage(), e );
+            }
+            catch ( final RuntimeException e )
+            {
+                // an exception escaping this task would cancel every later run of it.
+                LOGGER.error( "Background maintenance failed for: " + repository.getGitDir() + ". Reason: "
+                                + e.getMessage(), e );
+            }
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public final class MirrorPushResult
+{
+
+    private final String remoteName;
+
+    private final List<UriPushResult> results;
+
+    MirrorPushResult( final String remoteName, final List<UriPushResult> results )
+    {
+        this.remoteName = remoteName;
+        this.results = Collections.unmodifiableList( results );
+    }
+
+    public String getRemoteName()
+    {
+        return remoteName;
+    }
+
+    /**
+     * Per-URI results, in the order the push URIs are configured for the remote.
+     */
+    public List<UriPushResult> getResults()
+    {
+        return results;
+    }
+
+    public List<UriPushResult> getFailures()
+    {
+        final List<UriPushResult> failures = new ArrayList<UriPushResult>();
+        for ( final UriPushResult result : results )
+        {
+            if ( !result.isSuccessful() )
+            {
+                failures.add( result );
+            }
+        }
+
+        return failures;
+    }
+
+    public boolean isSuccessful()
+    {
+        return getFailures().isEmpty();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MirrorPushResult [remote=" + remoteName + ", results=" + results + "]";
+    }
+
+}
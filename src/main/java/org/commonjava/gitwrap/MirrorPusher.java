@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.URIish;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+final class MirrorPusher
+{
+
+    private static final Logger LOGGER = Logger.getLogger( MirrorPusher.class );
+
+    private final FileRepository repository;
+
+    private final RemoteConfig remote;
+
+    private final Collection<RemoteRefUpdate> remoteRefUpdates;
+
+    MirrorPusher( final FileRepository repository, final RemoteConfig remote,
+                  final Collection<RemoteRefUpdate> remoteRefUpdates )
+    {
+        this.repository = repository;
+        this.remote = remote;
+        this.remoteRefUpdates = remoteRefUpdates;
+    }
+
+    MirrorPushResult push( final int maxThreads, final PushPolicy policy )
+        throws GitWrapException
+    {
+        final List<URIish> uris = remote.getPushURIs();
+        final UriPushResult[] results = new UriPushResult[uris.size()];
+        if ( uris.isEmpty() )
+        {
+            return new MirrorPushResult( remote.getName(), new ArrayList<UriPushResult>() );
+        }
+
+        final int threads = Math.max( 1, Math.min( maxThreads, uris.size() ) );
+        final WorkerPool<Integer> pool = WorkerPool.fixed( threads, "gitwrap-push-" );
+
+        final List<PushTask> tasks = new ArrayList<PushTask>( uris.size() );
+        try
+        {
+            for ( int i = 0; i < uris.size(); i++ )
+            {
+                results[i] = new UriPushResult( uris.get( i ) );
+
+                final PushTask task = new PushTask( i, results[i] );
+                tasks.add( task );
+                pool.submit( task );
+            }
+
+            for ( int i = 0; i < tasks.size(); i++ )
+            {
+                final int idx = pool.take();
+                if ( policy == PushPolicy.FAIL_FAST && !results[idx].isSuccessful() && !results[idx].isCancelled() )
+                {
+                    LOGGER.info( "Push to: " + results[idx].getUri() + " failed. Cancelling outstanding pushes." );
+                    for ( final PushTask task : tasks )
+                    {
+                        task.monitor.cancel();
+                    }
+                }
+            }
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new GitWrapException( "Interrupted while pushing to remote: %s", e, remote.getName() );
+        }
+        catch ( final ExecutionException e )
+        {
+            throw new GitWrapException( "Push to remote: %s failed. Reason: %s", e.getCause(), remote.getName(),
+                                        e.getCause().getMessage() );
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+
+        return new MirrorPushResult( remote.getName(), Arrays.asList( results ) );
+    }
+
+    private final class PushTask
+        implements Callable<Integer>
+    {
+        private final int idx;
+
+        private final UriPushResult result;
+
+        private final TransferMonitor monitor = new TransferMonitor();
+
+        PushTask( final int idx, final UriPushResult result )
+        {
+            this.idx = idx;
+            this.result = result;
+        }
+
+        public Integer call()
+        {
+            if ( monitor.isCancelled() )
+            {
+                result.setCancelled( true );
+                return idx;
+            }
+
+            final long start = System.currentTimeMillis();
+            try
+            {
+                final PushResult pushResult =
+                    BareGitRepository.pushTo( repository, remote, result.getUri(), remoteRefUpdates, monitor );
+
+                for ( final RemoteRefUpdate update : pushResult.getRemoteUpdates() )
+                {
+                    result.addRefUpdate( update );
+                }
+            }
+            catch ( final Exception e )
+            {
+                if ( monitor.isCancelled() )
+                {
+                    result.setCancelled( true );
+                }
+                else
+                {
+                    result.setError( e );
+                }
+            }
+            finally
+            {
+                result.setDuration( System.currentTimeMillis() - start );
+                result.setObjectsSent( monitor.getObjectsWritten() );
+            }
+
+            return idx;
+        }
+    }
+
+    /**
+     * Tracks objects written into the outgoing pack, and lets fail-fast pushes cancel a transfer in progress.
+     */
+    private static final class TransferMonitor
+        implements ProgressMonitor
+    {
+        private volatile boolean cancelled;
+
+        private boolean writing;
+
+        private long objectsWritten;
+
+        public void start( final int totalTasks )
+        {
+        }
+
+        public void beginTask( final String title, final int totalWork )
+        {
+            writing = title != null && title.startsWith( "Writing objects" );
+        }
+
+        public void update( final int completed )
+        {
+            if ( writing )
+            {
+                objectsWritten += completed;
+            }
+        }
+
+        public void endTask()
+        {
+            writing = false;
+        }
+
+        public boolean isCancelled()
+        {
+            return cancelled;
+        }
+
+        void cancel()
+        {
+            cancelled = true;
+        }
+
+        long getObjectsWritten()
+        {
+            return objectsWritten;
+        }
+    }
+
+}
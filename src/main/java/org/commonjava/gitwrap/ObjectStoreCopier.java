@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.Constants;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Populates an object store from another one on the local filesystem, hardlinking files when both live on the same
+ * filesystem and copying them otherwise. Git objects are immutable once written, so sharing the inode is safe.
+ */
+final class ObjectStoreCopier
+{
+
+    private static final Logger LOGGER = Logger.getLogger( ObjectStoreCopier.class );
+
+    private static final String PACK_DIR = "pack";
+
+    private static final String INFO_DIR = "info";
+
+    private static final String ALTERNATES = "alternates";
+
+    private int linked;
+
+    private int copied;
+
+    /**
+     * Return the objects directory of the repository referenced by the given URL, if it's a local directory or
+     * <code>file://</code> URL. Returns null for anything else.
+     */
+    static File findLocalObjectsDir( final String remoteUrl )
+    {
+        File dir;
+        if ( remoteUrl.startsWith( "file:" ) )
+        {
+            try
+            {
+                dir = new File( new URI( remoteUrl ) );
+            }
+            catch ( final URISyntaxException e )
+            {
+                return null;
+            }
+            catch ( final IllegalArgumentException e )
+            {
+                return null;
+            }
+        }
+        else if ( remoteUrl.indexOf( "://" ) > -1 )
+        {
+            return null;
+        }
+        else
+        {
+            dir = new File( remoteUrl );
+        }
+
+        if ( !dir.isDirectory() )
+        {
+            return null;
+        }
+
+        final File dotGit = new File( dir, Constants.DOT_GIT );
+        if ( dotGit.isDirectory() )
+        {
+            dir = dotGit;
+        }
+
+        final File objects = new File( dir, "objects" );
+        return objects.isDirectory() && new File( dir, Constants.HEAD ).isFile() ? objects : null;
+    }
+
+    static File[] readAlternates( final File objectsDir )
+        throws IOException
+    {
+        final File alternates = new File( new File( objectsDir, INFO_DIR ), ALTERNATES );
+        if ( !alternates.isFile() )
+        {
+            return new File[0];
+        }
+
+        final List<File> dirs = new ArrayList<File>();
+        final BufferedReader reader = new BufferedReader( new FileReader( alternates ) );
+        try
+        {
+            String line;
+            while ( ( line = reader.readLine() ) != null )
+            {
+                line = line.trim();
+                if ( line.length() > 0 && !line.startsWith( "#" ) )
+                {
+                    File dir = new File( line );
+                    if ( !dir.isAbsolute() )
+                    {
+                        dir = new File( objectsDir, line );
+                    }
+
+                    dirs.add( dir.getCanonicalFile() );
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        return dirs.toArray( new File[dirs.size()] );
+    }
+
+    static void writeAlternates( final File objectsDir, final File... alternateDirs )
+        throws IOException
+    {
+        final File info = new File( objectsDir, INFO_DIR );
+        info.mkdirs();
+
+        final File tmp = File.createTempFile( ALTERNATES, ".tmp", info );
+        final FileWriter writer = new FileWriter( tmp );
+        try
+        {
+            for ( final File dir : alternateDirs )
+            {
+                writer.write( dir.getCanonicalPath() );
+                writer.write( '\n' );
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        final File alternates = new File( info, ALTERNATES );
+        if ( !tmp.renameTo( alternates ) )
+        {
+            alternates.delete();
+            if ( !tmp.renameTo( alternates ) )
+            {
+                tmp.delete();
+                throw new IOException( "Cannot write: " + alternates );
+            }
+        }
+    }
+
+    /**
+     * Link or copy every pack, index and loose object from <code>src</code> into <code>dest</code>. Objects the
+     * source borrows through its own alternates are made reachable by carrying those alternates over.
+     */
+    void copyObjects( final File src, final File dest )
+        throws IOException
+    {
+        copyObjects( src, dest, true );
+    }
+
+    void copyObjects( final File src, final File dest, final boolean carryAlternates )
+        throws IOException
+    {
+        final File[] packs = new File( src, PACK_DIR ).listFiles();
+        if ( packs != null )
+        {
+            final File destPacks = new File( dest, PACK_DIR );
+            destPacks.mkdirs();
+
+            // indexes last, so the pack is complete by the time a reader can see it.
+            for ( final File pack : packs )
+            {
+                if ( pack.getName().endsWith( ".pack" ) )
+                {
+                    final File idx = new File( pack.getParentFile(), pack.getName().replaceAll( "\\.pack$", ".idx" ) );
+                    if ( idx.isFile() )
+                    {
+                        linkOrCopy( pack, new File( destPacks, pack.getName() ) );
+                        linkOrCopy( idx, new File( destPacks, idx.getName() ) );
+                    }
+                }
+            }
+        }
+
+        final File[] fanout = src.listFiles();
+        if ( fanout != null )
+        {
+            for ( final File dir : fanout )
+            {
+                if ( dir.isDirectory() && dir.getName().length() == 2 )
+                {
+                    final File[] objects = dir.listFiles();
+                    if ( objects == null || objects.length == 0 )
+                    {
+                        continue;
+                    }
+
+                    final File destDir = new File( dest, dir.getName() );
+                    destDir.mkdirs();
+
+                    for ( final File object : objects )
+                    {
+                        final File target = new File( destDir, object.getName() );
+                        if ( object.isFile() && !target.exists() )
+                        {
+                            linkOrCopy( object, target );
+                        }
+                    }
+                }
+            }
+        }
+
+        if ( carryAlternates )
+        {
+            final File[] alternates = readAlternates( src );
+            if ( alternates.length > 0 )
+            {
+                writeAlternates( dest, alternates );
+            }
+        }
+
+        if ( LOGGER.isDebugEnabled() )
+        {
+            LOGGER.debug( "Populated: " + dest + " from: " + src + " (" + linked + " linked, " + copied + " copied)" );
+        }
+    }
+
+    static boolean deleteAlternates( final File objectsDir )
+    {
+        final File alternates = new File( new File( objectsDir, INFO_DIR ), ALTERNATES );
+        return !alternates.exists() || alternates.delete();
+    }
+
+    void linkOrCopy( final File src, final File dest )
+        throws IOException
+    {
+        if ( dest.exists() )
+        {
+            return;
+        }
+
+        try
+        {
+            Files.createLink( dest.toPath(), src.toPath() );
+            linked++;
+            return;
+        }
+        catch ( final IOException e )
+        {
+            // probably a different filesystem (or one without hardlinks); fall back to a copy.
+        }
+        catch ( final UnsupportedOperationException e )
+        {
+            // same.
+        }
+
+        final File tmp = new File( dest.getParentFile(), dest.getName() + ".tmp" );
+        final FileChannel in = new FileInputStream( src ).getChannel();
+        try
+        {
+            final FileChannel out = new FileOutputStream( tmp ).getChannel();
+            try
+            {
+                final long size = in.size();
+                long position = 0;
+                while ( position < size )
+                {
+                    position += in.transferTo( position, size - position, out );
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        if ( !tmp.renameTo( dest ) )
+        {
+            tmp.delete();
+            if ( !dest.exists() )
+            {
+                throw new IOException( "Cannot copy: " + src + " to: " + dest );
+            }
+        }
+
+        dest.setReadOnly();
+        copied++;
+    }
+
+    int getLinkedCount()
+    {
+        return linked;
+    }
+
+    int getCopiedCount()
+    {
+        return copied;
+    }
+
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.storage.file.ObjectDirectory;
+import org.eclipse.jgit.storage.file.PackIndexWriter;
+import org.eclipse.jgit.transport.PackedObjectInfo;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Inserter that buffers (deflated) objects in memory and writes them into a single new pack on {@link #flush()},
+ * instead of one loose object file per insert. Meant for batches of small objects such as annotated tags, trees and
+ * commits; objects already present in the repository are skipped. Objects are not readable until flushed.
+ */
+final class PackInserter
+    extends ObjectInserter
+{
+
+    private final FileRepository repository;
+
+    private final Map<ObjectId, PendingObject> pending = new HashMap<ObjectId, PendingObject>();
+
+    private final List<PendingObject> order = new ArrayList<PendingObject>();
+
+    PackInserter( final FileRepository repository )
+    {
+        this.repository = repository;
+    }
+
+    @Override
+    public ObjectId insert( final int objectType, final long length, final InputStream in )
+        throws IOException
+    {
+        final byte[] data = new byte[(int) length];
+        int off = 0;
+        while ( off < data.length )
+        {
+            final int read = in.read( data, off, data.length - off );
+            if ( read < 0 )
+            {
+                throw new IOException( "Unexpected end of object data after: " + off + " of: " + length + " bytes." );
+            }
+
+            off += read;
+        }
+
+        final ObjectId id = idFor( objectType, data );
+        if ( pending.containsKey( id ) || repository.hasObject( id ) )
+        {
+            return id;
+        }
+
+        final ByteArrayOutputStream deflated = new ByteArrayOutputStream( data.length / 2 + 16 );
+        final Deflater deflater = new Deflater( Deflater.DEFAULT_COMPRESSION );
+        final DeflaterOutputStream out = new DeflaterOutputStream( deflated, deflater );
+        out.write( data );
+        out.close();
+        deflater.end();
+
+        final PendingObject obj = new PendingObject( id, objectType, data.length, deflated.toByteArray() );
+        pending.put( id, obj );
+        order.add( obj );
+
+        return id;
+    }
+
+    int getPendingCount()
+    {
+        return order.size();
+    }
+
+    @Override
+    public void flush()
+        throws IOException
+    {
+        if ( order.isEmpty() )
+        {
+            return;
+        }
+
+        final File packDir = new File( repository.getObjectsDirectory(), "pack" );
+        packDir.mkdirs();
+
+        final File tmpPack = File.createTempFile( "incoming_", ".pack", packDir );
+        final File tmpIdx = new File( packDir, tmpPack.getName().replaceAll( "\\.pack$", ".idx" ) );
+
+        try
+        {
+            final List<PackedObjectInfo> infos = new ArrayList<PackedObjectInfo>( order.size() );
+            final byte[] packChecksum = writePack( tmpPack, infos );
+
+            Collections.sort( infos );
+
+            final OutputStream idxOut = new BufferedOutputStream( new FileOutputStream( tmpIdx ) );
+            try
+            {
+                PackIndexWriter.createVersion( idxOut, 2 ).write( infos, packChecksum );
+            }
+            finally
+            {
+                idxOut.close();
+            }
+
+            final MessageDigest nameDigest = Constants.newMessageDigest();
+            for ( final PackedObjectInfo info : infos )
+            {
+                final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+                info.copyRawTo( raw, 0 );
+                nameDigest.update( raw );
+            }
+
+            final String name = "pack-" + ObjectId.fromRaw( nameDigest.digest() ).name();
+            final File packFile = new File( packDir, name + ".pack" );
+            final File idxFile = new File( packDir, name + ".idx" );
+
+            tmpPack.setReadOnly();
+            tmpIdx.setReadOnly();
+
+            if ( !tmpPack.renameTo( packFile ) || !tmpIdx.renameTo( idxFile ) )
+            {
+                packFile.delete();
+                throw new IOException( "Cannot install new pack: " + packFile );
+            }
+
+            ( (ObjectDirectory) repository.getObjectDatabase() ).openPack( packFile, idxFile );
+        }
+        finally
+        {
+            tmpPack.delete();
+            tmpIdx.delete();
+        }
+
+        pending.clear();
+        order.clear();
+    }
+
+    private byte[] writePack( final File packFile, final List<PackedObjectInfo> infos )
+        throws IOException
+    {
+        final MessageDigest digest = Constants.newMessageDigest();
+        final OutputStream out = new BufferedOutputStream( new FileOutputStream( packFile ) );
+        try
+        {
+            final byte[] header = new byte[12];
+            System.arraycopy( Constants.PACK_SIGNATURE, 0, header, 0, 4 );
+            putInt( header, 4, 2 );
+            putInt( header, 8, order.size() );
+
+            out.write( header );
+            digest.update( header );
+
+            long offset = header.length;
+            final CRC32 crc = new CRC32();
+            final byte[] objHeader = new byte[16];
+            for ( final PendingObject obj : order )
+            {
+                final int headerLength = encodeHeader( obj.type, obj.size, objHeader );
+
+                crc.reset();
+                crc.update( objHeader, 0, headerLength );
+                crc.update( obj.deflated );
+
+                final PackedObjectInfo info = new PackedObjectInfo( obj.id );
+                info.setOffset( offset );
+                info.setCRC( (int) crc.getValue() );
+                infos.add( info );
+
+                out.write( objHeader, 0, headerLength );
+                out.write( obj.deflated );
+                digest.update( objHeader, 0, headerLength );
+                digest.update( obj.deflated );
+
+                offset += headerLength + obj.deflated.length;
+            }
+
+            final byte[] checksum = digest.digest();
+            out.write( checksum );
+
+            return checksum;
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private static int encodeHeader( final int type, final long size, final byte[] buf )
+    {
+        long remaining = size >>> 4;
+        int n = 0;
+
+        int b = ( type << 4 ) | (int) ( size & 0x0F );
+        while ( remaining > 0 )
+        {
+            buf[n++] = (byte) ( b | 0x80 );
+            b = (int) ( remaining & 0x7F );
+            remaining >>>= 7;
+        }
+        buf[n++] = (byte) b;
+
+        return n;
+    }
+
+    private static void putInt( final byte[] buf, final int off, final int value )
+    {
+        buf[off] = (byte) ( value >>> 24 );
+        buf[off + 1] = (byte) ( value >>> 16 );
+        buf[off + 2] = (byte) ( value >>> 8 );
+        buf[off + 3] = (byte) value;
+    }
+
+    @Override
+    public void release()
+    {
+        pending.clear();
+        order.clear();
+    }
+
+    private static final class PendingObject
+    {
+        private final ObjectId id;
+
+        private final int type;
+
+        private final long size;
+
+        private final byte[] deflated;
+
+        PendingObject( final ObjectId id, final int type, final long size, final byte[] deflated )
+        {
+            this.id = id;
+            this.type = type;
+            this.size = size;
+            this.deflated = deflated;
+        }
+    }
+
+}
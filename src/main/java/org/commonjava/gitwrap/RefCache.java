@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.storage.file.FileRepository;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Immutable snapshot of every ref under <code>refs/</code>, rebuilt only when <code>packed-refs</code> or one of the
+ * directories holding loose refs has changed. Writing a loose ref always renames a lock file into place, which
+ * updates the modification time of the directory holding it, so checking a snapshot costs one stat per ref
+ * directory rather than one per ref. Ref updates made through this library are applied incrementally: the ref
+ * directories are stamped with {@link #beforeUpdate(FileRepository)} before writing, so a directory the write touches
+ * is only restamped if nothing else changed it first.
+ */
+final class RefCache
+{
+
+    // filesystem timestamps may be this coarse; changes inside this window can't be told apart from the scan.
+    private static final long RACY_WINDOW = 2000;
+
+    private Snapshot snapshot;
+
+    synchronized Snapshot get( final FileRepository repository )
+        throws IOException
+    {
+        if ( snapshot == null || snapshot.isStale( repository ) )
+        {
+            snapshot = Snapshot.scan( repository );
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Current timestamps of the snapshot's ref directories, to hand to {@link #updated(FileRepository, Stamps,
+     * Collection)} once the refs are written. Null if there is no snapshot to update.
+     */
+    synchronized Stamps beforeUpdate( final FileRepository repository )
+    {
+        if ( snapshot == null )
+        {
+            return null;
+        }
+
+        final Map<String, Long> dirs = new HashMap<String, Long>();
+        for ( final String dir : snapshot.dirStamps.keySet() )
+        {
+            dirs.put( dir, new File( dir ).lastModified() );
+        }
+
+        return new Stamps( snapshot, dirs );
+    }
+
+    /**
+     * Apply ref changes made through this library. If anything else changed since the snapshot was taken, including
+     * in the directories the update touched before it was written, the snapshot is simply dropped.
+     */
+    synchronized void updated( final FileRepository repository, final Stamps before, final Collection<String> refNames )
+    {
+        if ( snapshot == null )
+        {
+            return;
+        }
+
+        if ( before == null || before.snapshot != snapshot )
+        {
+            snapshot = null;
+            return;
+        }
+
+        final Set<String> touched = new HashSet<String>();
+        for ( final String refName : refNames )
+        {
+            for ( File dir = new File( repository.getDirectory(), refName ).getParentFile(); dir != null
+                && dir.getPath().startsWith( snapshot.refsDir ); dir = dir.getParentFile() )
+            {
+                touched.add( dir.getPath() );
+            }
+        }
+
+        if ( snapshot.isStale( repository, touched ) )
+        {
+            snapshot = null;
+            return;
+        }
+
+        for ( final String dir : touched )
+        {
+            final Long old = snapshot.dirStamps.get( dir );
+            if ( old != null && !old.equals( before.dirs.get( dir ) ) )
+            {
+                snapshot = null;
+                return;
+            }
+        }
+
+        final long restamped = System.currentTimeMillis();
+        final Map<String, Long> stamps = new HashMap<String, Long>( snapshot.dirStamps );
+        for ( final String dir : touched )
+        {
+            stamps.put( dir, new File( dir ).lastModified() );
+        }
+
+        final Map<String, Ref> refs = new TreeMap<String, Ref>( snapshot.refs );
+        try
+        {
+            for ( final String refName : refNames )
+            {
+                final Ref ref = repository.getRefDatabase().getRef( refName );
+                if ( ref == null )
+                {
+                    refs.remove( refName );
+                }
+                else
+                {
+                    refs.put( refName, ref );
+                }
+            }
+        }
+        catch ( final IOException e )
+        {
+            snapshot = null;
+            return;
+        }
+
+        // the directories just written are usually within the window themselves, so the racy check starts over.
+        snapshot = new Snapshot( snapshot.refsDir, refs, stamps, snapshot.packedRefsModified,
+                                 snapshot.packedRefsLength,
+                                 Snapshot.isRacy( restamped, snapshot.packedRefsModified, stamps.values() ) );
+    }
+
+    synchronized void invalidate()
+    {
+        snapshot = null;
+    }
+
+    static final class Stamps
+    {
+        private final Snapshot snapshot;
+
+        private final Map<String, Long> dirs;
+
+        private Stamps( final Snapshot snapshot, final Map<String, Long> dirs )
+        {
+            this.snapshot = snapshot;
+            this.dirs = dirs;
+        }
+    }
+
+    static final class Snapshot
+    {
+        private final String refsDir;
+
+        private final SortedMap<String, Ref> refs;
+
+        private final Map<String, Long> dirStamps;
+
+        private final long packedRefsModified;
+
+        private final long packedRefsLength;
+
+        private final boolean racy;
+
+        private Snapshot( final String refsDir, final Map<String, Ref> refs, final Map<String, Long> dirStamps,
+                          final long packedRefsModified, final long packedRefsLength, final boolean racy )
+        {
+            this.refsDir = refsDir;
+            this.refs = Collections.unmodifiableSortedMap( new TreeMap<String, Ref>( refs ) );
+            this.dirStamps = dirStamps;
+            this.packedRefsModified = packedRefsModified;
+            this.packedRefsLength = packedRefsLength;
+            this.racy = racy;
+        }
+
+        static Snapshot scan( final FileRepository repository )
+            throws IOException
+        {
+            final long scanned = System.currentTimeMillis();
+
+            final File refsDir = new File( repository.getDirectory(), Constants.R_REFS );
+            final Map<String, Long> stamps = new HashMap<String, Long>();
+            stampDirs( refsDir, stamps );
+
+            final File packedRefs = new File( repository.getDirectory(), Constants.PACKED_REFS );
+            final long packedModified = packedRefs.lastModified();
+            final long packedLength = packedRefs.length();
+
+            final Map<String, Ref> refs = new TreeMap<String, Ref>();
+            for ( final Ref ref : repository.getRefDatabase().getRefs( RefDatabase.ALL ).values() )
+            {
+                if ( ref.getName().startsWith( Constants.R_REFS ) )
+                {
+                    refs.put( ref.getName(), ref );
+                }
+            }
+
+            return new Snapshot( refsDir.getPath(), refs, stamps, packedModified, packedLength,
+                                 isRacy( scanned, packedModified, stamps.values() ) );
+        }
+
+        // something modified within the timestamp granularity of the scan may have changed again unnoticed, so such a
+        // snapshot is only good for this one use.
+        private static boolean isRacy( final long scanned, final long packedModified, final Collection<Long> stamps )
+        {
+            boolean racy = packedModified >= scanned - RACY_WINDOW;
+            for ( final Long modified : stamps )
+            {
+                racy = racy || modified >= scanned - RACY_WINDOW;
+            }
+
+            return racy;
+        }
+
+        private static void stampDirs( final File dir, final Map<String, Long> stamps )
+        {
+            stamps.put( dir.getPath(), dir.lastModified() );
+
+            final File[] children = dir.listFiles();
+            if ( children != null )
+            {
+                for ( final File child : children )
+                {
+                    if ( child.isDirectory() )
+                    {
+                        stampDirs( child, stamps );
+                    }
+                }
+            }
+        }
+
+        boolean isStale( final FileRepository repository )
+        {
+            return isStale( repository, Collections.<String> emptySet() );
+        }
+
+        private boolean isStale( final FileRepository repository, final Set<String> ignoredDirs )
+        {
+            final File packedRefs = new File( repository.getDirectory(), Constants.PACKED_REFS );
+            if ( racy || packedRefs.lastModified() != packedRefsModified || packedRefs.length() != packedRefsLength )
+            {
+                return true;
+            }
+
+            for ( final Map.Entry<String, Long> stamp : dirStamps.entrySet() )
+            {
+                if ( !ignoredDirs.contains( stamp.getKey() )
+                    && new File( stamp.getKey() ).lastModified() != stamp.getValue().longValue() )
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Stream refs whose names start with <code>prefix</code> and whose remainder matches <code>glob</code> (if
+         * given), in name order, without copying the ref map.
+         */
+        boolean visit( final String prefix, final RefGlob glob, final RefVisitor visitor )
+        {
+            final String start = glob == null ? prefix : prefix + glob.getLiteralPrefix();
+            for ( final Map.Entry<String, Ref> entry : refs.subMap( start, start + Character.MAX_VALUE ).entrySet() )
+            {
+                if ( glob != null && !glob.matches( entry.getKey().substring( prefix.length() ) ) )
+                {
+                    continue;
+                }
+
+                if ( !visitor.visit( entry.getValue() ) )
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        Ref getRef( final String refName )
+        {
+            return refs.get( refName );
+        }
+
+        /**
+         * Refs whose names start with the given prefix, keyed by name with the prefix removed (the same convention
+         * as {@link RefDatabase#getRefs(String)}).
+         */
+        SortedMap<String, Ref> getRefs( final String prefix )
+        {
+            if ( prefix == null || prefix.length() == 0 )
+            {
+                return refs;
+            }
+
+            final SortedMap<String, Ref> matching = refs.subMap( prefix, prefix + Character.MAX_VALUE );
+            final SortedMap<String, Ref> result = new TreeMap<String, Ref>();
+            for ( final Map.Entry<String, Ref> entry : matching.entrySet() )
+            {
+                result.put( entry.getKey().substring( prefix.length() ), entry.getValue() );
+            }
+
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import java.util.regex.Pattern;
+
+/**
+ * Shell-style glob for ref names, also used for sparse-checkout paths: <code>*</code> matches within one path
+ * component, <code>**</code> matches across components, and <code>?</code> matches one character other than '/'.
+ */
+final class RefGlob
+{
+
+    private final Pattern pattern;
+
+    private final String literalPrefix;
+
+    RefGlob( final String glob )
+    {
+        final StringBuilder regex = new StringBuilder();
+        int firstWildcard = -1;
+        for ( int i = 0; i < glob.length(); i++ )
+        {
+            final char c = glob.charAt( i );
+            if ( c == '*' || c == '?' )
+            {
+                if ( firstWildcard < 0 )
+                {
+                    firstWildcard = i;
+                }
+
+                if ( c == '?' )
+                {
+                    regex.append( "[^/]" );
+                }
+                else if ( i + 1 < glob.length() && glob.charAt( i + 1 ) == '*' )
+                {
+                    regex.append( ".*" );
+                    i++;
+                }
+                else
+                {
+                    regex.append( "[^/]*" );
+                }
+            }
+            else
+            {
+                regex.append( Pattern.quote( String.valueOf( c ) ) );
+            }
+        }
+
+        pattern = Pattern.compile( regex.toString() );
+        literalPrefix = firstWildcard < 0 ? glob : glob.substring( 0, firstWildcard );
+    }
+
+    boolean matches( final String name )
+    {
+        return pattern.matcher( name ).matches();
+    }
+
+    /**
+     * Everything before the first wildcard; every match starts with this.
+     */
+    String getLiteralPrefix()
+    {
+        return literalPrefix;
+    }
+
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Memory-compact set of ref names, stored as a trie of '/'-separated path components. Shared leading components
+ * (<code>refs</code>, <code>tags</code>, <code>release</code>...) are stored once no matter how many refs sit under
+ * them, and prefix queries only visit the matching subtree. Iteration is in component order.
+ */
+public final class RefNameTrie
+    extends AbstractSet<String>
+{
+
+    public interface NameVisitor
+    {
+        /**
+         * @return true to keep going, false to stop the traversal.
+         */
+        boolean visit( String name );
+    }
+
+    private final Node root = new Node( "" );
+
+    private int size;
+
+    @Override
+    public boolean add( final String name )
+    {
+        Node node = root;
+        for ( final String component : split( name ) )
+        {
+            node = node.getOrAdd( component );
+        }
+
+        if ( node == root || node.terminal )
+        {
+            return false;
+        }
+
+        node.terminal = true;
+        size++;
+
+        return true;
+    }
+
+    @Override
+    public boolean remove( final Object o )
+    {
+        if ( !( o instanceof String ) )
+        {
+            return false;
+        }
+
+        final String[] components = split( (String) o );
+        final Node[] path = new Node[components.length + 1];
+        path[0] = root;
+        for ( int i = 0; i < components.length; i++ )
+        {
+            path[i + 1] = path[i].get( components[i] );
+            if ( path[i + 1] == null )
+            {
+                return false;
+            }
+        }
+
+        final Node node = path[components.length];
+        if ( node == root || !node.terminal )
+        {
+            return false;
+        }
+
+        node.terminal = false;
+        size--;
+
+        // drop components that no longer lead to any name.
+        for ( int i = components.length; i > 0 && !path[i].terminal && path[i].childCount == 0; i-- )
+        {
+            path[i - 1].remove( components[i - 1] );
+        }
+
+        return true;
+    }
+
+    @Override
+    public void clear()
+    {
+        root.children = Node.NO_CHILDREN;
+        root.childCount = 0;
+        size = 0;
+    }
+
+    @Override
+    public boolean contains( final Object o )
+    {
+        if ( !( o instanceof String ) )
+        {
+            return false;
+        }
+
+        final Node node = find( split( (String) o ) );
+        return node != null && node.terminal;
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Visit every name starting with the given prefix, in component order. A prefix ending with '/' selects a
+     * subtree (<code>refs/tags/release/</code>); otherwise the last component is matched as a string prefix
+     * (<code>refs/tags/rel</code> matches <code>refs/tags/release/1.0</code> and <code>refs/tags/rel-2</code>).
+     *
+     * @return false if the visitor stopped the traversal early.
+     */
+    public boolean visit( final String prefix, final NameVisitor visitor )
+    {
+        final String[] components = split( prefix == null ? "" : prefix );
+        final boolean partial = prefix != null && prefix.length() > 0 && !prefix.endsWith( "/" );
+
+        final int parentDepth = partial ? components.length - 1 : components.length;
+        final Node parent = find( Arrays.copyOf( components, parentDepth ) );
+        if ( parent == null )
+        {
+            return true;
+        }
+
+        final StringBuilder path = new StringBuilder();
+        for ( int i = 0; i < parentDepth; i++ )
+        {
+            path.append( components[i] ).append( '/' );
+        }
+
+        final String last = partial ? components[parentDepth] : "";
+        final int mark = path.length();
+        for ( int i = parent.lowerBound( last ); i < parent.childCount; i++ )
+        {
+            final Node child = parent.children[i];
+            if ( !child.component.startsWith( last ) )
+            {
+                break;
+            }
+
+            path.append( child.component );
+            if ( !visit( child, path, visitor ) )
+            {
+                return false;
+            }
+            path.setLength( mark );
+        }
+
+        return true;
+    }
+
+    public List<String> getNames( final String prefix )
+    {
+        final List<String> names = new ArrayList<String>();
+        visit( prefix, new NameVisitor()
+        {
+            public boolean visit( final String name )
+            {
+                names.add( name );
+                return true;
+            }
+        } );
+
+        return names;
+    }
+
+    private boolean visit( final Node node, final StringBuilder path, final NameVisitor visitor )
+    {
+        if ( node.terminal && !visitor.visit( path.toString() ) )
+        {
+            return false;
+        }
+
+        final int mark = path.length();
+        for ( int i = 0; i < node.childCount; i++ )
+        {
+            path.append( '/' ).append( node.children[i].component );
+            if ( !visit( node.children[i], path, visitor ) )
+            {
+                return false;
+            }
+            path.setLength( mark );
+        }
+
+        return true;
+    }
+
+    /**
+     * Iterates over a copy of the names; use {@link #visit(String, NameVisitor)} to stream them instead.
+     * {@link Iterator#remove()} removes the last name returned from this set.
+     */
+    @Override
+    public Iterator<String> iterator()
+    {
+        final Iterator<String> names = getNames( "" ).iterator();
+        return new Iterator<String>()
+        {
+            private String last;
+
+            public boolean hasNext()
+            {
+                return names.hasNext();
+            }
+
+            public String next()
+            {
+                last = names.next();
+                return last;
+            }
+
+            public void remove()
+            {
+                if ( last == null )
+                {
+                    throw new IllegalStateException();
+                }
+
+                RefNameTrie.this.remove( last );
+                last = null;
+            }
+        };
+    }
+
+    private Node find( final String[] components )
+    {
+        Node node = root;
+        for ( final String component : components )
+        {
+            node = node.get( component );
+            if ( node == null )
+            {
+                return null;
+            }
+        }
+
+        return node;
+    }
+
+    private static String[] split( final String name )
+    {
+        if ( name.length() == 0 )
+        {
+            return new String[0];
+        }
+
+        final List<String> parts = new ArrayList<String>( 4 );
+        int start = 0;
+        for ( int i = 0; i < name.length(); i++ )
+        {
+            if ( name.charAt( i ) == '/' )
+            {
+                if ( i > start )
+                {
+                    parts.add( name.substring( start, i ) );
+                }
+                start = i + 1;
+            }
+        }
+
+        if ( start < name.length() )
+        {
+            parts.add( name.substring( start ) );
+        }
+
+        return parts.toArray( new String[parts.size()] );
+    }
+
+    private static final class Node
+    {
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        private final String component;
+
+        private Node[] children = NO_CHILDREN;
+
+        private int childCount;
+
+        private boolean terminal;
+
+        Node( final String component )
+        {
+            this.component = component;
+        }
+
+        Node get( final String name )
+        {
+            final int idx = lowerBound( name );
+            return idx < childCount && children[idx].component.equals( name ) ? children[idx] : null;
+        }
+
+        Node getOrAdd( final String name )
+        {
+            final int idx = lowerBound( name );
+            if ( idx < childCount && children[idx].component.equals( name ) )
+            {
+                return children[idx];
+            }
+
+            if ( childCount == children.length )
+            {
+                children = Arrays.copyOf( children, childCount == 0 ? 2 : childCount * 2 );
+            }
+
+            System.arraycopy( children, idx, children, idx + 1, childCount - idx );
+
+            final Node child = new Node( name );
+            children[idx] = child;
+            childCount++;
+
+            return child;
+        }
+
+        void remove( final String name )
+        {
+            final int idx = lowerBound( name );
+            if ( idx < childCount && children[idx].component.equals( name ) )
+            {
+                System.arraycopy( children, idx + 1, children, idx, childCount - idx - 1 );
+                children[--childCount] = null;
+            }
+        }
+
+        /**
+         * Index of the first child whose component is not less than <code>name</code>.
+         */
+        int lowerBound( final String name )
+        {
+            int lo = 0;
+            int hi = childCount;
+            while ( lo < hi )
+            {
+                final int mid = ( lo + hi ) >>> 1;
+                if ( children[mid].component.compareTo( name ) < 0 )
+                {
+                    lo = mid + 1;
+                }
+                else
+                {
+                    hi = mid;
+                }
+            }
+
+            return lo;
+        }
+    }
+
+}
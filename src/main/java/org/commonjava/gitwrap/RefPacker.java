@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.storage.file.LockFile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Equivalent of <code>git pack-refs --all --prune</code>: writes every ref under <code>refs/</code> into
+ * <code>packed-refs</code> (with peeled values for annotated tags) in one atomic rename, then removes each loose ref
+ * file that still holds the packed value.
+ */
+final class RefPacker
+{
+
+    private static final Logger LOGGER = Logger.getLogger( RefPacker.class );
+
+    private static final String PACKED_REFS_HEADER = "# pack-refs with: peeled \n";
+
+    private final FileRepository repository;
+
+    RefPacker( final FileRepository repository )
+    {
+        this.repository = repository;
+    }
+
+    static int countLooseRefs( final File dir )
+    {
+        int count = 0;
+
+        final File[] files = dir.listFiles();
+        if ( files != null )
+        {
+            for ( final File file : files )
+            {
+                if ( file.isDirectory() )
+                {
+                    count += countLooseRefs( file );
+                }
+                else if ( !file.getName().endsWith( ".lock" ) )
+                {
+                    count++;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @return the number of loose ref files removed.
+     */
+    int pack()
+        throws IOException
+    {
+        final File gitDir = repository.getDirectory();
+        final Map<String, ObjectId> packed = new TreeMap<String, ObjectId>();
+
+        final LockFile lock = new LockFile( new File( gitDir, Constants.PACKED_REFS ) );
+        if ( !lock.lock() )
+        {
+            throw new IOException( "Cannot lock: " + Constants.PACKED_REFS + " in: " + gitDir );
+        }
+
+        try
+        {
+            final StringBuilder content = new StringBuilder( PACKED_REFS_HEADER );
+            final Map<String, Ref> refs =
+                new TreeMap<String, Ref>( repository.getRefDatabase().getRefs( RefDatabase.ALL ) );
+
+            for ( final Ref ref : refs.values() )
+            {
+                if ( ref.isSymbolic() || ref.getObjectId() == null || !ref.getName().startsWith( Constants.R_REFS ) )
+                {
+                    continue;
+                }
+
+                content.append( ref.getObjectId().name() ).append( ' ' ).append( ref.getName() ).append( '\n' );
+
+                final Ref peeled = repository.peel( ref );
+                if ( peeled.getPeeledObjectId() != null )
+                {
+                    content.append( '^' ).append( peeled.getPeeledObjectId().name() ).append( '\n' );
+                }
+
+                packed.put( ref.getName(), ref.getObjectId() );
+            }
+
+            lock.write( Constants.encode( content.toString() ) );
+            if ( !lock.commit() )
+            {
+                throw new IOException( "Cannot commit: " + Constants.PACKED_REFS + " in: " + gitDir );
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        int removed = 0;
+        final List<File> dirs = new ArrayList<File>();
+        for ( final Map.Entry<String, ObjectId> entry : packed.entrySet() )
+        {
+            final File loose = new File( gitDir, entry.getKey() );
+            if ( loose.isFile() && removeIfUnchanged( loose, entry.getValue() ) )
+            {
+                removed++;
+                dirs.add( loose.getParentFile() );
+            }
+        }
+
+        pruneEmptyDirs( dirs, new File( gitDir, Constants.R_REFS ) );
+
+        LOGGER.info( "Packed " + packed.size() + " refs in: " + gitDir + " (" + removed + " loose refs removed)" );
+
+        return removed;
+    }
+
+    private boolean removeIfUnchanged( final File loose, final ObjectId packedId )
+        throws IOException
+    {
+        // hold the ref's lock while checking, so a concurrent update can't slip in between the read and the delete.
+        final LockFile refLock = new LockFile( loose );
+        if ( !refLock.lock() )
+        {
+            return false;
+        }
+
+        try
+        {
+            final byte[] buf = new byte[Constants.OBJECT_ID_STRING_LENGTH];
+            final FileInputStream in = new FileInputStream( loose );
+            int read = 0;
+            try
+            {
+                int n;
+                while ( read < buf.length && ( n = in.read( buf, read, buf.length - read ) ) > 0 )
+                {
+                    read += n;
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+
+            return read == buf.length && ObjectId.isId( new String( buf, "US-ASCII" ) )
+                && packedId.equals( ObjectId.fromString( buf, 0 ) ) && loose.delete();
+        }
+        finally
+        {
+            refLock.unlock();
+        }
+    }
+
+    private static void pruneEmptyDirs( final List<File> dirs, final File refsDir )
+    {
+        for ( final File start : dirs )
+        {
+            // keep the standard refs/heads, refs/tags... directories themselves.
+            File dir = start;
+            while ( dir != null && !dir.equals( refsDir ) && !refsDir.equals( dir.getParentFile() ) )
+            {
+                final String[] children = dir.list();
+                if ( children == null || children.length > 0 || !dir.delete() )
+                {
+                    break;
+                }
+
+                dir = dir.getParentFile();
+            }
+        }
+    }
+
+}
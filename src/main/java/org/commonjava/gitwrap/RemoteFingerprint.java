@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.TagOpt;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Decides whether a remote's ref advertisement differs from what we already have, without negotiating a pack.
+ */
+final class RemoteFingerprint
+{
+
+    static final String CONFIG_KEY = "gitwrapFingerprint";
+
+    private RemoteFingerprint()
+    {
+    }
+
+    static String of( final Collection<Ref> advertised )
+    {
+        final Map<String, String> sorted = new TreeMap<String, String>();
+        for ( final Ref ref : advertised )
+        {
+            final ObjectId id = ref.getObjectId();
+            sorted.put( ref.getName(), id == null ? "" : id.name() );
+        }
+
+        final MessageDigest digest = Constants.newMessageDigest();
+        for ( final Map.Entry<String, String> entry : sorted.entrySet() )
+        {
+            digest.update( Constants.encode( entry.getKey() ) );
+            digest.update( (byte) ' ' );
+            digest.update( Constants.encode( entry.getValue() ) );
+            digest.update( (byte) '\n' );
+        }
+
+        return ObjectId.fromRaw( digest.digest() ).name();
+    }
+
+    static String cached( final Repository repository, final String remoteName )
+    {
+        return repository.getConfig().getString( "remote", remoteName, CONFIG_KEY );
+    }
+
+    /**
+     * True if every advertised ref matched by the remote's fetch ref-specs already has the same value in its local
+     * tracking ref, and every advertised tag a fetch would bring in exists locally with the same value. With --tags
+     * that is every tag; when following tags (the default) it is only tags we already have, or tags pointing at an
+     * object we already have, since a fetch leaves tags on unfetched history alone.
+     */
+    static boolean isTracked( final Repository repository, final RemoteConfig remote,
+                              final Map<String, Ref> advertised )
+        throws IOException
+    {
+        final TagOpt tagOpt = remote.getTagOpt();
+
+        for ( final Ref ref : advertised.values() )
+        {
+            if ( ref.getObjectId() == null )
+            {
+                continue;
+            }
+
+            if ( tagOpt != TagOpt.NO_TAGS && ref.getName().startsWith( Constants.R_TAGS )
+                && !ref.getName().endsWith( "^{}" ) )
+            {
+                if ( ( tagOpt == TagOpt.FETCH_TAGS || isFollowed( repository, ref, advertised ) )
+                    && !sameValue( repository, ref.getName(), ref.getObjectId() ) )
+                {
+                    return false;
+                }
+            }
+
+            for ( final RefSpec spec : remote.getFetchRefSpecs() )
+            {
+                if ( spec.matchSource( ref ) )
+                {
+                    final String dest = spec.expandFromSource( ref ).getDestination();
+                    if ( dest == null || !sameValue( repository, dest, ref.getObjectId() ) )
+                    {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isFollowed( final Repository repository, final Ref tag, final Map<String, Ref> advertised )
+        throws IOException
+    {
+        if ( repository.getRefDatabase().getRef( tag.getName() ) != null )
+        {
+            return true;
+        }
+
+        ObjectId target = tag.getPeeledObjectId();
+        if ( target == null )
+        {
+            final Ref peeled = advertised.get( tag.getName() + "^{}" );
+            target = peeled == null ? tag.getObjectId() : peeled.getObjectId();
+        }
+
+        return repository.hasObject( target );
+    }
+
+    private static boolean sameValue( final Repository repository, final String refName, final ObjectId expected )
+        throws IOException
+    {
+        final Ref local = repository.getRefDatabase().getRef( refName );
+        return local != null && expected.equals( local.getObjectId() );
+    }
+
+}
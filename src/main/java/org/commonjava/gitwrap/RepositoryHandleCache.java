@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.storage.file.FileRepository;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Process-wide cache of open repositories, keyed by canonical git directory and work tree, so a bare handle and a
+ * work tree handle on the same git directory never share a {@link FileRepository}. Handles returned from here share a
+ * single {@link FileRepository}, and must be closed to release their reference. Idle repositories are closed in
+ * least-recently-used order whenever the open-repository count or the total size of their pack files exceeds the
+ * configured limits.
+ */
+public final class RepositoryHandleCache
+{
+
+    private static final Logger LOGGER = Logger.getLogger( RepositoryHandleCache.class );
+
+    public static final int DEFAULT_MAX_OPEN_REPOSITORIES = 256;
+
+    public static final long DEFAULT_MAX_PACK_BYTES = 2L * 1024 * 1024 * 1024;
+
+    private static final RepositoryHandleCache INSTANCE =
+        new RepositoryHandleCache( DEFAULT_MAX_OPEN_REPOSITORIES, DEFAULT_MAX_PACK_BYTES );
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>( 16, 0.75f, true );
+
+    private int maxOpenRepositories;
+
+    private long maxPackBytes;
+
+    private long packBytes;
+
+    public RepositoryHandleCache( final int maxOpenRepositories, final long maxPackBytes )
+    {
+        this.maxOpenRepositories = maxOpenRepositories;
+        this.maxPackBytes = maxPackBytes;
+    }
+
+    public static RepositoryHandleCache getInstance()
+    {
+        return INSTANCE;
+    }
+
+    public BareGitRepository openBare( final File gitDir, final boolean create )
+        throws IOException
+    {
+        final Entry entry = acquire( gitDir, create, null );
+        return new BareGitRepository( gitDir, null, entry );
+    }
+
+    public GitRepository open( final File workDir, final boolean create )
+        throws IOException
+    {
+        final Entry entry = acquire( new File( workDir, Constants.DOT_GIT ), create, workDir );
+        return new GitRepository( workDir, entry );
+    }
+
+    public synchronized void setMaxOpenRepositories( final int maxOpenRepositories )
+    {
+        this.maxOpenRepositories = maxOpenRepositories;
+        evictIdle();
+    }
+
+    public synchronized int getMaxOpenRepositories()
+    {
+        return maxOpenRepositories;
+    }
+
+    public synchronized void setMaxPackBytes( final long maxPackBytes )
+    {
+        this.maxPackBytes = maxPackBytes;
+        evictIdle();
+    }
+
+    public synchronized long getMaxPackBytes()
+    {
+        return maxPackBytes;
+    }
+
+    public synchronized int getOpenCount()
+    {
+        return entries.size();
+    }
+
+    public synchronized long getPackBytes()
+    {
+        return packBytes;
+    }
+
+    /**
+     * True if the git directory is open, either bare or with a work tree.
+     */
+    public synchronized boolean isOpen( final File gitDir )
+        throws IOException
+    {
+        final String path = gitDir.getCanonicalPath();
+        for ( final Entry entry : entries.values() )
+        {
+            if ( entry.gitDir.equals( path ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public synchronized void clear()
+    {
+        for ( final Iterator<Entry> it = entries.values().iterator(); it.hasNext(); )
+        {
+            final Entry entry = it.next();
+            if ( entry.references < 1 )
+            {
+                it.remove();
+                close( entry );
+            }
+        }
+    }
+
+    private Entry acquire( final File gitDir, final boolean create, final File workDir )
+        throws IOException
+    {
+        final String path = gitDir.getCanonicalPath();
+        final String key = workDir == null ? path : path + File.pathSeparator + workDir.getCanonicalPath();
+
+        synchronized ( this )
+        {
+            final Entry entry = entries.get( key );
+            if ( entry != null )
+            {
+                entry.references++;
+                return entry;
+            }
+        }
+
+        // open outside the lock, so one slow filesystem doesn't stall every other caller.
+        final FileRepository repository = BareGitRepository.openRepository( gitDir, create, workDir );
+
+        synchronized ( this )
+        {
+            Entry entry = entries.get( key );
+            if ( entry != null )
+            {
+                repository.close();
+            }
+            else
+            {
+                entry = new Entry( this, key, path, repository );
+                entry.packBytes = sizeOfPacks( repository );
+                packBytes += entry.packBytes;
+
+                entries.put( key, entry );
+            }
+
+            entry.references++;
+            evictIdle();
+
+            return entry;
+        }
+    }
+
+    private synchronized void release( final Entry entry )
+    {
+        entry.references--;
+
+        // fetches and commits may have added packs since the last time we looked.
+        final long size = sizeOfPacks( entry.repository );
+        packBytes += size - entry.packBytes;
+        entry.packBytes = size;
+
+        evictIdle();
+    }
+
+    private void evictIdle()
+    {
+        for ( final Iterator<Entry> it = entries.values().iterator(); it.hasNext()
+            && ( entries.size() > maxOpenRepositories || packBytes > maxPackBytes ); )
+        {
+            final Entry entry = it.next();
+            if ( entry.references < 1 )
+            {
+                if ( LOGGER.isDebugEnabled() )
+                {
+                    LOGGER.debug( "Evicting idle repository: " + entry.key );
+                }
+
+                it.remove();
+                close( entry );
+            }
+        }
+    }
+
+    private void close( final Entry entry )
+    {
+        packBytes -= entry.packBytes;
+        entry.repository.close();
+    }
+
+    private static long sizeOfPacks( final FileRepository repository )
+    {
+        final File[] files = new File( repository.getObjectsDirectory(), "pack" ).listFiles();
+
+        long size = 0;
+        if ( files != null )
+        {
+            for ( final File file : files )
+            {
+                if ( file.getName().endsWith( ".pack" ) )
+                {
+                    size += file.length();
+                }
+            }
+        }
+
+        return size;
+    }
+
+    static final class Entry
+    {
+        private final RepositoryHandleCache cache;
+
+        private final String key;
+
+        private final String gitDir;
+
+        private final FileRepository repository;
+
+        private int references;
+
+        private long packBytes;
+
+        Entry( final RepositoryHandleCache cache, final String key, final String gitDir,
+               final FileRepository repository )
+        {
+            this.cache = cache;
+            this.key = key;
+            this.gitDir = gitDir;
+            this.repository = repository;
+        }
+
+        FileRepository getRepository()
+        {
+            return repository;
+        }
+
+        void release()
+        {
+            cache.release( this );
+        }
+    }
+
+}
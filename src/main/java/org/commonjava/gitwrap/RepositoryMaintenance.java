@@ -0,0 +1,570 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.storage.file.LockFile;
+import org.eclipse.jgit.storage.file.PackIndex;
+import org.eclipse.jgit.storage.pack.PackWriter;
+import org.eclipse.jgit.transport.IndexPack;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Equivalent of <code>git gc</code>: packs refs, expires old reflog entries, repacks every reachable object into a
+ * single pack, deletes packs made redundant by it, and deletes loose objects that are either packed or unreachable
+ * and older than the prune grace period.
+ * <p>
+ * Like <code>git repack -a -d -l</code>, objects borrowed through <code>objects/info/alternates</code> are left where
+ * they are: everything reachable from an alternate repository's refs is excluded from the new pack.
+ * <p>
+ * Concurrent readers are never left without an object: the new pack is opened before anything is deleted, and a pack
+ * is only removed if every one of its objects is in the new pack or in an alternate. Packs with a <code>.keep</code>
+ * file are left alone.
+ * Only one maintenance run per repository proceeds at a time, across processes, guarded by <code>gc.lock</code>.
+ */
+final class RepositoryMaintenance
+{
+
+    private static final Logger LOGGER = Logger.getLogger( RepositoryMaintenance.class );
+
+    static final long DEFAULT_PRUNE_GRACE = TimeUnit.DAYS.toMillis( 14 );
+
+    static final long DEFAULT_REFLOG_EXPIRY = TimeUnit.DAYS.toMillis( 90 );
+
+    private static final String PACK_DIR = "pack";
+
+    private static final String LOGS_DIR = "logs";
+
+    // git gc --auto estimates the loose object count from a single fan-out directory.
+    private static final String SAMPLE_DIR = "17";
+
+    private final FileRepository repository;
+
+    private final long pruneGrace;
+
+    private final long reflogExpiry;
+
+    RepositoryMaintenance( final FileRepository repository, final long pruneGrace, final long reflogExpiry )
+    {
+        this.repository = repository;
+        this.pruneGrace = pruneGrace;
+        this.reflogExpiry = reflogExpiry;
+    }
+
+    static int estimateLooseObjects( final File objectsDir )
+    {
+        final String[] names = new File( objectsDir, SAMPLE_DIR ).list();
+        return names == null ? 0 : names.length * 256;
+    }
+
+    static int countPacks( final File objectsDir )
+    {
+        return listPacks( new File( objectsDir, PACK_DIR ) ).size();
+    }
+
+    MaintenanceResult run()
+        throws IOException
+    {
+        final long start = System.currentTimeMillis();
+        final File gitDir = repository.getDirectory();
+        final MaintenanceResult result = new MaintenanceResult( gitDir );
+
+        final LockFile gcLock = new LockFile( new File( gitDir, "gc" ) );
+        if ( !gcLock.lock() )
+        {
+            throw new IOException( "Maintenance is already running in: " + gitDir );
+        }
+
+        try
+        {
+            final Set<ObjectId> roots = new HashSet<ObjectId>();
+            expireReflogs( new File( gitDir, LOGS_DIR ), "", result, roots );
+
+            for ( final Ref ref : repository.getRefDatabase().getRefs( RefDatabase.ALL ).values() )
+            {
+                if ( ref.getObjectId() != null )
+                {
+                    roots.add( ref.getObjectId() );
+                }
+            }
+
+            if ( !repository.isBare() && repository.getIndexFile().exists() )
+            {
+                final DirCache index = repository.readDirCache();
+                for ( int i = 0; i < index.getEntryCount(); i++ )
+                {
+                    roots.add( index.getEntry( i ).getObjectId() );
+                }
+            }
+
+            roots.remove( ObjectId.zeroId() );
+            for ( final Iterator<ObjectId> it = roots.iterator(); it.hasNext(); )
+            {
+                if ( !repository.hasObject( it.next() ) )
+                {
+                    it.remove();
+                }
+            }
+
+            final List<FileRepository> alternates = openAlternates();
+            try
+            {
+                final Set<ObjectId> borrowed = new HashSet<ObjectId>();
+                for ( final FileRepository alternate : alternates )
+                {
+                    for ( final Ref ref : alternate.getAllRefs().values() )
+                    {
+                        if ( ref.getObjectId() != null )
+                        {
+                            borrowed.add( ref.getObjectId() );
+                        }
+                    }
+                }
+
+                final File packDir = new File( repository.getObjectsDirectory(), PACK_DIR );
+                if ( !roots.isEmpty() )
+                {
+                    final File newPack = repack( packDir, roots, borrowed, result );
+                    if ( newPack != null )
+                    {
+                        removeRedundantPacks( packDir, newPack, alternates, result );
+                    }
+                }
+
+                pruneLooseObjects( packDir, alternates, result );
+            }
+            finally
+            {
+                for ( final FileRepository alternate : alternates )
+                {
+                    alternate.close();
+                }
+            }
+        }
+        finally
+        {
+            gcLock.unlock();
+        }
+
+        result.setDuration( System.currentTimeMillis() - start );
+        LOGGER.info( result );
+
+        return result;
+    }
+
+    private List<FileRepository> openAlternates()
+        throws IOException
+    {
+        final List<FileRepository> alternates = new ArrayList<FileRepository>();
+        for ( final File objects : ObjectStoreCopier.readAlternates( repository.getObjectsDirectory() ) )
+        {
+            // an alternate that isn't a repository's object store has no refs to exclude by.
+            if ( new File( objects.getParentFile(), Constants.HEAD ).isFile() )
+            {
+                alternates.add( new FileRepository( objects.getParentFile() ) );
+            }
+        }
+
+        return alternates;
+    }
+
+    private File repack( final File packDir, final Set<ObjectId> roots, final Set<ObjectId> borrowed,
+                         final MaintenanceResult result )
+        throws IOException
+    {
+        packDir.mkdirs();
+        final Set<String> before = listPacks( packDir );
+
+        // not named pack-*, so neither jGit nor git will pick it up while it is being written.
+        final File tmp = File.createTempFile( "repack_", ".pack", packDir );
+        final String packName;
+        try
+        {
+            final PackWriter writer = new PackWriter( repository );
+            try
+            {
+                writer.preparePack( NullProgressMonitor.INSTANCE, roots, borrowed );
+                result.setPackedObjects( writer.getObjectsNumber() );
+
+                final OutputStream out = new BufferedOutputStream( new FileOutputStream( tmp ) );
+                try
+                {
+                    writer.writePack( NullProgressMonitor.INSTANCE, NullProgressMonitor.INSTANCE, out );
+                }
+                finally
+                {
+                    out.close();
+                }
+
+                // IndexPack names the pack by the same digest of its sorted object ids.
+                packName = "pack-" + writer.computeName().name() + ".pack";
+            }
+            finally
+            {
+                writer.release();
+            }
+
+            final InputStream in = new BufferedInputStream( new FileInputStream( tmp ) );
+            try
+            {
+                final IndexPack indexer = IndexPack.create( repository, in );
+                indexer.index( NullProgressMonitor.INSTANCE );
+                indexer.renameAndOpenPack();
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        finally
+        {
+            tmp.delete();
+        }
+
+        // an empty pack isn't kept, and one identical to a pack we already had can't make anything redundant.
+        if ( result.getPackedObjects() == 0 || before.contains( packName ) )
+        {
+            return null;
+        }
+
+        final File pack = new File( packDir, packName );
+        if ( !pack.isFile() )
+        {
+            throw new IOException( "Repacked objects were not stored as: " + pack );
+        }
+
+        return pack;
+    }
+
+    private void removeRedundantPacks( final File packDir, final File newPack, final List<FileRepository> alternates,
+                                       final MaintenanceResult result )
+        throws IOException
+    {
+        final PackIndex newIndex = PackIndex.open( indexFile( packDir, newPack.getName() ) );
+
+        for ( final String name : listPacks( packDir ) )
+        {
+            final String base = name.substring( 0, name.length() - ".pack".length() );
+            final File index = indexFile( packDir, name );
+            if ( name.equals( newPack.getName() ) || new File( packDir, base + ".keep" ).exists() || !index.exists() )
+            {
+                continue;
+            }
+
+            boolean covered = true;
+            for ( final PackIndex.MutableEntry entry : PackIndex.open( index ) )
+            {
+                final ObjectId id = entry.toObjectId();
+                if ( !newIndex.hasObject( id ) && !hasObject( alternates, id ) )
+                {
+                    covered = false;
+                    break;
+                }
+            }
+
+            if ( covered && index.delete() )
+            {
+                new File( packDir, name ).delete();
+                result.packRemoved();
+            }
+        }
+    }
+
+    private void pruneLooseObjects( final File packDir, final List<FileRepository> alternates,
+                                    final MaintenanceResult result )
+        throws IOException
+    {
+        final List<PackIndex> indexes = new ArrayList<PackIndex>();
+        for ( final String name : listPacks( packDir ) )
+        {
+            final File index = indexFile( packDir, name );
+            if ( index.exists() )
+            {
+                indexes.add( PackIndex.open( index ) );
+            }
+        }
+
+        final long cutoff = System.currentTimeMillis() - pruneGrace;
+        final File[] dirs = repository.getObjectsDirectory().listFiles();
+        if ( dirs == null )
+        {
+            return;
+        }
+
+        for ( final File dir : dirs )
+        {
+            final String prefix = dir.getName();
+            final String[] names = dir.list();
+            if ( prefix.length() != 2 || names == null )
+            {
+                continue;
+            }
+
+            for ( final String name : names )
+            {
+                if ( !ObjectId.isId( prefix + name ) )
+                {
+                    continue;
+                }
+
+                final ObjectId id = ObjectId.fromString( prefix + name );
+                final File file = new File( dir, name );
+                if ( isPacked( indexes, id ) || hasObject( alternates, id ) )
+                {
+                    if ( file.delete() )
+                    {
+                        result.looseObjectRemoved();
+                    }
+                }
+                else if ( file.lastModified() < cutoff && file.delete() )
+                {
+                    result.looseObjectPruned();
+                }
+            }
+
+            // only succeeds if it is now empty.
+            dir.delete();
+        }
+    }
+
+    private static boolean hasObject( final List<FileRepository> repositories, final ObjectId id )
+    {
+        for ( final FileRepository repository : repositories )
+        {
+            if ( repository.hasObject( id ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isPacked( final List<PackIndex> indexes, final ObjectId id )
+    {
+        for ( final PackIndex index : indexes )
+        {
+            if ( index.hasObject( id ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void expireReflogs( final File dir, final String prefix, final MaintenanceResult result,
+                                final Set<ObjectId> roots )
+        throws IOException
+    {
+        final File[] files = dir.listFiles();
+        if ( files == null )
+        {
+            return;
+        }
+
+        for ( final File file : files )
+        {
+            if ( file.isDirectory() )
+            {
+                expireReflogs( file, prefix + file.getName() + "/", result, roots );
+            }
+            else if ( !file.getName().endsWith( ".lock" ) )
+            {
+                expireReflog( file, prefix + file.getName(), result, roots );
+            }
+        }
+    }
+
+    private void expireReflog( final File log, final String refName, final MaintenanceResult result,
+                               final Set<ObjectId> roots )
+        throws IOException
+    {
+        // reflogs are appended while the ref itself is locked, so hold the ref's lock while rewriting.
+        final File refFile = new File( repository.getDirectory(), refName );
+        refFile.getParentFile().mkdirs();
+
+        final LockFile refLock = new LockFile( refFile );
+        final boolean locked = refLock.lock();
+        try
+        {
+            final List<String> lines = readLines( log );
+            final long cutoff = ( System.currentTimeMillis() - reflogExpiry ) / 1000;
+
+            final StringBuilder kept = new StringBuilder();
+            int expired = 0;
+            for ( int i = 0; i < lines.size(); i++ )
+            {
+                final String line = lines.get( i );
+
+                // always keep the newest entry, so the log still says where the ref came from.
+                if ( locked && i < lines.size() - 1 && getTime( line ) < cutoff )
+                {
+                    expired++;
+                    continue;
+                }
+
+                kept.append( line ).append( '\n' );
+                addIds( line, roots );
+            }
+
+            if ( expired > 0 )
+            {
+                final LockFile logLock = new LockFile( log );
+                if ( logLock.lock() )
+                {
+                    try
+                    {
+                        logLock.write( Constants.encode( kept.toString() ) );
+                        if ( logLock.commit() )
+                        {
+                            result.reflogEntriesExpired( expired );
+                        }
+                    }
+                    finally
+                    {
+                        logLock.unlock();
+                    }
+                }
+            }
+        }
+        finally
+        {
+            if ( locked )
+            {
+                refLock.unlock();
+            }
+        }
+    }
+
+    private static List<String> readLines( final File file )
+        throws IOException
+    {
+        final List<String> lines = new ArrayList<String>();
+        final BufferedReader reader =
+            new BufferedReader( new InputStreamReader( new FileInputStream( file ), Constants.CHARSET ) );
+        try
+        {
+            String line;
+            while ( ( line = reader.readLine() ) != null )
+            {
+                if ( line.length() > 0 )
+                {
+                    lines.add( line );
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        return lines;
+    }
+
+    // <old> <new> <name> <<email>> <seconds> <tz>\t<message>
+    private static long getTime( final String line )
+    {
+        final int tab = line.indexOf( '\t' );
+        final String header = tab < 0 ? line : line.substring( 0, tab );
+
+        final int tz = header.lastIndexOf( ' ' );
+        final int time = tz < 0 ? -1 : header.lastIndexOf( ' ', tz - 1 );
+        if ( time < 0 )
+        {
+            return Long.MAX_VALUE;
+        }
+
+        try
+        {
+            return Long.parseLong( header.substring( time + 1, tz ) );
+        }
+        catch ( final NumberFormatException e )
+        {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static void addIds( final String line, final Set<ObjectId> roots )
+    {
+        final int len = Constants.OBJECT_ID_STRING_LENGTH;
+        if ( line.length() > 2 * len + 1 )
+        {
+            final String oldId = line.substring( 0, len );
+            final String newId = line.substring( len + 1, 2 * len + 1 );
+            if ( ObjectId.isId( oldId ) )
+            {
+                roots.add( ObjectId.fromString( oldId ) );
+            }
+
+            if ( ObjectId.isId( newId ) )
+            {
+                roots.add( ObjectId.fromString( newId ) );
+            }
+        }
+    }
+
+    private static Set<String> listPacks( final File packDir )
+    {
+        final Set<String> packs = new HashSet<String>();
+
+        final String[] names = packDir.list();
+        if ( names != null )
+        {
+            for ( final String name : names )
+            {
+                if ( name.startsWith( "pack-" ) && name.endsWith( ".pack" ) )
+                {
+                    packs.add( name );
+                }
+            }
+        }
+
+        return packs;
+    }
+
+    private static File indexFile( final File packDir, final String packName )
+    {
+        return new File( packDir, packName.substring( 0, packName.length() - ".pack".length() ) + ".idx" );
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.File;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Caches and bookkeeping shared by every handle on the same open repository. Held weakly against the jGit
+ * {@link Repository}, so state goes away with the repository. Nothing stored here may keep a strong reference back
+ * to the repository.
+ */
+final class RepositoryState
+{
+
+    private static final Map<Repository, RepositoryState> STATES = new WeakHashMap<Repository, RepositoryState>();
+
+    private final RefCache refCache = new RefCache();
+
+    private final BlobCache blobCache = new BlobCache();
+
+    private CommitGraph commitGraph;
+
+    private ChangedPathIndex changedPathIndex;
+
+    private int looseRefCount = -1;
+
+    private RepositoryState()
+    {
+    }
+
+    static synchronized RepositoryState of( final Repository repository )
+    {
+        RepositoryState state = STATES.get( repository );
+        if ( state == null )
+        {
+            state = new RepositoryState();
+            STATES.put( repository, state );
+        }
+
+        return state;
+    }
+
+    RefCache getRefCache()
+    {
+        return refCache;
+    }
+
+    BlobCache getBlobCache()
+    {
+        return blobCache;
+    }
+
+    synchronized CommitGraph getCommitGraph( final File gitDir )
+    {
+        if ( commitGraph == null )
+        {
+            commitGraph = new CommitGraph( gitDir );
+        }
+
+        return commitGraph;
+    }
+
+    synchronized ChangedPathIndex getChangedPathIndex( final File gitDir )
+    {
+        if ( changedPathIndex == null )
+        {
+            changedPathIndex = new ChangedPathIndex( gitDir );
+        }
+
+        return changedPathIndex;
+    }
+
+    /**
+     * Running estimate of loose ref files; counted from disk the first time, then bumped by each write. Updates to
+     * refs that were already loose are over-counted, which only makes the auto-pack trigger a little early.
+     */
+    synchronized int looseRefsWritten( final File refsDir, final int written )
+    {
+        looseRefCount = looseRefCount < 0 ? RefPacker.countLooseRefs( refsDir ) : looseRefCount + written;
+        return looseRefCount;
+    }
+
+    synchronized void refsPacked( final File refsDir )
+    {
+        looseRefCount = RefPacker.countLooseRefs( refsDir );
+    }
+
+}
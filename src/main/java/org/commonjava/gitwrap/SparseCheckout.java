@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.storage.file.LockFile;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Path patterns from <code>info/sparse-checkout</code>, honored when <code>core.sparseCheckout</code> is set. The
+ * syntax is the gitignore-style subset git uses: blank lines and <code>#</code> comments are ignored, a leading
+ * <code>!</code> negates, a trailing '/' only matches directories, a pattern containing '/' is anchored at the root
+ * while one without matches a name at any depth, and <code>*</code>, <code>**</code> and <code>?</code> are globs.
+ * A path is included if the last pattern matching it, or any of its parent directories, is not negated.
+ */
+final class SparseCheckout
+{
+
+    private static final String SPARSE_FILE = "info/sparse-checkout";
+
+    private static final String CORE_SECTION = "core";
+
+    private static final String SPARSE_KEY = "sparseCheckout";
+
+    private final List<Rule> rules = new ArrayList<Rule>();
+
+    private SparseCheckout( final Collection<String> patterns )
+    {
+        for ( final String line : patterns )
+        {
+            final String pattern = line.trim();
+            if ( pattern.length() > 0 && !pattern.startsWith( "#" ) )
+            {
+                rules.add( new Rule( pattern ) );
+            }
+        }
+    }
+
+    /**
+     * @return the repository's sparse patterns, or null if sparse checkout is not enabled.
+     */
+    static SparseCheckout load( final FileRepository repository )
+        throws IOException
+    {
+        final File file = new File( repository.getDirectory(), SPARSE_FILE );
+        if ( !repository.getConfig().getBoolean( CORE_SECTION, SPARSE_KEY, false ) || !file.isFile() )
+        {
+            return null;
+        }
+
+        final List<String> lines = new ArrayList<String>();
+        final BufferedReader reader =
+            new BufferedReader( new InputStreamReader( new FileInputStream( file ), Constants.CHARSET ) );
+        try
+        {
+            String line;
+            while ( ( line = reader.readLine() ) != null )
+            {
+                lines.add( line );
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        return new SparseCheckout( lines );
+    }
+
+    static void save( final FileRepository repository, final Collection<String> patterns )
+        throws IOException
+    {
+        final StringBuilder content = new StringBuilder();
+        for ( final String pattern : patterns )
+        {
+            content.append( pattern ).append( '\n' );
+        }
+
+        final File file = new File( repository.getDirectory(), SPARSE_FILE );
+        file.getParentFile().mkdirs();
+
+        final LockFile lock = new LockFile( file );
+        if ( !lock.lock() )
+        {
+            throw new IOException( "Cannot lock: " + file );
+        }
+
+        try
+        {
+            lock.write( Constants.encode( content.toString() ) );
+            if ( !lock.commit() )
+            {
+                throw new IOException( "Cannot commit: " + file );
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        final StoredConfig config = repository.getConfig();
+        config.setBoolean( CORE_SECTION, null, SPARSE_KEY, true );
+        config.save();
+    }
+
+    boolean includes( final String path )
+    {
+        boolean included = false;
+
+        // every parent directory, then the path itself.
+        int end = path.indexOf( '/' );
+        while ( true )
+        {
+            final boolean directory = end >= 0;
+            final String prefix = directory ? path.substring( 0, end ) : path;
+
+            for ( final Rule rule : rules )
+            {
+                if ( rule.matches( prefix, directory ) )
+                {
+                    included = !rule.negated;
+                }
+            }
+
+            if ( !directory )
+            {
+                return included;
+            }
+
+            end = path.indexOf( '/', end + 1 );
+        }
+    }
+
+    private static final class Rule
+    {
+        private final boolean negated;
+
+        private final boolean directoryOnly;
+
+        private final boolean anchored;
+
+        private final RefGlob glob;
+
+        Rule( final String pattern )
+        {
+            String p = pattern;
+
+            negated = p.startsWith( "!" );
+            if ( negated )
+            {
+                p = p.substring( 1 );
+            }
+
+            directoryOnly = p.endsWith( "/" );
+            if ( directoryOnly )
+            {
+                p = p.substring( 0, p.length() - 1 );
+            }
+
+            anchored = p.indexOf( '/' ) >= 0;
+            if ( p.startsWith( "/" ) )
+            {
+                p = p.substring( 1 );
+            }
+
+            glob = new RefGlob( p );
+        }
+
+        boolean matches( final String prefix, final boolean directory )
+        {
+            if ( directoryOnly && !directory )
+            {
+                return false;
+            }
+
+            return glob.matches( anchored ? prefix : prefix.substring( prefix.lastIndexOf( '/' ) + 1 ) );
+        }
+    }
+
+}
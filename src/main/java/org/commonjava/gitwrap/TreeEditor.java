@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Applies path-level edits (put or delete) to an existing tree. Only the trees along an edited path are read and
+ * rewritten; every other entry, including whole untouched subtrees, is copied across by id. Directories left empty by
+ * deletes are dropped, as git does.
+ */
+final class TreeEditor
+{
+
+    private final Node root = new Node();
+
+    TreeEditor put( final String path, final FileMode mode, final ObjectId id )
+        throws GitWrapException
+    {
+        checkPath( path );
+        final int slash = path.lastIndexOf( '/' );
+        root.dir( path, slash ).files.put( path.substring( slash + 1 ), new Entry( mode, id ) );
+        return this;
+    }
+
+    TreeEditor delete( final String path )
+        throws GitWrapException
+    {
+        checkPath( path );
+        final int slash = path.lastIndexOf( '/' );
+        root.dir( path, slash ).files.put( path.substring( slash + 1 ), null );
+        return this;
+    }
+
+    /**
+     * Paths are relative and '/'-separated. Empty, ".", ".." and ".git" components are rejected, which also rules out
+     * leading, trailing and doubled slashes: git can't store them, and checked out they would land outside the tree or
+     * inside the repository.
+     */
+    static void checkPath( final String path )
+        throws GitWrapException
+    {
+        if ( path == null || path.length() == 0 )
+        {
+            throw new GitWrapException( "Path cannot be empty." );
+        }
+
+        for ( final String name : path.split( "/", -1 ) )
+        {
+            if ( name.length() == 0 || name.equals( "." ) || name.equals( ".." )
+                || name.equalsIgnoreCase( Constants.DOT_GIT ) )
+            {
+                throw new GitWrapException( "Invalid path: %s. Empty, '.', '..' and '.git' components are not allowed.",
+                                            path );
+            }
+        }
+    }
+
+    boolean isEmpty()
+    {
+        return root.files.isEmpty() && root.dirs.isEmpty();
+    }
+
+    /**
+     * @param baseTree tree to edit, or null to start from an empty tree.
+     * @return id of the new root tree (inserted, but not flushed).
+     */
+    ObjectId write( final ObjectReader reader, final ObjectInserter inserter, final ObjectId baseTree )
+        throws IOException
+    {
+        final ObjectId id = write( root, reader, inserter, baseTree );
+        return id == null ? inserter.insert( Constants.OBJ_TREE, new byte[0] ) : id;
+    }
+
+    private ObjectId write( final Node node, final ObjectReader reader, final ObjectInserter inserter,
+                            final ObjectId baseTree )
+        throws IOException
+    {
+        final Map<String, Entry> entries = new TreeMap<String, Entry>();
+        if ( baseTree != null )
+        {
+            final CanonicalTreeParser parser = new CanonicalTreeParser( null, reader, baseTree );
+            while ( !parser.eof() )
+            {
+                entries.put( parser.getEntryPathString(),
+                             new Entry( parser.getEntryFileMode(), parser.getEntryObjectId() ) );
+                parser.next( 1 );
+            }
+        }
+
+        for ( final Map.Entry<String, Entry> edit : node.files.entrySet() )
+        {
+            if ( edit.getValue() == null )
+            {
+                entries.remove( edit.getKey() );
+            }
+            else
+            {
+                entries.put( edit.getKey(), edit.getValue() );
+            }
+        }
+
+        for ( final Map.Entry<String, Node> dir : node.dirs.entrySet() )
+        {
+            final Entry existing = entries.get( dir.getKey() );
+            final ObjectId base = existing != null && existing.mode == FileMode.TREE ? existing.id : null;
+
+            final ObjectId id = write( dir.getValue(), reader, inserter, base );
+            if ( id == null )
+            {
+                entries.remove( dir.getKey() );
+            }
+            else
+            {
+                entries.put( dir.getKey(), new Entry( FileMode.TREE, id ) );
+            }
+        }
+
+        if ( entries.isEmpty() )
+        {
+            return null;
+        }
+
+        final List<Map.Entry<String, Entry>> sorted = new ArrayList<Map.Entry<String, Entry>>( entries.entrySet() );
+        Collections.sort( sorted, TREE_ORDER );
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for ( final Map.Entry<String, Entry> entry : sorted )
+        {
+            entry.getValue().mode.copyTo( out );
+            out.write( ' ' );
+            out.write( Constants.encode( entry.getKey() ) );
+            out.write( 0 );
+            entry.getValue().id.copyRawTo( out );
+        }
+
+        return inserter.insert( Constants.OBJ_TREE, out.toByteArray() );
+    }
+
+    // git sorts tree entries by name, comparing subtree names as if they ended in '/'.
+    private static final Comparator<Map.Entry<String, Entry>> TREE_ORDER = new Comparator<Map.Entry<String, Entry>>()
+    {
+        public int compare( final Map.Entry<String, Entry> a, final Map.Entry<String, Entry> b )
+        {
+            final byte[] x = Constants.encode( a.getKey() );
+            final byte[] y = Constants.encode( b.getKey() );
+
+            final int len = Math.min( x.length, y.length );
+            for ( int i = 0; i < len; i++ )
+            {
+                if ( x[i] != y[i] )
+                {
+                    return ( x[i] & 0xff ) - ( y[i] & 0xff );
+                }
+            }
+
+            return last( x, len, a.getValue() ) - last( y, len, b.getValue() );
+        }
+
+        private int last( final byte[] name, final int pos, final Entry entry )
+        {
+            if ( pos < name.length )
+            {
+                return name[pos] & 0xff;
+            }
+
+            return entry.mode == FileMode.TREE ? '/' : 0;
+        }
+    };
+
+    private static final class Entry
+    {
+        private final FileMode mode;
+
+        private final ObjectId id;
+
+        Entry( final FileMode mode, final ObjectId id )
+        {
+            this.mode = mode;
+            this.id = id;
+        }
+    }
+
+    private static final class Node
+    {
+        private final Map<String, Node> dirs = new TreeMap<String, Node>();
+
+        // null value: delete.
+        private final Map<String, Entry> files = new TreeMap<String, Entry>();
+
+        Node dir( final String path, final int end )
+        {
+            Node node = this;
+            int start = 0;
+            while ( start < end )
+            {
+                // end is itself a '/', so this never runs past it; checkPath() ruled out empty names.
+                final int slash = path.indexOf( '/', start );
+                final String name = path.substring( start, slash );
+                Node child = node.dirs.get( name );
+                if ( child == null )
+                {
+                    child = new Node();
+                    node.dirs.put( name, child );
+                }
+
+                node = child;
+                start = slash + 1;
+            }
+
+            return node;
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.RemoteRefUpdate.Status;
+import org.eclipse.jgit.transport.URIish;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public final class UriPushResult
+{
+
+    private final URIish uri;
+
+    private final Map<String, Status> refStatuses = new LinkedHashMap<String, Status>();
+
+    private long duration;
+
+    private long objectsSent;
+
+    private Throwable error;
+
+    private boolean cancelled;
+
+    UriPushResult( final URIish uri )
+    {
+        this.uri = uri;
+    }
+
+    public URIish getUri()
+    {
+        return uri;
+    }
+
+    public Map<String, Status> getRefStatuses()
+    {
+        return Collections.unmodifiableMap( refStatuses );
+    }
+
+    /**
+     * Wall-clock time spent on this URI, in milliseconds.
+     */
+    public long getDuration()
+    {
+        return duration;
+    }
+
+    /**
+     * Number of objects written into the pack sent to this URI, as reported by the transport. jGit does not expose
+     * the number of bytes on the wire.
+     */
+    public long getObjectsSent()
+    {
+        return objectsSent;
+    }
+
+    public Throwable getError()
+    {
+        return error;
+    }
+
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    public boolean isSuccessful()
+    {
+        if ( error != null || cancelled )
+        {
+            return false;
+        }
+
+        for ( final Status status : refStatuses.values() )
+        {
+            if ( status != Status.OK && status != Status.UP_TO_DATE )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    void addRefUpdate( final RemoteRefUpdate update )
+    {
+        refStatuses.put( update.getRemoteName(), update.getStatus() );
+    }
+
+    void setDuration( final long duration )
+    {
+        this.duration = duration;
+    }
+
+    void setObjectsSent( final long objectsSent )
+    {
+        this.objectsSent = objectsSent;
+    }
+
+    void setError( final Throwable error )
+    {
+        this.error = error;
+    }
+
+    void setCancelled( final boolean cancelled )
+    {
+        this.cancelled = cancelled;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "UriPushResult [uri=" + uri + ", successful=" + isSuccessful() + ", duration=" + duration
+                        + "ms, objectsSent=" + objectsSent + ", refs=" + refStatuses
+                        + ( error == null ? "" : ", error=" + error.getMessage() ) + ( cancelled ? ", cancelled" : "" )
+                        + "]";
+    }
+
+}
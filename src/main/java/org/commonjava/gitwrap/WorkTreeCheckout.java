@@ -0,0 +1,557 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.dircache.DirCacheIterator;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Two-way checkout from one tree to another, driven by a diff of the two trees against the index. Only paths that
+ * differ between the trees are deleted or rewritten in the worktree, and the index is edited in place for just those
+ * paths. Nothing is touched if any of those paths has local changes (staged, unstaged or an untracked file in the way);
+ * staged changes to paths the trees agree on are carried across, as with <code>git checkout</code>.
+ * <p>
+ * Files are materialized by a pool of workers, each with its own {@link ObjectReader}; blobs are streamed straight to
+ * disk, so large files are never held in memory. Directories are all created up front, in tree order, before any
+ * worker starts. The index is only edited once every file has been written; if writing fails, the index is still
+ * edited for the deletes and the files that were completely written, so it keeps describing the worktree, and a file
+ * left half-written is removed.
+ * <p>
+ * With a {@link SparseCheckout}, paths it excludes are recorded in the index but never inflated or written (and are
+ * removed from the worktree if an earlier checkout left them there). jGit 0.9 has no skip-worktree bit, so those
+ * entries carry assume-valid instead, which keeps them from showing up as deleted.
+ */
+final class WorkTreeCheckout
+{
+
+    private static final Logger LOGGER = Logger.getLogger( WorkTreeCheckout.class );
+
+    private static final int OLD = 0;
+
+    private static final int NEW = 1;
+
+    private static final int INDEX = 2;
+
+    private static final int MIN_UPDATES_PER_WORKER = 64;
+
+    private final FileRepository repository;
+
+    private final File workTree;
+
+    private final int threads;
+
+    private final SparseCheckout sparse;
+
+    private final List<String> deletes = new ArrayList<String>();
+
+    private final List<Update> updates = new ArrayList<Update>();
+
+    private final List<String> conflicts = new ArrayList<String>();
+
+    /**
+     * @param sparse patterns limiting which paths are written, or null to write everything.
+     */
+    WorkTreeCheckout( final FileRepository repository, final int threads, final SparseCheckout sparse )
+    {
+        this.repository = repository;
+        this.workTree = repository.getWorkTree();
+        this.threads = threads;
+        this.sparse = sparse;
+    }
+
+    /**
+     * @param oldTree tree the worktree and index currently reflect, or null if there is none (an initial checkout).
+     * @return the number of paths written or deleted.
+     */
+    int checkout( final ObjectId oldTree, final ObjectId newTree )
+        throws IOException, GitWrapException
+    {
+        final DirCache index = repository.lockDirCache();
+        try
+        {
+            scan( index, oldTree, newTree );
+            if ( !conflicts.isEmpty() )
+            {
+                throw new GitWrapException( "Checkout would overwrite local changes in: %s", conflicts );
+            }
+
+            // deletes first, so a file being replaced by a directory (or vice versa) is out of the way.
+            for ( final String path : deletes )
+            {
+                delete( new File( workTree, path ) );
+            }
+
+            try
+            {
+                writeAll();
+            }
+            catch ( final IOException e )
+            {
+                recordPartial( index );
+                throw e;
+            }
+            catch ( final GitWrapException e )
+            {
+                recordPartial( index );
+                throw e;
+            }
+
+            editIndex( index );
+        }
+        finally
+        {
+            index.unlock();
+        }
+
+        return deletes.size() + updates.size();
+    }
+
+    // edits the index for the deletes and every update that is done.
+    private void editIndex( final DirCache index )
+        throws IOException
+    {
+        final DirCacheEditor editor = index.editor();
+        for ( final String path : deletes )
+        {
+            editor.add( new DirCacheEditor.DeletePath( path ) );
+        }
+
+        for ( final Update update : updates )
+        {
+            if ( update.done )
+            {
+                editor.add( update );
+            }
+        }
+
+        if ( !editor.commit() )
+        {
+            throw new IOException( "Cannot commit index in: " + repository.getDirectory() );
+        }
+    }
+
+    private void recordPartial( final DirCache index )
+    {
+        try
+        {
+            editIndex( index );
+        }
+        catch ( final IOException e )
+        {
+            // the write failure is what the caller needs to see.
+            LOGGER.error( "Failed to record partial checkout in the index of: " + repository.getDirectory()
+                + ". Reason: " + e.getMessage(), e );
+        }
+    }
+
+    private void scan( final DirCache index, final ObjectId oldTree, final ObjectId newTree )
+        throws IOException
+    {
+        final long indexModified = repository.getIndexFile().lastModified();
+        final TreeWalk walk = new TreeWalk( repository );
+        final ObjectInserter hasher = repository.newObjectInserter();
+        try
+        {
+            if ( oldTree == null )
+            {
+                walk.addTree( new EmptyTreeIterator() );
+            }
+            else
+            {
+                walk.addTree( oldTree );
+            }
+
+            walk.addTree( newTree );
+            walk.addTree( new DirCacheIterator( index ) );
+            walk.setRecursive( true );
+            walk.setFilter( TreeFilter.ANY_DIFF );
+
+            while ( walk.next() )
+            {
+                final String path = walk.getPathString();
+                final DirCacheIterator indexIter = walk.getTree( INDEX, DirCacheIterator.class );
+                final DirCacheEntry entry = indexIter == null ? null : indexIter.getDirCacheEntry();
+
+                if ( entry != null && entry.getStage() != DirCacheEntry.STAGE_0 )
+                {
+                    conflicts.add( path );
+                }
+                else if ( same( walk, OLD, NEW ) )
+                {
+                    // only the index differs; carry the staged change over.
+                    continue;
+                }
+                else if ( !same( walk, OLD, INDEX ) )
+                {
+                    // staged change. Fine if it already matches the target, otherwise we'd lose it.
+                    if ( !same( walk, NEW, INDEX ) )
+                    {
+                        conflicts.add( path );
+                    }
+                }
+                else
+                {
+                    final File file = new File( workTree, path );
+                    final boolean dirty;
+                    if ( entry == null )
+                    {
+                        dirty = isInTheWay( hasher, file, walk.getObjectId( NEW ) );
+                    }
+                    else
+                    {
+                        dirty = isModified( hasher, file, entry, indexModified );
+                    }
+
+                    if ( dirty )
+                    {
+                        conflicts.add( path );
+                    }
+                    else if ( walk.getRawMode( NEW ) == 0 )
+                    {
+                        deletes.add( path );
+                    }
+                    else
+                    {
+                        final boolean materialize = sparse == null || sparse.includes( path );
+                        updates.add( new Update( path, walk.getObjectId( NEW ), walk.getFileMode( NEW ),
+                                                 materialize ) );
+                    }
+                }
+            }
+        }
+        finally
+        {
+            hasher.release();
+            walk.release();
+        }
+    }
+
+    private static boolean same( final TreeWalk walk, final int a, final int b )
+    {
+        return walk.getRawMode( a ) == walk.getRawMode( b ) && ( walk.getRawMode( a ) == 0 || walk.idEqual( a, b ) );
+    }
+
+    private static boolean isModified( final ObjectInserter hasher, final File file, final DirCacheEntry entry,
+                                       final long indexModified )
+        throws IOException
+    {
+        if ( !file.isFile() )
+        {
+            // missing is fine (we'll rewrite or delete it anyway); replaced by a directory is not.
+            return file.exists() && entry.getFileMode() != FileMode.GITLINK;
+        }
+
+        final long lastModified = file.lastModified();
+        if ( file.length() == entry.getLength() && lastModified == entry.getLastModified()
+            && !GitRepository.isRacy( lastModified, indexModified ) )
+        {
+            return false;
+        }
+
+        return !entry.getObjectId().equals( hash( hasher, file ) );
+    }
+
+    // untracked file where the target tree wants to put something.
+    private static boolean isInTheWay( final ObjectInserter hasher, final File file, final ObjectId target )
+        throws IOException
+    {
+        if ( !file.exists() )
+        {
+            return false;
+        }
+
+        return !file.isFile() || !target.equals( hash( hasher, file ) );
+    }
+
+    private static ObjectId hash( final ObjectInserter hasher, final File file )
+        throws IOException
+    {
+        final InputStream in = new FileInputStream( file );
+        try
+        {
+            return hasher.idFor( Constants.OBJ_BLOB, file.length(), in );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private void delete( final File file )
+    {
+        if ( !file.delete() && file.isDirectory() )
+        {
+            // gitlink checked out as a directory; leave non-empty submodule contents alone.
+            return;
+        }
+
+        File dir = file.getParentFile();
+        while ( dir != null && !dir.equals( workTree ) )
+        {
+            final String[] children = dir.list();
+            if ( children == null || children.length > 0 || !dir.delete() )
+            {
+                break;
+            }
+
+            dir = dir.getParentFile();
+        }
+    }
+
+    private void writeAll()
+        throws IOException, GitWrapException
+    {
+        // drop files a previous, wider checkout left behind, before creating directories that pruning could remove.
+        for ( final Update update : updates )
+        {
+            final File file = new File( workTree, update.getPath() );
+            if ( !update.materialize )
+            {
+                if ( file.isFile() )
+                {
+                    delete( file );
+                }
+
+                update.done = true;
+            }
+        }
+
+        // updates are in tree order, so each parent directory comes up as a run; create them before any worker starts.
+        File lastDir = null;
+        for ( final Update update : updates )
+        {
+            if ( !update.materialize )
+            {
+                continue;
+            }
+
+            final File file = new File( workTree, update.getPath() );
+            if ( !file.getParentFile().equals( lastDir ) )
+            {
+                lastDir = file.getParentFile();
+                lastDir.mkdirs();
+            }
+
+            if ( update.mode == FileMode.GITLINK )
+            {
+                file.mkdirs();
+            }
+        }
+
+        final int workers = WorkerPool.workersFor( threads, updates.size(), MIN_UPDATES_PER_WORKER );
+        final AtomicInteger next = new AtomicInteger( 0 );
+        if ( workers <= 1 )
+        {
+            new Writer( next ).call();
+            return;
+        }
+
+        final WorkerPool<Void> pool = WorkerPool.fixed( workers, "gitwrap-checkout-" );
+        try
+        {
+            for ( int i = 0; i < workers; i++ )
+            {
+                pool.submit( new Writer( next ) );
+            }
+
+            // wait for every worker, even after a failure, so no file is still being written once we edit the index.
+            Throwable failure = null;
+            for ( int i = 0; i < workers; i++ )
+            {
+                try
+                {
+                    pool.take();
+                }
+                catch ( final ExecutionException e )
+                {
+                    // stop the other workers from picking up anything new.
+                    next.set( updates.size() );
+
+                    if ( failure == null )
+                    {
+                        failure = e.getCause();
+                    }
+                }
+            }
+
+            if ( failure instanceof IOException )
+            {
+                throw (IOException) failure;
+            }
+            else if ( failure != null )
+            {
+                throw new GitWrapException( "Checkout failed. Reason: %s", failure, failure.getMessage() );
+            }
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new GitWrapException( "Interrupted while writing worktree: %s", e, workTree );
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    private void write( final ObjectReader reader, final Update update )
+        throws IOException
+    {
+        final File file = new File( workTree, update.getPath() );
+
+        if ( update.mode != FileMode.GITLINK )
+        {
+            if ( file.isDirectory() )
+            {
+                // an empty leftover; anything else was reported as a conflict.
+                file.delete();
+            }
+
+            final ObjectLoader loader = reader.open( update.id, Constants.OBJ_BLOB );
+            final OutputStream out = new FileOutputStream( file );
+            boolean complete = false;
+            try
+            {
+                // streams large objects rather than inflating them into a single array.
+                loader.copyTo( out );
+                complete = true;
+            }
+            finally
+            {
+                out.close();
+                if ( !complete )
+                {
+                    file.delete();
+                }
+            }
+
+            if ( repository.getFS().supportsExecute() )
+            {
+                repository.getFS().setExecute( file, update.mode == FileMode.EXECUTABLE_FILE );
+            }
+        }
+
+        update.length = file.length();
+        update.lastModified = file.lastModified();
+        update.done = true;
+    }
+
+    private final class Writer
+        implements Callable<Void>
+    {
+        private final AtomicInteger next;
+
+        Writer( final AtomicInteger next )
+        {
+            this.next = next;
+        }
+
+        public Void call()
+            throws IOException
+        {
+            final ObjectReader reader = repository.newObjectReader();
+            try
+            {
+                int i;
+                while ( ( i = next.getAndIncrement() ) < updates.size() )
+                {
+                    if ( updates.get( i ).materialize )
+                    {
+                        write( reader, updates.get( i ) );
+                    }
+                }
+            }
+            finally
+            {
+                reader.release();
+            }
+
+            return null;
+        }
+    }
+
+    private static final class Update
+        extends DirCacheEditor.PathEdit
+    {
+        private final String path;
+
+        private final ObjectId id;
+
+        private final FileMode mode;
+
+        private final boolean materialize;
+
+        private long length;
+
+        private long lastModified;
+
+        // written (or, if not materialized, cleared from the worktree), so its index entry may be edited.
+        private volatile boolean done;
+
+        Update( final String path, final ObjectId id, final FileMode mode, final boolean materialize )
+        {
+            super( path );
+            this.path = path;
+            this.id = id;
+            this.mode = mode;
+            this.materialize = materialize;
+        }
+
+        String getPath()
+        {
+            return path;
+        }
+
+        @Override
+        public void apply( final DirCacheEntry entry )
+        {
+            entry.setFileMode( mode );
+            entry.setObjectId( id );
+            entry.setLength( (int) length );
+            entry.setLastModified( lastModified );
+            entry.setAssumeValid( !materialize );
+        }
+    }
+
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.Constants;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the set of worktree paths touched since the last index write, using a {@link WatchService} on every directory
+ * outside <code>.git</code>. A dirty path may name a directory (created or deleted wholesale), meaning everything
+ * below it. If the watch service drops events, the tracker reports itself overflowed, and callers have to fall back
+ * to a full scan until they next mark it clean.
+ * <p>
+ * Paths carry a sequence number, so {@link #markClean(Snapshot)} only clears those not touched again since the
+ * snapshot was taken.
+ * <p>
+ * Watch events arrive asynchronously, so a snapshot is preceded by a sync barrier, as in git's fsmonitor: a cookie file
+ * is created in <code>.git/gitwrap/cookies</code>, and the snapshot waits until its event has been seen, by which time
+ * every change made before it has been seen too. If the cookie doesn't show up in time, the snapshot is overflowed.
+ */
+final class WorkTreeWatcher
+    implements Closeable
+{
+
+    private static final Logger LOGGER = Logger.getLogger( WorkTreeWatcher.class );
+
+    private static final long COOKIE_TIMEOUT = TimeUnit.SECONDS.toMillis( 1 );
+
+    private final Path root;
+
+    private final Path cookieDir;
+
+    private final String cookiePrefix = "cookie-" + Long.toHexString( System.nanoTime() ) + "-";
+
+    private final AtomicLong cookieCounter = new AtomicLong( 0 );
+
+    // cookies written and not yet seen; the latch opens once every event before the cookie's has been processed.
+    private final Map<String, CountDownLatch> cookies = new ConcurrentHashMap<String, CountDownLatch>();
+
+    private final WatchService watchService;
+
+    private final Map<WatchKey, Path> keys = new ConcurrentHashMap<WatchKey, Path>();
+
+    private final ConcurrentHashMap<String, Long> dirty = new ConcurrentHashMap<String, Long>();
+
+    private final AtomicLong sequence = new AtomicLong( 0 );
+
+    // last sequence number at which events were lost; 0 if none since the last full scan.
+    private final AtomicLong overflow = new AtomicLong( 0 );
+
+    private final Thread thread;
+
+    WorkTreeWatcher( final File workTree, final File gitDir )
+        throws IOException
+    {
+        this.root = workTree.toPath();
+        this.cookieDir = new File( gitDir, "gitwrap/cookies" ).toPath();
+        this.watchService = root.getFileSystem().newWatchService();
+
+        // we know nothing about changes made before now, so start out needing a full scan.
+        overflow.set( sequence.incrementAndGet() );
+        registerAll( root, false );
+
+        Files.createDirectories( cookieDir );
+        keys.put( cookieDir.register( watchService, ENTRY_CREATE ), cookieDir );
+
+        thread = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                processEvents();
+            }
+        }, "gitwrap-watch-" + workTree.getName() );
+
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    Snapshot snapshot()
+    {
+        if ( !sync() )
+        {
+            overflow.set( sequence.incrementAndGet() );
+        }
+
+        return new Snapshot( new HashMap<String, Long>( dirty ), overflow.get() );
+    }
+
+    /**
+     * After a full scan of the worktree under an overflowed snapshot: the scan's changed paths become the dirty set,
+     * and the overflow is cleared unless events were lost again since.
+     */
+    void markScanned( final Snapshot snapshot, final Collection<String> changed )
+    {
+        if ( snapshot.overflow == 0 )
+        {
+            return;
+        }
+
+        for ( final String path : changed )
+        {
+            dirty.putIfAbsent( path, sequence.incrementAndGet() );
+        }
+
+        overflow.compareAndSet( snapshot.overflow, 0 );
+    }
+
+    /**
+     * Forget the paths in the snapshot (and the overflow, if the snapshot saw one) unless they changed again since.
+     */
+    void markClean( final Snapshot snapshot )
+    {
+        for ( final Map.Entry<String, Long> entry : snapshot.paths.entrySet() )
+        {
+            dirty.remove( entry.getKey(), entry.getValue() );
+        }
+
+        if ( snapshot.overflow != 0 )
+        {
+            overflow.compareAndSet( snapshot.overflow, 0 );
+        }
+    }
+
+    public void close()
+    {
+        try
+        {
+            watchService.close();
+        }
+        catch ( final IOException e )
+        {
+            LOGGER.warn( "Failed to close watch service for: " + root + ". Reason: " + e.getMessage(), e );
+        }
+
+        thread.interrupt();
+    }
+
+    private boolean sync()
+    {
+        final String name = cookiePrefix + cookieCounter.incrementAndGet();
+        final CountDownLatch seen = new CountDownLatch( 1 );
+        cookies.put( name, seen );
+
+        final Path cookie = cookieDir.resolve( name );
+        try
+        {
+            Files.createFile( cookie );
+            return seen.await( COOKIE_TIMEOUT, TimeUnit.MILLISECONDS );
+        }
+        catch ( final IOException e )
+        {
+            LOGGER.warn( "Cannot write watch cookie: " + cookie + ". Reason: " + e.getMessage(), e );
+            return false;
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        finally
+        {
+            cookies.remove( name );
+            try
+            {
+                Files.deleteIfExists( cookie );
+            }
+            catch ( final IOException e )
+            {
+                LOGGER.warn( "Cannot delete watch cookie: " + cookie + ". Reason: " + e.getMessage(), e );
+            }
+        }
+    }
+
+    private void processEvents()
+    {
+        try
+        {
+            final Collection<CountDownLatch> seen = new ArrayList<CountDownLatch>();
+            while ( true )
+            {
+                WatchKey key = watchService.take();
+                do
+                {
+                    handle( key, seen );
+                }
+                while ( ( key = watchService.poll() ) != null );
+
+                // a key reset with events pending is queued again, so only now is everything before the cookies seen.
+                for ( final CountDownLatch latch : seen )
+                {
+                    latch.countDown();
+                }
+
+                seen.clear();
+            }
+        }
+        catch ( final InterruptedException e )
+        {
+            // closed.
+        }
+        catch ( final ClosedWatchServiceException e )
+        {
+            // closed.
+        }
+    }
+
+    private void handle( final WatchKey key, final Collection<CountDownLatch> seen )
+    {
+        final Path dir = keys.get( key );
+
+        for ( final WatchEvent<?> event : key.pollEvents() )
+        {
+            if ( event.kind() == OVERFLOW || dir == null )
+            {
+                overflow.set( sequence.incrementAndGet() );
+                continue;
+            }
+
+            if ( dir.equals( cookieDir ) )
+            {
+                final CountDownLatch latch = cookies.get( event.context().toString() );
+                if ( latch != null )
+                {
+                    seen.add( latch );
+                }
+
+                continue;
+            }
+
+            final Path child = dir.resolve( (Path) event.context() );
+            if ( isGitDir( child ) )
+            {
+                continue;
+            }
+
+            markDirty( child );
+
+            if ( event.kind() == ENTRY_CREATE && Files.isDirectory( child ) )
+            {
+                try
+                {
+                    // files may land in it before we're watching; the whole directory is dirty anyway.
+                    registerAll( child, true );
+                }
+                catch ( final IOException e )
+                {
+                    overflow.set( sequence.incrementAndGet() );
+                }
+            }
+        }
+
+        if ( !key.reset() )
+        {
+            keys.remove( key );
+        }
+    }
+
+    private void markDirty( final Path path )
+    {
+        final String relative = root.relativize( path ).toString().replace( File.separatorChar, '/' );
+        if ( relative.length() > 0 )
+        {
+            dirty.put( relative, sequence.incrementAndGet() );
+        }
+    }
+
+    private boolean isGitDir( final Path path )
+    {
+        return root.relativize( path ).startsWith( Constants.DOT_GIT );
+    }
+
+    private void registerAll( final Path start, final boolean markDirty )
+        throws IOException
+    {
+        Files.walkFileTree( start, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory( final Path dir, final BasicFileAttributes attrs )
+                throws IOException
+            {
+                if ( isGitDir( dir ) )
+                {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+
+                keys.put( dir.register( watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY ), dir );
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile( final Path file, final BasicFileAttributes attrs )
+            {
+                if ( markDirty )
+                {
+                    markDirty( file );
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+        } );
+    }
+
+    static final class Snapshot
+    {
+        private final Map<String, Long> paths;
+
+        private final long overflow;
+
+        private Snapshot( final Map<String, Long> paths, final long overflow )
+        {
+            this.paths = paths;
+            this.overflow = overflow;
+        }
+
+        /**
+         * Narrow to the dirty paths at or below one of the given prefixes, for operations that only covered part of
+         * the worktree. An overflow is only carried over for a null (everything) prefix list.
+         */
+        Snapshot retain( final Collection<String> prefixes )
+        {
+            if ( prefixes == null )
+            {
+                return this;
+            }
+
+            final Map<String, Long> retained = new HashMap<String, Long>();
+            for ( final Map.Entry<String, Long> entry : paths.entrySet() )
+            {
+                for ( final String prefix : prefixes )
+                {
+                    if ( entry.getKey().equals( prefix ) || entry.getKey().startsWith( prefix + "/" ) )
+                    {
+                        retained.put( entry.getKey(), entry.getValue() );
+                        break;
+                    }
+                }
+            }
+
+            return new Snapshot( retained, 0 );
+        }
+
+        /**
+         * Paths (files or whole directories) touched since the last index write.
+         */
+        Set<String> getPaths()
+        {
+            return Collections.unmodifiableSet( paths.keySet() );
+        }
+
+        /**
+         * True if events were lost, so {@link #getPaths()} can't be trusted and a full scan is needed.
+         */
+        boolean isOverflowed()
+        {
+            return overflow != 0;
+        }
+    }
+
+}
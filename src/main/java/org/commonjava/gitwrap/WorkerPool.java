@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads for the parallel parts of the library: tasks are submitted, their results taken as they complete, and the
+ * pool shut down (in a finally block) when the caller is done with it.
+ */
+final class WorkerPool<T>
+{
+
+    private final ExecutorService executor;
+
+    private final CompletionService<T> completion;
+
+    private WorkerPool( final ExecutorService executor )
+    {
+        this.executor = executor;
+        this.completion = new ExecutorCompletionService<T>( executor );
+    }
+
+    /**
+     * A pool of <code>threads</code> daemon threads named <code>namePrefix</code> plus a counter.
+     */
+    static <T> WorkerPool<T> fixed( final int threads, final String namePrefix )
+    {
+        return new WorkerPool<T>( Executors.newFixedThreadPool( threads, daemonThreads( namePrefix ) ) );
+    }
+
+    /**
+     * A pool that starts a new thread from <code>factory</code> whenever no idle one is left; the caller bounds
+     * concurrency.
+     */
+    static <T> WorkerPool<T> unbounded( final ThreadFactory factory )
+    {
+        return new WorkerPool<T>( Executors.newCachedThreadPool( factory ) );
+    }
+
+    /**
+     * How many workers to use for <code>items</code> pieces of work, given at most <code>threads</code>: one more for
+     * each <code>minItemsPerWorker</code> items, since below that, thread start-up costs more than it saves.
+     *
+     * @return at least 1; callers do the work on their own thread when it's 1.
+     */
+    static int workersFor( final int threads, final int items, final int minItemsPerWorker )
+    {
+        return Math.max( 1, Math.min( threads, items / minItemsPerWorker + 1 ) );
+    }
+
+    static ThreadFactory daemonThreads( final String namePrefix )
+    {
+        return new ThreadFactory()
+        {
+            private final AtomicInteger counter = new AtomicInteger( 0 );
+
+            public Thread newThread( final Runnable r )
+            {
+                final Thread t = new Thread( r, namePrefix + counter.incrementAndGet() );
+                t.setDaemon( true );
+
+                return t;
+            }
+        };
+    }
+
+    void submit( final Callable<T> task )
+    {
+        completion.submit( task );
+    }
+
+    /**
+     * Wait for the next task to finish.
+     *
+     * @return its result.
+     * @throws ExecutionException if it failed; the cause is what it threw.
+     */
+    T take()
+        throws InterruptedException, ExecutionException
+    {
+        return completion.take().get();
+    }
+
+    void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+}
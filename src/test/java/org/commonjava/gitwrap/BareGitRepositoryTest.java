@@ -18,23 +18,48 @@
 
 package org.commonjava.gitwrap;
 
+import static org.commonjava.gitwrap.TestUtils.commitFiles;
 import static org.commonjava.gitwrap.TestUtils.configureLogging;
 import static org.commonjava.gitwrap.TestUtils.delete;
+import static org.commonjava.gitwrap.TestUtils.tempPath;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.TextProgressMonitor;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.storage.file.FileRepository;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 import org.eclipse.jgit.transport.FetchResult;
 import org.eclipse.jgit.transport.RemoteConfig;
 import org.eclipse.jgit.transport.TrackingRefUpdate;
+import org.eclipse.jgit.treewalk.TreeWalk;
 import org.junit.After;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class BareGitRepositoryTest
 {
@@ -94,4 +119,779 @@ public class BareGitRepositoryTest
         }
     }
 
+    @Test
+    public void lazyHandleOpensOnFirstUse()
+        throws IOException, GitWrapException
+    {
+        testGitDir = File.createTempFile( "git-lazy.", ".git" );
+        testGitDir.delete();
+
+        final BareGitRepository repo = BareGitRepository.lazy( testGitDir, true );
+        assertFalse( repo.isOpened() );
+        assertFalse( testGitDir.exists() );
+
+        assertTrue( repo.getBranches().isEmpty() );
+        assertTrue( repo.isOpened() );
+        assertTrue( new File( testGitDir, "config" ).exists() );
+
+        repo.close();
+    }
+
+    @Test
+    public void lazyHandleAccessorsKeepTheirSignatures()
+        throws IOException
+    {
+        testGitDir = tempPath( "git-lazy-accessors.", ".git" );
+
+        final BareGitRepository repo = BareGitRepository.lazy( testGitDir, true );
+        assertEquals( testGitDir.getCanonicalFile(), repo.getRepository().getDirectory().getCanonicalFile() );
+        assertTrue( repo.isOpened() );
+        repo.close();
+
+        final BareGitRepository closed = BareGitRepository.lazy( testGitDir, false );
+        closed.close();
+        try
+        {
+            closed.getGit();
+            fail( "A closed lazy handle can't be opened." );
+        }
+        catch ( final IllegalStateException e )
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void pushParallelReportsEveryMirror()
+        throws IOException, GitWrapException
+    {
+        testGitDir = tempPath( "git-push.", ".dir" );
+        final GitRepository repo = new GitRepository( new File( testGitDir, "source" ) );
+        final ObjectId commit = commitFiles( repo, "a", "a.txt", "a" );
+
+        final File[] mirrors = { new File( testGitDir, "m1.git" ), new File( testGitDir, "m2.git" ) };
+        for ( final File mirror : mirrors )
+        {
+            new BareGitRepository( mirror, true ).close();
+            repo.setPushTarget( "mirrors", "file://" + mirror.getAbsolutePath(), true, false );
+        }
+
+        final File missing = new File( testGitDir, "missing.git" );
+        repo.setPushTarget( "mirrors", "file://" + missing.getAbsolutePath(), true, false );
+
+        // best-effort keeps pushing to the good mirrors even though one of them can't be reached.
+        final MirrorPushResult result = repo.pushParallel( "mirrors", 3, PushPolicy.BEST_EFFORT );
+        assertEquals( 3, result.getResults().size() );
+        assertEquals( 1, result.getFailures().size() );
+        assertEquals( missing.getAbsolutePath(), result.getFailures().get( 0 ).getUri().getPath() );
+
+        for ( final File mirror : mirrors )
+        {
+            final BareGitRepository pushed = new BareGitRepository( mirror );
+            assertEquals( commit, pushed.getRepository().resolve( Constants.R_HEADS + "master" ) );
+            pushed.close();
+        }
+
+        repo.close();
+    }
+
+    @Test
+    public void fetchIfChangedSkipsUnchangedRemotes()
+        throws IOException, GitWrapException
+    {
+        testGitDir = tempPath( "git-ls-remote.", ".dir" );
+        final GitRepository upstream = new GitRepository( new File( testGitDir, "upstream" ) );
+        final ObjectId first = commitFiles( upstream, "a", "a.txt", "a" );
+
+        final BareGitRepository clone =
+            BareGitRepository.cloneBare( "file://" + upstream.getGitDir().getAbsolutePath(), "origin",
+                                         new File( testGitDir, "clone.git" ) );
+
+        final Map<String, Ref> advertised = clone.listRemoteRefs( "origin" );
+        assertEquals( first, advertised.get( "refs/heads/master" ).getObjectId() );
+        assertFalse( clone.fetchIfChanged( "origin" ) );
+
+        final ObjectId second = commitFiles( upstream, "b", "b.txt", "b" );
+        assertTrue( clone.fetchIfChanged( "origin" ) );
+        assertEquals( second, clone.getRepository().resolve( "refs/remotes/origin/master" ) );
+        assertFalse( clone.fetchIfChanged( "origin" ) );
+
+        clone.close();
+        upstream.close();
+    }
+
+    @Test
+    public void fetchIfChangedIgnoresTagsItWouldNotFollow()
+        throws IOException, GitWrapException
+    {
+        testGitDir = tempPath( "git-ls-remote-tags.", ".dir" );
+        final GitRepository upstream = new GitRepository( new File( testGitDir, "upstream" ) );
+        final ObjectId first = commitFiles( upstream, "a", "a.txt", "a" );
+        upstream.createBranch( "master", "feature" );
+        commitFiles( upstream, "b", "b.txt", "b" );
+
+        final BareGitRepository clone =
+            BareGitRepository.cloneBare( "file://" + upstream.getGitDir().getAbsolutePath(), "origin",
+                                         new File( testGitDir, "clone.git" ), CloneOptions.singleBranch( null ) );
+
+        // a tag on a branch this remote doesn't fetch would never arrive, so it can't make the remote look changed.
+        upstream.createTag( "feature", "v1", "release 1" );
+        assertFalse( clone.fetchIfChanged( "origin" ) );
+
+        // a tag on history we already have is followed.
+        upstream.createTag( first.name(), "v0", "release 0" );
+        assertTrue( clone.fetchIfChanged( "origin" ) );
+        assertTrue( clone.getRepository().resolve( Constants.R_TAGS + "v0" ) != null );
+        assertNull( clone.getRepository().resolve( Constants.R_TAGS + "v1" ) );
+        assertFalse( clone.fetchIfChanged( "origin" ) );
+
+        clone.close();
+        upstream.close();
+    }
+
+    @Test
+    public void singleBranchCloneDefaultsToMaster()
+        throws IOException, GitWrapException
+    {
+        testGitDir = tempPath( "git-single-branch.", ".dir" );
+        final GitRepository upstream = new GitRepository( new File( testGitDir, "upstream" ) );
+        commitFiles( upstream, "a", "a.txt", "a" );
+        upstream.createBranch( "master", "feature" );
+        commitFiles( upstream, "b", "b.txt", "b" );
+        upstream.close();
+
+        final BareGitRepository clone =
+            BareGitRepository.cloneBare( "file://" + upstream.getGitDir().getAbsolutePath(), "origin",
+                                         new File( testGitDir, "clone.git" ), CloneOptions.singleBranch( null ) );
+
+        assertEquals( Collections.singleton( "origin/master" ), clone.getRemotes() );
+        assertEquals( Collections.singletonList( "master" ), FetchRefFilter.singleBranch( null ).getBranchPatterns() );
+        clone.close();
+    }
+
+    @Test
+    public void refFilterRejectsWildcardsJGitWouldMatchLiterally()
+        throws GitWrapException
+    {
+        assertEquals( 2, FetchRefFilter.branches( "release/*", "*" ).toRefSpecs( "origin" ).size() );
+
+        for ( final String pattern : new String[] { "release-*", "rel*/1.0", "release/*/fixes" } )
+        {
+            try
+            {
+                FetchRefFilter.branches( pattern ).toRefSpecs( "origin" );
+                fail( "Branch pattern: " + pattern + " should be rejected." );
+            }
+            catch ( final GitWrapException e )
+            {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void localCloneCopiesTheObjectStore()
+        throws IOException, GitWrapException
+    {
+        testGitDir = tempPath( "git-local-clone.", ".dir" );
+        final GitRepository upstream = new GitRepository( new File( testGitDir, "upstream" ) );
+        final ObjectId commit = commitFiles( upstream, "a", "a.txt", "a" );
+        upstream.close();
+
+        final String upstreamPath = upstream.getGitDir().getAbsolutePath();
+        final String looseCommit = "objects/" + commit.name().substring( 0, 2 ) + "/" + commit.name().substring( 2 );
+
+        // the upstream's loose objects are linked or copied as they are, rather than arriving in a fetched pack.
+        final File localDir = new File( testGitDir, "local.git" );
+        final BareGitRepository local =
+            BareGitRepository.cloneBare( upstreamPath, "origin", localDir, new CloneOptions() );
+        assertTrue( new File( localDir, looseCommit ).isFile() );
+        assertEquals( commit, local.getRepository().resolve( "refs/remotes/origin/master" ) );
+        local.close();
+
+        final File fetchedDir = new File( testGitDir, "fetched.git" );
+        final BareGitRepository fetched =
+            BareGitRepository.cloneBare( upstreamPath, "origin", fetchedDir, new CloneOptions().setLocal( false ) );
+        assertFalse( new File( fetchedDir, looseCommit ).isFile() );
+        assertEquals( commit, fetched.getRepository().resolve( "refs/remotes/origin/master" ) );
+        fetched.close();
+    }
+
+    @Test
+    public void referenceCloneBorrowsUntilDissociated()
+        throws IOException, GitWrapException
+    {
+        testGitDir = tempPath( "git-reference.", ".dir" );
+        final GitRepository upstream = new GitRepository( new File( testGitDir, "upstream" ) );
+        final ObjectId commit = commitFiles( upstream, "a", "a.txt", "a" );
+        upstream.close();
+
+        final File upstreamDir = upstream.getGitDir();
+        final File cloneDir = new File( testGitDir, "clone.git" );
+        final BareGitRepository clone =
+            BareGitRepository.cloneBare( "file://" + upstreamDir.getAbsolutePath(), "origin", cloneDir,
+                                         new CloneOptions().setReference( upstreamDir ) );
+
+        final File alternates = new File( cloneDir, "objects/info/alternates" );
+        final File looseCommit =
+            new File( cloneDir, "objects/" + commit.name().substring( 0, 2 ) + "/" + commit.name().substring( 2 ) );
+        assertTrue( alternates.isFile() );
+        assertFalse( looseCommit.isFile() );
+        assertEquals( commit, clone.getRepository().resolve( "refs/remotes/origin/master" ) );
+        assertTrue( clone.getRepository().hasObject( commit ) );
+
+        clone.dissociate();
+        assertFalse( alternates.exists() );
+        assertTrue( looseCommit.isFile() );
+        assertTrue( clone.getRepository().hasObject( commit ) );
+
+        clone.close();
+    }
+
+    @Test
+    public void batchResultsKeepTheOrderRefsWereGiven()
+        throws IOException, GitWrapException
+    {
+        testGitDir = tempPath( "git-batch.", ".dir" );
+        final GitRepository repo = new GitRepository( testGitDir );
+        commitFiles( repo, "a", "a.txt", "a" );
+
+        final Map<String, String> sources = new LinkedHashMap<String, String>();
+        sources.put( "v1", "master" );
+        sources.put( "v2", "no-such-branch" );
+        sources.put( "v3", "master" );
+
+        final BatchRefResult tags = repo.createTags( sources, "release", false, false );
+        assertEquals( Arrays.asList( "refs/tags/v1", "refs/tags/v2", "refs/tags/v3" ),
+                      new ArrayList<String>( tags.getStatuses().keySet() ) );
+        assertEquals( BatchRefStatus.CREATED, tags.getStatus( "refs/tags/v1" ) );
+        assertEquals( BatchRefStatus.INVALID, tags.getStatus( "refs/tags/v2" ) );
+        assertEquals( BatchRefStatus.CREATED, tags.getStatus( "refs/tags/v3" ) );
+
+        sources.clear();
+        sources.put( "b1", "master" );
+        sources.put( "b2", "no-such-branch" );
+        sources.put( "b3", "master" );
+
+        final BatchRefResult branches = repo.createBranches( sources, true );
+        assertEquals( Arrays.asList( "refs/heads/b1", "refs/heads/b2", "refs/heads/b3" ),
+                      new ArrayList<String>( branches.getStatuses().keySet() ) );
+        assertEquals( BatchRefStatus.NOT_ATTEMPTED, branches.getStatus( "refs/heads/b1" ) );
+        assertEquals( BatchRefStatus.INVALID, branches.getStatus( "refs/heads/b2" ) );
+        assertEquals( BatchRefStatus.NOT_ATTEMPTED, branches.getStatus( "refs/heads/b3" ) );
+        assertFalse( repo.hasBranch( "b1" ) );
+
+        repo.close();
+    }
+
+    @Test
+    public void refCacheSeesOutsideWritesInDirectoriesItUpdates()
+        throws IOException, GitWrapException
+    {
+        testGitDir = tempPath( "git-ref-cache.", ".dir" );
+        final GitRepository repo = new GitRepository( testGitDir );
+        final ObjectId root = commitFiles( repo, "root", "a.txt", "a" );
+
+        // age the ref directories, so the snapshot isn't too fresh to trust.
+        ageDirs( new File( repo.getGitDir(), "refs" ), System.currentTimeMillis() - 60000 );
+        assertTrue( repo.getTags().isEmpty() );
+        assertEquals( new HashSet<String>( Arrays.asList( Constants.HEAD, "refs/heads/master" ) ), repo.getRefs( "" ) );
+
+        // written behind the library's back, into the same directory it then writes to itself.
+        final FileRepository other = new FileRepository( repo.getGitDir() );
+        final RefUpdate update = other.updateRef( "refs/tags/outside" );
+        update.setNewObjectId( root );
+        update.update();
+        other.close();
+
+        repo.createTag( "master", "inside", "tagged here" );
+
+        assertEquals( new HashSet<String>( Arrays.asList( "inside", "outside" ) ), repo.getTags() );
+
+        repo.close();
+    }
+
+    private static void ageDirs( final File dir, final long time )
+    {
+        dir.setLastModified( time );
+        final File[] children = dir.listFiles();
+        if ( children != null )
+        {
+            for ( final File child : children )
+            {
+                if ( child.isDirectory() )
+                {
+                    ageDirs( child, time );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void packRefsFoldsLooseRefsWithPeeledTags()
+        throws IOException, GitWrapException
+    {
+        testGitDir = tempPath( "git-pack-refs.", ".dir" );
+        final GitRepository repo = new GitRepository( testGitDir );
+        final ObjectId commit = commitFiles( repo, "a", "a.txt", "a" );
+        repo.createBranch( "master", "feature" );
+        repo.createTag( "master", "v1", "release 1" );
+
+        repo.packRefs();
+
+        final File gitDir = repo.getGitDir();
+        assertFalse( new File( gitDir, "refs/heads/feature" ).exists() );
+        assertFalse( new File( gitDir, "refs/tags/v1" ).exists() );
+
+        final String packed = readAll( new File( gitDir, "packed-refs" ) );
+        assertTrue( packed.contains( " refs/tags/v1\n" ) );
+        assertTrue( packed.contains( "^" + commit.name() + "\n" ) );
+
+        assertEquals( commit, repo.resolve( "feature" ) );
+        assertEquals( commit, repo.resolve( "v1^{commit}" ) );
+        assertTrue( repo.getTags().contains( "v1" ) );
+
+        repo.close();
+    }
+
+    @Test
+    public void packRefsRunsOnceTheLooseRefThresholdIsCrossed()
+        throws IOException, GitWrapException
+    {
+        testGitDir = tempPath( "git-auto-pack-refs.", ".dir" );
+        final GitRepository repo = new GitRepository( testGitDir );
+        commitFiles( repo, "a", "a.txt", "a" );
+
+        BareGitRepository.setAutoPackRefsThreshold( 3 );
+        try
+        {
+            final Map<String, String> branches = new LinkedHashMap<String, String>();
+            for ( int i = 0; i < 4; i++ )
+            {
+                branches.put( "b" + i, "master" );
+            }
+
+            assertTrue( repo.createBranches( branches, false ).isSuccessful() );
+        }
+        finally
+        {
+            BareGitRepository.setAutoPackRefsThreshold( 1000 );
+        }
+
+        final File gitDir = repo.getGitDir();
+        assertTrue( new File( gitDir, "packed-refs" ).isFile() );
+        for ( int i = 0; i < 4; i++ )
+        {
+            assertFalse( new File( gitDir, "refs/heads/b" + i ).exists() );
+            assertTrue( repo.hasBranch( "b" + i ) );
+        }
+
+        repo.close();
+    }
+
+    private static String readAll( final File file )
+        throws IOException
+    {
+        return new String( readBytes( file ), "UTF-8" );
+    }
+
+    private static byte[] readBytes( final File file )
+        throws IOException
+    {
+        final DataInputStream in = new DataInputStream( new FileInputStream( file ) );
+        try
+        {
+            final byte[] content = new byte[(int) file.length()];
+            in.readFully( content );
+            return content;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    @Test
+    public void commitBuilderCreatesBranchFromTaggedParent()
+        throws IOException, GitWrapException
+    {
+        testGitDir = tempPath( "git-builder.", ".git" );
+        final BareGitRepository repo = new BareGitRepository( testGitDir, true );
+
+        final ObjectId root = repo.newCommit( "master" ).add( "a.txt", "a".getBytes() ).setMessage( "root" ).commit();
+        repo.createTag( "master", "v1", "release 1" );
+
+        // an annotated tag as parent: the branch is new, and the parent must be the tagged commit.
+        final ObjectId feature =
+            repo.newCommit( "feature" ).setParent( "v1" ).add( "b.txt", "b".getBytes() ).setMessage( "b" ).commit();
+
+        assertTrue( repo.hasBranch( "feature" ) );
+        final FileRepository repository = repo.getRepository();
+        final RevCommit commit = new RevWalk( repository ).parseCommit( repository.resolve( "refs/heads/feature" ) );
+        assertEquals( feature, commit.getId() );
+        assertEquals( 1, commit.getParentCount() );
+        assertEquals( root, commit.getParent( 0 ).getId() );
+
+        final TreeWalk walk = TreeWalk.forPath( repository, "a.txt", commit.getTree() );
+        assertEquals( "a", new String( repository.open( walk.getObjectId( 0 ) ).getCachedBytes() ) );
+        assertEquals( root.name(), repo.getHeadRevision() );
+
+        repo.close();
+    }
+
+    @Test
+    public void commitBuilderOnlyMovesBranchForward()
+        throws IOException, GitWrapException
+    {
+        testGitDir = tempPath( "git-builder-ff.", ".git" );
+        final BareGitRepository repo = new BareGitRepository( testGitDir, true );
+
+        final ObjectId root = repo.newCommit( "master" ).add( "a.txt", "a".getBytes() ).setMessage( "root" ).commit();
+        final ObjectId second = repo.newCommit( "master" ).add( "a.txt", "a2".getBytes() ).setMessage( "a2" ).commit();
+
+        try
+        {
+            repo.newCommit( "master" ).setParent( root.name() ).add( "c.txt", "c".getBytes() ).commit();
+            fail( "A commit that isn't a fast-forward of the branch should be rejected." );
+        }
+        catch ( final GitWrapException e )
+        {
+            // expected
+        }
+
+        assertEquals( second.name(), repo.getHeadRevision() );
+
+        // nothing changed: no commit, the parent comes back.
+        assertEquals( second, repo.newCommit( "master" ).add( "a.txt", "a2".getBytes() ).commit() );
+
+        repo.close();
+    }
+
+    @Test
+    public void commitBuilderRejectsInvalidPaths()
+        throws IOException, GitWrapException
+    {
+        testGitDir = tempPath( "git-builder-paths.", ".git" );
+        final BareGitRepository repo = new BareGitRepository( testGitDir, true );
+        final ObjectId root = repo.newCommit( "master" ).add( "a.txt", "a".getBytes() ).setMessage( "root" ).commit();
+
+        for ( final String path : new String[] { "", "/a.txt", "dir/", "dir//a.txt", "./a.txt", "../a.txt", "a/../b",
+            ".git/config", "dir/.GIT/hooks" } )
+        {
+            final BareCommitBuilder builder = repo.newCommit( "master" );
+            try
+            {
+                builder.add( path, "x".getBytes() );
+                fail( "Adding: '" + path + "' should be rejected." );
+            }
+            catch ( final GitWrapException e )
+            {
+                // expected
+            }
+
+            try
+            {
+                builder.delete( path );
+                fail( "Deleting: '" + path + "' should be rejected." );
+            }
+            catch ( final GitWrapException e )
+            {
+                // expected
+            }
+        }
+
+        assertEquals( root.name(), repo.getHeadRevision() );
+
+        repo.close();
+    }
+
+    @Test
+    public void readFilesAtRevisions()
+        throws IOException, GitWrapException
+    {
+        testGitDir = tempPath( "git-read-files.", ".git" );
+        final BareGitRepository repo = new BareGitRepository( testGitDir, true );
+        repo.newCommit( "master" )
+            .add( "pom.xml", "<project>1</project>".getBytes() )
+            .add( "module/pom.xml", "<module/>".getBytes() )
+            .setMessage( "1" )
+            .commit();
+        repo.createTag( "master", "v1", "release 1" );
+        repo.newCommit( "master" ).add( "pom.xml", "<project>2</project>".getBytes() ).setMessage( "2" ).commit();
+
+        assertEquals( "<project>1</project>", read( repo.openFile( "v1", "pom.xml" ) ) );
+        assertEquals( "<project>2</project>", read( repo.openFile( "master", "pom.xml" ) ) );
+
+        // directories and missing paths are left out rather than failing the whole read.
+        final Map<String, byte[]> files =
+            repo.readFiles( "v1", Arrays.asList( "pom.xml", "module/pom.xml", "module", "missing.xml" ) );
+        assertEquals( new HashSet<String>( Arrays.asList( "pom.xml", "module/pom.xml" ) ), files.keySet() );
+        assertEquals( "<module/>", new String( files.get( "module/pom.xml" ) ) );
+        assertNull( repo.openFile( "v1", "module" ) );
+
+        try
+        {
+            repo.readFile( "no-such-revision", "pom.xml" );
+            fail( "Expected an unresolvable revision to fail." );
+        }
+        catch ( final GitWrapException e )
+        {
+            // expected
+        }
+
+        repo.close();
+    }
+
+    @Test
+    public void blobCacheRemembersResolutionsAndSmallContents()
+        throws IOException, GitWrapException
+    {
+        testGitDir = tempPath( "git-blob-cache.", ".git" );
+        final BareGitRepository repo = new BareGitRepository( testGitDir, true );
+        repo.newCommit( "master" ).add( "pom.xml", "<project/>".getBytes() ).setMessage( "pom" ).commit();
+
+        final BlobCacheStats before = repo.getBlobCacheStats();
+        assertEquals( "<project/>", read( repo.openFile( "master", "pom.xml" ) ) );
+        assertNull( repo.openFile( "master", "missing.xml" ) );
+
+        BlobCacheStats stats = repo.getBlobCacheStats();
+        assertEquals( before.getResolutionMisses() + 2, stats.getResolutionMisses() );
+        assertEquals( before.getContentMisses() + 1, stats.getContentMisses() );
+        assertEquals( 1, stats.getContentCount() );
+
+        // both the path and the bytes come from memory now, whichever way they're read.
+        assertEquals( "<project/>", read( repo.openFile( "master", "pom.xml" ) ) );
+        assertEquals( "<project/>", new String( repo.readFile( "master", "pom.xml" ) ) );
+        assertNull( repo.readFile( "master", "missing.xml" ) );
+
+        final BlobCacheStats after = repo.getBlobCacheStats();
+        assertEquals( stats.getResolutionHits() + 3, after.getResolutionHits() );
+        assertEquals( stats.getResolutionMisses(), after.getResolutionMisses() );
+        assertEquals( stats.getContentHits() + 2, after.getContentHits() );
+        assertEquals( stats.getContentMisses(), after.getContentMisses() );
+        assertEquals( after.getResolutionHits() + after.getContentHits(), after.getHits() );
+
+        repo.close();
+    }
+
+    @Test
+    public void ancestryQueries()
+        throws IOException, GitWrapException
+    {
+        testGitDir = File.createTempFile( "git-ancestry.", ".git" );
+        testGitDir.delete();
+
+        final BareGitRepository repo = new BareGitRepository( testGitDir, true );
+
+        final ObjectId root = repo.newCommit( "master" ).add( "a.txt", "a".getBytes() ).setMessage( "root" ).commit();
+        final ObjectId topic =
+            repo.newCommit( "topic" ).setParent( root.name() ).add( "b.txt", "b".getBytes() ).setMessage( "b" )
+                .commit();
+        final ObjectId master = repo.newCommit( "master" ).add( "c.txt", "c".getBytes() ).setMessage( "c" ).commit();
+
+        assertTrue( repo.isAncestor( root.name(), master.name() ) );
+        assertTrue( repo.isAncestor( root.name(), topic.name() ) );
+        assertFalse( repo.isAncestor( master.name(), topic.name() ) );
+        assertFalse( repo.isAncestor( master.name(), root.name() ) );
+
+        assertEquals( root.name(), repo.mergeBase( "master", "topic" ) );
+        assertEquals( root.name(), repo.mergeBase( "master", root.name() ) );
+
+        assertEquals( new HashSet<String>( Arrays.asList( "master", "topic" ) ),
+                      repo.getBranchesContaining( root.name() ) );
+        assertEquals( new HashSet<String>( Arrays.asList( "topic" ) ), repo.getBranchesContaining( topic.name() ) );
+
+        // annotated tags are peeled to the commit they point at.
+        repo.createTag( root.name(), "v1", "release 1" );
+        repo.createTag( "topic", "v2", "release 2" );
+        repo.createTag( "master", "v3", "release 3" );
+
+        assertEquals( new HashSet<String>( Arrays.asList( "v1", "v2", "v3" ) ), repo.getTagsContaining( root.name() ) );
+        assertEquals( new HashSet<String>( Arrays.asList( "v2" ) ), repo.getTagsContaining( topic.name() ) );
+        assertEquals( new HashSet<String>( Arrays.asList( "v3" ) ), repo.getTagsContaining( "master" ) );
+
+        repo.close();
+    }
+
+    @Test
+    public void commitGraphAppendsNewCommits()
+        throws IOException, GitWrapException
+    {
+        testGitDir = tempPath( "git-commit-graph.", ".git" );
+        final BareGitRepository repo = new BareGitRepository( testGitDir, true );
+
+        final ObjectId root = repo.newCommit( "master" ).add( "a.txt", "a".getBytes() ).setMessage( "a" ).commit();
+        final ObjectId second = repo.newCommit( "master" ).add( "b.txt", "b".getBytes() ).setMessage( "b" ).commit();
+        assertTrue( repo.isAncestor( root.name(), second.name() ) );
+
+        final File file = new File( testGitDir, CommitGraph.GRAPH_FILE );
+        final byte[] saved = readBytes( file );
+
+        // the new commit's record goes after the existing ones, which are left as they were.
+        final ObjectId third = repo.newCommit( "master" ).add( "c.txt", "c".getBytes() ).setMessage( "c" ).commit();
+        assertTrue( repo.isAncestor( root.name(), third.name() ) );
+
+        final byte[] appended = readBytes( file );
+        assertTrue( appended.length > saved.length );
+        assertTrue( Arrays.equals( saved, Arrays.copyOf( appended, saved.length ) ) );
+        repo.close();
+
+        // a torn record from an interrupted append is dropped, and everything before it is kept.
+        final FileOutputStream out = new FileOutputStream( file, true );
+        try
+        {
+            out.write( new byte[] { 1, 2, 3 } );
+        }
+        finally
+        {
+            out.close();
+        }
+
+        final CommitGraph graph = new CommitGraph( testGitDir );
+        graph.ensure( null, Collections.<ObjectId> emptyList() );
+        assertTrue( graph.lookup( root ) >= 0 );
+        assertTrue( graph.lookup( second ) >= 0 );
+        assertTrue( graph.lookup( third ) >= 0 );
+        assertEquals( appended.length, file.length() );
+    }
+
+    @Test
+    public void logPagesWithCursor()
+        throws IOException, GitWrapException
+    {
+        testGitDir = File.createTempFile( "git-log.", ".git" );
+        testGitDir.delete();
+
+        final BareGitRepository repo = new BareGitRepository( testGitDir, true );
+
+        final List<ObjectId> commits = new ArrayList<ObjectId>();
+        for ( int i = 0; i < 5; i++ )
+        {
+            commits.add( 0, repo.newCommit( "master" ).add( "file.txt", ( "v" + i ).getBytes() ).setMessage( "v" + i )
+                                .commit() );
+        }
+
+        final List<ObjectId> listed = new ArrayList<ObjectId>();
+        String cursor = null;
+        do
+        {
+            final CommitLog log = repo.log( new LogQuery().setMaxCount( 2 ).setCursor( cursor ) );
+            while ( log.hasNext() )
+            {
+                listed.add( log.next().getId() );
+            }
+
+            cursor = log.getCursor();
+            log.close();
+        }
+        while ( cursor != null );
+
+        assertEquals( commits, listed );
+
+        final CommitLog since = repo.log( new LogQuery().setSince( commits.get( 2 ).name() ) );
+        assertEquals( commits.get( 0 ), since.next().getId() );
+        assertEquals( "v3", since.next().getShortMessage() );
+        assertFalse( since.hasNext() );
+
+        repo.close();
+    }
+
+    @Test
+    public void logFiltersByPath()
+        throws IOException, GitWrapException
+    {
+        testGitDir = File.createTempFile( "git-path-log.", ".git" );
+        testGitDir.delete();
+
+        final BareGitRepository repo = new BareGitRepository( testGitDir, true );
+
+        repo.newCommit( "master" ).add( "a.txt", "a".getBytes() ).setMessage( "a" ).commit();
+        final ObjectId second =
+            repo.newCommit( "master" ).add( "dir/b.txt", "b".getBytes() ).setMessage( "b" ).commit();
+        final ObjectId third = repo.newCommit( "master" ).add( "a.txt", "a2".getBytes() ).setMessage( "a2" ).commit();
+        final ObjectId fourth =
+            repo.newCommit( "master" ).add( "dir/b.txt", "b2".getBytes() ).setMessage( "b2" ).commit();
+
+        final List<ObjectId> listed = new ArrayList<ObjectId>();
+        final CommitLog log = repo.log( new LogQuery().setPath( "dir/" ) );
+        while ( log.hasNext() )
+        {
+            listed.add( log.next().getId() );
+        }
+
+        assertEquals( Arrays.asList( fourth, second ), listed );
+        assertTrue( new File( testGitDir, ChangedPathIndex.INDEX_FILE ).isFile() );
+
+        // commits made once the index exists are indexed as they're made.
+        final ObjectId fifth = repo.newCommit( "master" ).delete( "a.txt" ).setMessage( "rm a" ).commit();
+        final CommitLog history = repo.log( new LogQuery().setPath( "a.txt" ).setMaxCount( 2 ) );
+        assertEquals( fifth, history.next().getId() );
+        assertEquals( third, history.next().getId() );
+        assertFalse( history.hasNext() );
+        assertEquals( second.name(), history.getCursor() );
+
+        repo.close();
+    }
+
+    @Test
+    public void logSinceOnlyIndexesTheRange()
+        throws IOException, GitWrapException
+    {
+        testGitDir = tempPath( "git-since-log.", ".git" );
+        BareGitRepository repo = new BareGitRepository( testGitDir, true );
+
+        final ObjectId root = repo.newCommit( "master" ).add( "a.txt", "a".getBytes() ).setMessage( "a" ).commit();
+        final ObjectId second =
+            repo.newCommit( "master" ).add( "dir/b.txt", "b".getBytes() ).setMessage( "b" ).commit();
+        final ObjectId third = repo.newCommit( "master" ).add( "a.txt", "a2".getBytes() ).setMessage( "a2" ).commit();
+        final ObjectId fourth =
+            repo.newCommit( "master" ).add( "dir/b.txt", "b2".getBytes() ).setMessage( "b2" ).commit();
+
+        final CommitLog log = repo.log( new LogQuery().setSince( second.name() ).setPath( "dir/" ) );
+        assertEquals( fourth, log.next().getId() );
+        assertFalse( log.hasNext() );
+
+        ChangedPathIndex index = RepositoryState.of( repo.requireRepository() ).getChangedPathIndex( testGitDir );
+        assertFalse( index.mightChange( third, "dir/b.txt" ) );
+        assertTrue( index.mightChange( root, "dir/b.txt" ) );
+        repo.close();
+
+        // the commits the range stopped at are picked up from the index file by the next unlimited walk.
+        repo = new BareGitRepository( testGitDir );
+        final List<ObjectId> listed = new ArrayList<ObjectId>();
+        final CommitLog history = repo.log( new LogQuery().setPath( "dir/" ) );
+        while ( history.hasNext() )
+        {
+            listed.add( history.next().getId() );
+        }
+
+        assertEquals( Arrays.asList( fourth, second ), listed );
+        index = RepositoryState.of( repo.requireRepository() ).getChangedPathIndex( testGitDir );
+        assertFalse( index.mightChange( root, "dir/b.txt" ) );
+        assertFalse( index.mightChange( second, "a.txt" ) );
+
+        repo.close();
+    }
+
+    private static String read( final InputStream in )
+        throws IOException
+    {
+        try
+        {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buf = new byte[4096];
+            int read;
+            while ( ( read = in.read( buf ) ) > -1 )
+            {
+                out.write( buf, 0, read );
+            }
+
+            return new String( out.toByteArray() );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import static org.commonjava.gitwrap.TestUtils.commitFiles;
+import static org.commonjava.gitwrap.TestUtils.configureLogging;
+import static org.commonjava.gitwrap.TestUtils.delete;
+import static org.commonjava.gitwrap.TestUtils.tempPath;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+public class FleetFetchSchedulerTest
+{
+
+    private File baseDir;
+
+    @BeforeClass
+    public static void setupLogging()
+    {
+        configureLogging();
+    }
+
+    @After
+    public void deleteBaseDir()
+    {
+        delete( baseDir );
+    }
+
+    @Test
+    public void runFetchesEveryScheduledRemoteAndReportsFailures()
+        throws IOException, GitWrapException
+    {
+        baseDir = tempPath( "fleet.", ".dir" );
+
+        final GitRepository upstream = new GitRepository( new File( baseDir, "upstream" ) );
+        commitFiles( upstream, "a", "a.txt", "a" );
+
+        final String url = "file://" + upstream.getGitDir().getAbsolutePath();
+        final BareGitRepository first = BareGitRepository.cloneBare( url, "origin", new File( baseDir, "first.git" ) );
+        final BareGitRepository second =
+            BareGitRepository.cloneBare( url, "origin", new File( baseDir, "second.git" ) );
+        second.setPushTarget( "gone", "file://" + new File( baseDir, "missing.git" ).getAbsolutePath(), true, false );
+
+        final ObjectId next = commitFiles( upstream, "b", "b.txt", "b" );
+
+        // a single slot per host forces the three local fetches to queue up behind each other.
+        final FleetFetchReport report =
+            new FleetFetchScheduler( 2, 1 ).schedule( first, "origin" )
+                                           .schedule( second, "origin" )
+                                           .schedule( second, "gone" )
+                                           .run();
+
+        final List<FetchOutcome> outcomes = report.getOutcomes();
+        assertEquals( 3, outcomes.size() );
+        assertEquals( 2, report.getSucceededCount() );
+        assertEquals( 1, report.getFailures().size() );
+        assertEquals( "gone", report.getFailures().get( 0 ).getRemoteName() );
+        assertFalse( report.getFailures().get( 0 ).isSuccessful() );
+
+        for ( final FetchOutcome outcome : outcomes.subList( 0, 2 ) )
+        {
+            assertTrue( outcome.isSuccessful() );
+            assertEquals( "localhost", outcome.getHost() );
+            assertEquals( next, outcome.getRepository().getRepository().resolve( "refs/remotes/origin/master" ) );
+        }
+
+        first.close();
+        second.close();
+        upstream.close();
+    }
+
+}
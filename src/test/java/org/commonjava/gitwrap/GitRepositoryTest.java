@@ -18,10 +18,18 @@
 
 package org.commonjava.gitwrap;
 
+import static org.commonjava.gitwrap.TestUtils.commitFiles;
 import static org.commonjava.gitwrap.TestUtils.configureLogging;
 import static org.commonjava.gitwrap.TestUtils.delete;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import org.eclipse.jgit.dircache.DirCacheEntry;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.TextProgressMonitor;
 import org.eclipse.jgit.storage.file.FileRepository;
@@ -29,13 +37,20 @@ import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 import org.eclipse.jgit.transport.FetchResult;
 import org.eclipse.jgit.transport.RemoteConfig;
 import org.eclipse.jgit.transport.TrackingRefUpdate;
+import org.eclipse.jgit.treewalk.TreeWalk;
 import org.junit.After;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 
 public class GitRepositoryTest
 {
@@ -142,4 +157,348 @@ public class GitRepositoryTest
         }
     }
 
+    @Test
+    public void checkoutOnlyTouchesChangedPaths()
+        throws IOException, GitWrapException
+    {
+        workDir = File.createTempFile( "git-checkout-diff", "" );
+        workDir.delete();
+
+        final GitRepository repo = new GitRepository( workDir );
+        write( "a.txt", "a1" );
+        write( "keep.txt", "k" );
+
+        // an old timestamp on a file both branches share shows whether checkout rewrote it.
+        final long old = ( System.currentTimeMillis() / 1000 - 3600 ) * 1000;
+        new File( workDir, "keep.txt" ).setLastModified( old );
+        repo.commitChanges( "first", "." );
+
+        repo.createBranch( "master", "other" );
+        write( "a.txt", "a2" );
+        write( "dir/c.txt", "c" );
+        repo.commitChanges( "other", "." );
+
+        final FileRepository repository = repo.getRepository();
+        final long indexed = repository.readDirCache().getEntry( "keep.txt" ).getLastModified();
+
+        repo.checkoutBranch( "master" );
+
+        assertEquals( "a1", readFile( "a.txt" ) );
+        assertFalse( new File( workDir, "dir/c.txt" ).exists() );
+        assertEquals( old, new File( workDir, "keep.txt" ).lastModified() );
+
+        assertNull( repository.readDirCache().getEntry( "dir/c.txt" ) );
+        assertEquals( indexed, repository.readDirCache().getEntry( "keep.txt" ).getLastModified() );
+        assertEquals( "refs/heads/master", repository.getFullBranch() );
+    }
+
+    @Test
+    public void checkoutHashesRacilyCleanFiles()
+        throws IOException, GitWrapException
+    {
+        workDir = File.createTempFile( "git-checkout-racy", "" );
+        workDir.delete();
+
+        final long racy = ( System.currentTimeMillis() / 1000 + 60 ) * 1000;
+
+        final GitRepository repo = new GitRepository( workDir );
+        write( "a.txt", "a1" );
+        repo.commitChanges( "first", "." );
+
+        repo.createBranch( "master", "other" );
+        write( "a.txt", "b1" );
+        new File( workDir, "a.txt" ).setLastModified( racy );
+        repo.commitChanges( "second", "." );
+
+        // same size and mtime as the index entry, but the index can't vouch for it: this edit must not be lost.
+        write( "a.txt", "c1" );
+        new File( workDir, "a.txt" ).setLastModified( racy );
+        try
+        {
+            repo.checkoutBranch( "master" );
+            fail( "Checkout should refuse to overwrite the local change." );
+        }
+        catch ( final GitWrapException e )
+        {
+            // expected
+        }
+
+        assertEquals( "c1", readFile( "a.txt" ) );
+    }
+
+    @Test
+    public void commitPathsOnlyCommitsGivenPaths()
+        throws IOException, GitWrapException
+    {
+        workDir = File.createTempFile( "git-commit-paths", "" );
+        workDir.delete();
+
+        final GitRepository repo = new GitRepository( workDir );
+        write( "a.txt", "a1" );
+        write( "dir/b.txt", "b1" );
+        repo.commitPaths( "first", "a.txt", "dir/b.txt" );
+
+        write( "a.txt", "a2" );
+        write( "dir/b.txt", "b2" );
+        new File( workDir, "dir/c.txt" ).delete();
+        repo.commitPaths( "second", "a.txt", "dir/c.txt" );
+
+        final FileRepository repository = repo.getRepository();
+        final ObjectId tree = repository.resolve( Constants.HEAD + "^{tree}" );
+
+        assertEquals( "a2", read( repository, tree, "a.txt" ) );
+        assertEquals( "b1", read( repository, tree, "dir/b.txt" ) );
+        assertNull( TreeWalk.forPath( repository, "dir/c.txt", tree ) );
+    }
+
+    @Test
+    public void commitPathsRejectsPathsOutsideTheWorktree()
+        throws IOException, GitWrapException
+    {
+        workDir = File.createTempFile( "git-commit-paths-outside", "" );
+        workDir.delete();
+
+        final GitRepository repo = new GitRepository( new File( workDir, "repo" ) );
+        write( "repo/a.txt", "a1" );
+        write( "outside.txt", "x" );
+        repo.commitPaths( "first", "a.txt" );
+        final ObjectId head = repo.getRepository().resolve( Constants.HEAD );
+
+        for ( final String path : new String[] { "../outside.txt", "dir/../../outside.txt", ".git/config",
+            new File( workDir, "outside.txt" ).getAbsolutePath() } )
+        {
+            try
+            {
+                repo.commitPaths( "escape", "a.txt", path );
+                fail( "Committing: " + path + " should be rejected." );
+            }
+            catch ( final GitWrapException e )
+            {
+                // expected
+            }
+        }
+
+        assertEquals( head, repo.getRepository().resolve( Constants.HEAD ) );
+    }
+
+    @Test
+    public void commitPathsHashesRacilyCleanFiles()
+        throws IOException, GitWrapException
+    {
+        workDir = File.createTempFile( "git-commit-paths-racy", "" );
+        workDir.delete();
+
+        // a timestamp no earlier than the index's: same size and mtime must not be trusted.
+        final long racy = ( System.currentTimeMillis() / 1000 + 60 ) * 1000;
+
+        final GitRepository repo = new GitRepository( workDir );
+        write( "a.txt", "a1" );
+        new File( workDir, "a.txt" ).setLastModified( racy );
+        repo.commitPaths( "first", "a.txt" );
+
+        write( "a.txt", "a2" );
+        new File( workDir, "a.txt" ).setLastModified( racy );
+        repo.commitPaths( "second", "a.txt" );
+
+        final FileRepository repository = repo.getRepository();
+        assertEquals( "a2", read( repository, repository.resolve( Constants.HEAD + "^{tree}" ), "a.txt" ) );
+    }
+
+    @Test
+    public void commitChangesHashesRacilyCleanFiles()
+        throws IOException, GitWrapException
+    {
+        workDir = File.createTempFile( "git-commit-changes-racy", "" );
+        workDir.delete();
+
+        final long racy = ( System.currentTimeMillis() / 1000 + 60 ) * 1000;
+
+        final GitRepository repo = new GitRepository( workDir );
+        write( "a.txt", "a1" );
+        write( "b.txt", "b1" );
+        new File( workDir, "a.txt" ).setLastModified( racy );
+        repo.commitChanges( "first", "." );
+
+        write( "a.txt", "a2" );
+        new File( workDir, "a.txt" ).setLastModified( racy );
+        assertEquals( Collections.singleton( "a.txt" ), repo.getChangedPaths() );
+
+        repo.commitChanges( "second", "." );
+
+        final FileRepository repository = repo.getRepository();
+        final ObjectId tree = repository.resolve( Constants.HEAD + "^{tree}" );
+        assertEquals( "a2", read( repository, tree, "a.txt" ) );
+        assertEquals( "b1", read( repository, tree, "b.txt" ) );
+        assertTrue( repo.getChangedPaths().isEmpty() );
+    }
+
+    @Test
+    public void changeTrackingFollowsEditsCommitsAndDirectories()
+        throws IOException, GitWrapException
+    {
+        workDir = File.createTempFile( "git-change-tracking", "" );
+        workDir.delete();
+
+        final GitRepository repo = new GitRepository( workDir );
+        write( "a.txt", "a1" );
+        repo.commitChanges( "first", "." );
+
+        repo.startChangeTracking();
+        try
+        {
+            // the first status is a full scan; from then on only watched paths are looked at.
+            assertTrue( repo.getChangedPaths().isEmpty() );
+
+            write( "a.txt", "a2" );
+            assertEquals( Collections.singleton( "a.txt" ), repo.getChangedPaths() );
+
+            repo.commitChanges( "second", "." );
+            assertTrue( repo.getChangedPaths().isEmpty() );
+
+            write( "dir/sub/b.txt", "b" );
+            write( "dir/c.txt", "c" );
+            assertEquals( new HashSet<String>( Arrays.asList( "dir/c.txt", "dir/sub/b.txt" ) ),
+                          repo.getChangedPaths() );
+
+            repo.commitChanges( "third", "dir" );
+            assertTrue( repo.getChangedPaths().isEmpty() );
+
+            delete( new File( workDir, "dir" ) );
+            assertEquals( new HashSet<String>( Arrays.asList( "dir/c.txt", "dir/sub/b.txt" ) ),
+                          repo.getChangedPaths() );
+        }
+        finally
+        {
+            repo.close();
+        }
+    }
+
+    private void write( final String path, final String content )
+        throws IOException
+    {
+        final File file = new File( workDir, path );
+        file.getParentFile().mkdirs();
+
+        final FileWriter writer = new FileWriter( file );
+        try
+        {
+            writer.write( content );
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    private String readFile( final String path )
+        throws IOException
+    {
+        final File file = new File( workDir, path );
+        final DataInputStream in = new DataInputStream( new FileInputStream( file ) );
+        try
+        {
+            final byte[] content = new byte[(int) file.length()];
+            in.readFully( content );
+            return new String( content, "UTF-8" );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    @Test
+    public void failedCheckoutRecordsWrittenFilesInIndex()
+        throws IOException, GitWrapException
+    {
+        workDir = File.createTempFile( "git-checkout-fail", "" );
+        workDir.delete();
+
+        final GitRepository repo = new GitRepository( workDir );
+        write( "a.txt", "a" );
+        repo.commitChanges( "first", "." );
+
+        repo.createBranch( "master", "other" );
+        write( "x.txt", "x" );
+        write( "y.txt", "y" );
+        repo.commitChanges( "xy", "." );
+        repo.checkoutBranch( "master" );
+
+        // lose y.txt's blob, so writing the worktree fails after x.txt is written.
+        final FileRepository repository = repo.getRepository();
+        final String blob =
+            TreeWalk.forPath( repository, "y.txt", repository.resolve( "refs/heads/other^{tree}" ) ).getObjectId( 0 )
+                    .name();
+        assertTrue( new File( repository.getObjectsDirectory(), blob.substring( 0, 2 ) + "/" + blob.substring( 2 ) )
+            .delete() );
+
+        try
+        {
+            repo.checkoutBranch( "other" );
+            fail( "Checkout should fail on the missing blob." );
+        }
+        catch ( final GitWrapException e )
+        {
+            // expected
+        }
+
+        assertEquals( "x", read( repository, repository.readDirCache().getEntry( "x.txt" ).getObjectId() ) );
+        assertNull( repository.readDirCache().getEntry( "y.txt" ) );
+        assertFalse( new File( workDir, "y.txt" ).exists() );
+    }
+
+    @Test
+    public void sparseCloneAndCheckoutSkipExcludedPaths()
+        throws IOException, GitWrapException
+    {
+        workDir = File.createTempFile( "git-sparse", "" );
+        workDir.delete();
+
+        final GitRepository upstream = new GitRepository( new File( workDir, "upstream" ) );
+        commitFiles( upstream, "first", "pom.xml", "<project/>", "module-a/x.txt", "x1", "module-b/y.txt", "y1" );
+
+        final File cloneDir = new File( workDir, "clone" );
+        final GitRepository clone =
+            GitRepository.cloneWithWorkdir( "file://" + upstream.getGitDir().getAbsolutePath(), "origin", cloneDir,
+                                            new CloneOptions().setSparsePatterns( "/pom.xml", "module-a/" ) );
+
+        final FileRepository repository = clone.getRepository();
+        assertTrue( new File( cloneDir, "pom.xml" ).isFile() );
+        assertTrue( new File( cloneDir, "module-a/x.txt" ).isFile() );
+        assertFalse( new File( cloneDir, "module-b" ).exists() );
+        assertTrue( repository.readDirCache().getEntry( "module-b/y.txt" ).isAssumeValid() );
+        assertTrue( clone.getChangedPaths().isEmpty() );
+
+        upstream.createBranch( "master", "feature" );
+        commitFiles( upstream, "second", "module-a/x.txt", "x2", "module-b/y.txt", "y2" );
+        clone.fetch( "origin" );
+
+        // switching branches keeps honoring the patterns stored at clone time.
+        clone.createBranch( "origin/feature", "feature" );
+
+        assertEquals( "x2", readFile( "clone/module-a/x.txt" ) );
+        assertFalse( new File( cloneDir, "module-b" ).exists() );
+
+        final DirCacheEntry excluded = repository.readDirCache().getEntry( "module-b/y.txt" );
+        assertEquals( "y2", read( repository, excluded.getObjectId() ) );
+        assertTrue( excluded.isAssumeValid() );
+        assertTrue( clone.getChangedPaths().isEmpty() );
+
+        clone.close();
+        upstream.close();
+    }
+
+    private static String read( final FileRepository repository, final ObjectId blob )
+        throws IOException
+    {
+        return new String( repository.open( blob ).getCachedBytes(), "UTF-8" );
+    }
+
+    private static String read( final FileRepository repository, final ObjectId tree, final String path )
+        throws IOException
+    {
+        final TreeWalk walk = TreeWalk.forPath( repository, path, tree );
+        return new String( repository.open( walk.getObjectId( 0 ) ).getCachedBytes(), "UTF-8" );
+    }
+
 }
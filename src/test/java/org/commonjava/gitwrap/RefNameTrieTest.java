@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class RefNameTrieTest
+{
+
+    private RefNameTrie create()
+    {
+        final RefNameTrie trie = new RefNameTrie();
+        trie.add( GitPathBuilder.createPath().withTagRef( "release/1.0" ).toString() );
+        trie.add( GitPathBuilder.createPath().withTagRef( "release/1.1" ).toString() );
+        trie.add( GitPathBuilder.createPath().withTagRef( "rel-2" ).toString() );
+        trie.add( GitPathBuilder.createPath().withTagRef( "other" ).toString() );
+        trie.add( GitPathBuilder.createPath().withHeadRef( "master" ).toString() );
+
+        return trie;
+    }
+
+    @Test
+    public void addAndContains()
+    {
+        final RefNameTrie trie = create();
+
+        assertEquals( 5, trie.size() );
+        assertFalse( trie.add( "refs/tags/other" ) );
+        assertEquals( 5, trie.size() );
+
+        assertTrue( trie.contains( "refs/tags/release/1.0" ) );
+        assertTrue( trie.contains( "refs/heads/master" ) );
+        assertFalse( trie.contains( "refs/tags/release" ) );
+        assertFalse( trie.contains( "refs/tags/release/1.2" ) );
+    }
+
+    @Test
+    public void subtreePrefixQuery()
+    {
+        assertEquals( Arrays.asList( "refs/tags/release/1.0", "refs/tags/release/1.1" ),
+                      create().getNames( "refs/tags/release/" ) );
+    }
+
+    @Test
+    public void partialComponentPrefixQuery()
+    {
+        assertEquals( Arrays.asList( "refs/tags/rel-2", "refs/tags/release/1.0", "refs/tags/release/1.1" ),
+                      create().getNames( "refs/tags/rel" ) );
+    }
+
+    @Test
+    public void visitStopsEarly()
+    {
+        final List<String> seen = new ArrayList<String>();
+        final boolean completed = create().visit( "refs/tags/", new RefNameTrie.NameVisitor()
+        {
+            public boolean visit( final String name )
+            {
+                seen.add( name );
+                return seen.size() < 2;
+            }
+        } );
+
+        assertFalse( completed );
+        assertEquals( 2, seen.size() );
+    }
+
+    @Test
+    public void iterateAll()
+    {
+        final List<String> all = new ArrayList<String>( create() );
+        assertEquals( 5, all.size() );
+        assertEquals( "refs/heads/master", all.get( 0 ) );
+    }
+
+    @Test
+    public void removePrunesEmptyComponents()
+    {
+        final RefNameTrie trie = create();
+
+        assertTrue( trie.remove( "refs/tags/release/1.0" ) );
+        assertFalse( trie.remove( "refs/tags/release/1.0" ) );
+        assertFalse( trie.remove( "refs/tags/release" ) );
+        assertEquals( 4, trie.size() );
+
+        assertTrue( trie.remove( "refs/tags/release/1.1" ) );
+        assertEquals( Arrays.asList( "refs/tags/other", "refs/tags/rel-2" ), trie.getNames( "refs/tags/" ) );
+    }
+
+    @Test
+    public void bulkRemovalGoesThroughIterator()
+    {
+        final RefNameTrie trie = create();
+
+        assertTrue( trie.removeAll( Arrays.asList( "refs/tags/other", "refs/heads/master" ) ) );
+        assertEquals( 3, trie.size() );
+
+        assertTrue( trie.retainAll( Arrays.asList( "refs/tags/rel-2" ) ) );
+        assertEquals( Arrays.asList( "refs/tags/rel-2" ), new ArrayList<String>( trie ) );
+
+        trie.clear();
+        assertTrue( trie.isEmpty() );
+        assertFalse( trie.contains( "refs/tags/rel-2" ) );
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.commonjava.gitwrap.TestUtils.configureLogging;
+import static org.commonjava.gitwrap.TestUtils.delete;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+public class RepositoryHandleCacheTest
+{
+
+    private File baseDir;
+
+    @BeforeClass
+    public static void setupLogging()
+    {
+        configureLogging();
+    }
+
+    @After
+    public void deleteBaseDir()
+    {
+        delete( baseDir );
+    }
+
+    @Test
+    public void sharedHandlesUseSameRepository()
+        throws IOException, GitWrapException
+    {
+        baseDir = createBaseDir();
+
+        final RepositoryHandleCache cache = new RepositoryHandleCache( 10, Long.MAX_VALUE );
+        final File gitDir = new File( baseDir, "shared.git" );
+
+        final BareGitRepository first = cache.openBare( gitDir, true );
+        final BareGitRepository second =
+            cache.openBare( new File( baseDir, "../" + baseDir.getName() + "/shared.git" ), true );
+
+        assertSame( first.getRepository(), second.getRepository() );
+        assertEquals( 1, cache.getOpenCount() );
+
+        first.close();
+        first.close();
+        second.close();
+
+        assertEquals( 1, cache.getOpenCount() );
+    }
+
+    @Test
+    public void bareAndWorkTreeHandlesDontShareRepository()
+        throws IOException, GitWrapException
+    {
+        baseDir = createBaseDir();
+
+        final RepositoryHandleCache cache = new RepositoryHandleCache( 10, Long.MAX_VALUE );
+        final File workDir = new File( baseDir, "work" );
+
+        final BareGitRepository bare = cache.openBare( new File( workDir, ".git" ), true );
+        final GitRepository worktree = cache.open( workDir, false );
+
+        assertNotSame( bare.getRepository(), worktree.getRepository() );
+        assertEquals( workDir.getCanonicalFile(), worktree.getRepository().getWorkTree().getCanonicalFile() );
+        assertEquals( 2, cache.getOpenCount() );
+        assertTrue( cache.isOpen( new File( workDir, ".git" ) ) );
+
+        final GitRepository again = cache.open( workDir, false );
+        assertSame( worktree.getRepository(), again.getRepository() );
+
+        bare.close();
+        worktree.close();
+        again.close();
+    }
+
+    @Test
+    public void idleRepositoriesEvictedInLruOrder()
+        throws IOException
+    {
+        baseDir = createBaseDir();
+
+        final RepositoryHandleCache cache = new RepositoryHandleCache( 2, Long.MAX_VALUE );
+        final File one = new File( baseDir, "one.git" );
+        final File two = new File( baseDir, "two.git" );
+        final File three = new File( baseDir, "three.git" );
+
+        cache.openBare( one, true ).close();
+        cache.openBare( two, true ).close();
+        cache.openBare( one, true ).close();
+
+        final BareGitRepository held = cache.openBare( three, true );
+
+        assertEquals( 2, cache.getOpenCount() );
+        assertTrue( cache.isOpen( one ) );
+        assertFalse( cache.isOpen( two ) );
+        assertTrue( cache.isOpen( three ) );
+
+        cache.setMaxOpenRepositories( 0 );
+        assertEquals( 1, cache.getOpenCount() );
+        assertTrue( cache.isOpen( three ) );
+
+        held.close();
+        assertEquals( 0, cache.getOpenCount() );
+    }
+
+    private static File createBaseDir()
+        throws IOException
+    {
+        final File dir = File.createTempFile( "repo-cache.", ".dir" );
+        dir.delete();
+        dir.mkdirs();
+
+        return dir;
+    }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2010 Red Hat, Inc.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see 
+ * <http://www.gnu.org/licenses>.
+ */
+
+package org.commonjava.gitwrap;
+
+import static org.junit.Assert.assertEquals;
+import static org.commonjava.gitwrap.TestUtils.commitFiles;
+import static org.commonjava.gitwrap.TestUtils.configureLogging;
+import static org.commonjava.gitwrap.TestUtils.delete;
+import static org.commonjava.gitwrap.TestUtils.tempPath;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+public class RepositoryMaintenanceTest
+{
+
+    private File baseDir;
+
+    @BeforeClass
+    public static void setupLogging()
+    {
+        configureLogging();
+    }
+
+    @After
+    public void deleteBaseDir()
+    {
+        delete( baseDir );
+    }
+
+    @Test
+    public void maintainPacksLooseObjects()
+        throws IOException, GitWrapException
+    {
+        baseDir = tempPath( "maintenance.", ".dir" );
+
+        final GitRepository repo = new GitRepository( new File( baseDir, "repo" ) );
+        for ( int i = 0; i < 3; i++ )
+        {
+            commitFiles( repo, "v" + i, "file.txt", "v" + i );
+        }
+
+        final MaintenanceResult result = repo.maintain();
+
+        // three commits, three trees, three blobs.
+        assertEquals( 9, result.getPackedObjects() );
+        assertEquals( 9, result.getLooseObjectsRemoved() );
+        assertEquals( 1, RepositoryMaintenance.countPacks( repo.getRepository().getObjectsDirectory() ) );
+        assertEquals( "v2", read( repo, "file.txt" ) );
+
+        repo.close();
+    }
+
+    @Test
+    public void maintainLeavesBorrowedObjectsInAlternates()
+        throws IOException, GitWrapException
+    {
+        baseDir = tempPath( "maintenance.", ".dir" );
+
+        final GitRepository base = new GitRepository( new File( baseDir, "base" ) );
+        final ObjectId root = commitFiles( base, "root", "a.txt", "a" );
+        base.close();
+
+        final GitRepository fork = new GitRepository( new File( baseDir, "fork" ) );
+        ObjectStoreCopier.writeAlternates( new File( fork.getGitDir(), "objects" ),
+                                           new File( base.getGitDir(), "objects" ) );
+
+        // the fork starts from base's root commit, which it only has through the alternates.
+        final RefUpdate update = fork.getRepository().updateRef( Constants.R_HEADS + Constants.MASTER );
+        update.setNewObjectId( root );
+        update.update();
+        commitFiles( fork, "b", "a.txt", "a", "b.txt", "b" );
+
+        final MaintenanceResult result = fork.maintain();
+
+        // only the new commit, its tree and b.txt; the root commit, its tree and a.txt stay in base.git.
+        assertEquals( 3, result.getPackedObjects() );
+        assertEquals( "a", read( fork, "a.txt" ) );
+        assertEquals( "b", read( fork, "b.txt" ) );
+
+        fork.close();
+    }
+
+    @Test
+    public void schedulerKeepsGoingPastAFailingRepository()
+        throws IOException, GitWrapException
+    {
+        baseDir = tempPath( "maintenance.", ".dir" );
+
+        final BareGitRepository broken = new BareGitRepository( new File( baseDir, "broken.git" ), true )
+        {
+            @Override
+            public boolean needsMaintenance( final int looseObjectLimit, final int packLimit )
+            {
+                throw new IllegalStateException( "broken" );
+            }
+        };
+
+        final GitRepository repo = new GitRepository( new File( baseDir, "repo" ) );
+        commitFiles( repo, "v1", "file.txt", "v1" );
+
+        final File objectsDir = repo.getRepository().getObjectsDirectory();
+
+        final MaintenanceScheduler scheduler = new MaintenanceScheduler( 1, TimeUnit.DAYS, 0, 1 );
+        try
+        {
+            scheduler.register( broken ).register( repo );
+
+            // below the pack limit: nothing to do.
+            scheduler.runOnce();
+            assertEquals( 0, RepositoryMaintenance.countPacks( objectsDir ) );
+            assertEquals( 3, countLooseObjects( objectsDir ) );
+
+            repo.maintain();
+            commitFiles( repo, "v2", "file.txt", "v2" );
+            assertEquals( 3, countLooseObjects( objectsDir ) );
+
+            // at the pack limit, and the broken repository registered first doesn't stop it.
+            scheduler.runOnce();
+            assertEquals( 1, RepositoryMaintenance.countPacks( objectsDir ) );
+            assertEquals( 0, countLooseObjects( objectsDir ) );
+        }
+        finally
+        {
+            scheduler.close();
+        }
+
+        broken.close();
+        repo.close();
+    }
+
+    private static String read( final BareGitRepository repo, final String path )
+        throws IOException
+    {
+        final FileRepository repository = repo.getRepository();
+        final TreeWalk walk = TreeWalk.forPath( repository, path, repository.resolve( Constants.HEAD + "^{tree}" ) );
+        return new String( repository.open( walk.getObjectId( 0 ) ).getCachedBytes(), "UTF-8" );
+    }
+
+    private static int countLooseObjects( final File objectsDir )
+    {
+        int count = 0;
+        for ( final File dir : objectsDir.listFiles() )
+        {
+            final String[] names = dir.list();
+            if ( dir.getName().length() == 2 && names != null )
+            {
+                count += names.length;
+            }
+        }
+
+        return count;
+    }
+
+}
@@ -25,8 +25,12 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.SimpleLayout;
 import org.apache.log4j.spi.Configurator;
 import org.apache.log4j.spi.LoggerRepository;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
 
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.net.URL;
 import java.util.Enumeration;
 
@@ -63,6 +67,47 @@ public final class TestUtils
         log4jConfigurator.doConfigure( null, LogManager.getLoggerRepository() );
     }
 
+    /**
+     * A fresh path in the temp directory that doesn't exist yet.
+     */
+    public static File tempPath( final String prefix, final String suffix )
+        throws IOException
+    {
+        final File f = File.createTempFile( prefix, suffix );
+        f.delete();
+        return f;
+    }
+
+    /**
+     * Write <code>pathsAndContents</code> (a path relative to the work tree, then its content, and so on) into the
+     * work tree of <code>repo</code>, and commit everything.
+     *
+     * @return the new HEAD commit.
+     */
+    public static ObjectId commitFiles( final GitRepository repo, final String message,
+                                        final String... pathsAndContents )
+        throws IOException, GitWrapException
+    {
+        for ( int i = 0; i < pathsAndContents.length; i += 2 )
+        {
+            final File file = new File( repo.getWorkDir(), pathsAndContents[i] );
+            file.getParentFile().mkdirs();
+
+            final FileWriter writer = new FileWriter( file );
+            try
+            {
+                writer.write( pathsAndContents[i + 1] );
+            }
+            finally
+            {
+                writer.close();
+            }
+        }
+
+        repo.commitChanges( message, "." );
+        return repo.getRepository().resolve( Constants.HEAD );
+    }
+
     public static void delete( final File f )
     {
         if ( f == null || !f.exists() )